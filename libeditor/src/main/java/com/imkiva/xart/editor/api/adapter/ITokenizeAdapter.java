@@ -1,23 +1,85 @@
 package com.imkiva.xart.editor.api.adapter;
 
 import com.imkiva.xart.editor.api.lexer.Flag;
-import com.imkiva.xart.editor.api.lexer.HighlightSpan;
-import com.imkiva.xart.editor.api.lexer.HighlightTokenType;
-
-import java.util.Collections;
-import java.util.List;
+import com.imkiva.xart.editor.api.lexer.HighlightSpanList;
+import com.imkiva.xart.editor.api.listener.OnLexProgressListener;
 
 public interface ITokenizeAdapter {
 
 
-    List<HighlightSpan> DEFAULT_HIGHLIGHT_SPANS = Collections.singletonList(new HighlightSpan(0, HighlightTokenType.NORMAL));
-
     /**
      * 词法分析
+     * 实现应该经常检查 {@link Flag#isSet()}, 每做一段较重的工作检查一次
+     * {@link Flag#isCancelled()}, 发现后尽快返回, 返回值会被丢弃
      *
      * @param flag      是否需要终止解析
      * @param needToLex 需要词法分析的文本副本
      */
-    List<HighlightSpan> tokenize(Flag flag, String needToLex);
+    HighlightSpanList tokenize(Flag flag, String needToLex);
+
+    /**
+     * 词法分析, 不要求文本是 String
+     * 默认实现会把文本复制为 String, 适配器可以重写本方法直接读取文档
+     *
+     * @param flag      是否需要终止解析
+     * @param needToLex 需要词法分析的文本, 可能是文档的实时视图
+     */
+    default HighlightSpanList tokenize(Flag flag, CharSequence needToLex) {
+        return tokenize(flag, needToLex.toString());
+    }
+
+    /**
+     * @return 是否支持 {@link #tokenize(Flag, CharSequence, HighlightSpanList)} 增量分析
+     */
+    default boolean isIncrementalSupported() {
+        return false;
+    }
+
+    /**
+     * 增量词法分析, 只重新分析 previous 中待分析的范围附近
+     * 默认实现做完整分析
+     *
+     * @param flag      是否需要终止解析
+     * @param needToLex 需要词法分析的文本
+     * @param previous  上次的分析结果, 已随编辑平移, 可能为 null. 不得修改
+     */
+    default HighlightSpanList tokenize(Flag flag, CharSequence needToLex, HighlightSpanList previous) {
+        return tokenize(flag, needToLex);
+    }
+
+    /**
+     * 同 {@link #tokenize(Flag, CharSequence, HighlightSpanList)}, 分析过程中通过 listener
+     * 报告进度, 以便先显示已经分析好的部分
+     * 默认实现不报告进度
+     *
+     * @param listener 进度监听器
+     */
+    default HighlightSpanList tokenize(Flag flag, CharSequence needToLex, HighlightSpanList previous,
+                                       OnLexProgressListener listener) {
+        return tokenize(flag, needToLex, previous);
+    }
+
+    /**
+     * 从 start 处以初始状态开始, 只分析到 end 为止, 用于先给可见区域上色.
+     * 前面的文本可能改变词法状态(例如在注释中间), 结果只是近似的
+     * 默认实现不支持
+     *
+     * @param start 开始分析的位置, 应该是行首
+     * @param end   分析到的位置
+     * @return 分析结果, 不支持时为 null
+     */
+    default HighlightSpanList tokenizeRange(Flag flag, CharSequence needToLex, int start, int end) {
+        return null;
+    }
+
+    /**
+     * 结果缓存的键, 应包含语言和词法分析器的版本, 它们变化后旧的缓存就不会被使用
+     * 默认实现不缓存
+     *
+     * @return 缓存键, null 表示不缓存结果
+     */
+    default String getCacheKey() {
+        return null;
+    }
 
 }
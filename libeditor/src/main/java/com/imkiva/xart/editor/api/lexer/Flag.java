@@ -1,17 +1,79 @@
 package com.imkiva.xart.editor.api.lexer;
 
+/**
+ * 取消标记
+ * <p>
+ * {@link #isSet()} 只读一个 volatile 变量, 可以在每个记号之后检查;
+ * {@link #isCancelled()} 还会检查截止时间, 适合隔一段工作检查一次.
+ * 工作者停下后调用 {@link #acknowledge()}, 记录从取消到停止用了多久
+ */
 public class Flag {
-    private boolean state = false;
+    private volatile boolean state = false;
 
-    synchronized public final void set() {
-        state = true;
+    /**
+     * 截止时间 ({@link System#nanoTime()}), 只在 hasDeadline 时有效
+     */
+    private volatile long deadline;
+    private volatile boolean hasDeadline;
+
+    private volatile long setTime;
+    private volatile long stopLatency = -1;
+
+    public final void set() {
+        if (!state) {
+            setTime = System.nanoTime();
+            state = true;
+        }
     }
 
-    synchronized public final void clear() {
+    public final void clear() {
         state = false;
+        hasDeadline = false;
     }
 
-    synchronized public final boolean isSet() {
+    public final boolean isSet() {
         return state;
     }
+
+    /**
+     * 设置截止时间, 到时后 {@link #isCancelled()} 会设置标记
+     *
+     * @param timeoutMillis 从现在起的毫秒数
+     */
+    public final void setDeadline(long timeoutMillis) {
+        deadline = System.nanoTime() + timeoutMillis * 1000000L;
+        hasDeadline = true;
+    }
+
+    /**
+     * 同 {@link #isSet()}, 另外检查截止时间
+     *
+     * @return 是否应该停止
+     */
+    public final boolean isCancelled() {
+        if (state) {
+            return true;
+        }
+        if (hasDeadline && System.nanoTime() - deadline >= 0) {
+            set();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 工作者发现标记并停止后调用, 记录停止延迟
+     */
+    public final void acknowledge() {
+        if (state) {
+            stopLatency = System.nanoTime() - setTime;
+        }
+    }
+
+    /**
+     * @return 最近一次从设置标记到 {@link #acknowledge()} 用了多久, 纳秒; 还没有时为 -1
+     */
+    public final long getStopLatency() {
+        return stopLatency;
+    }
 }
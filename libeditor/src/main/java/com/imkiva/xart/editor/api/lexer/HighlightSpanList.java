@@ -0,0 +1,547 @@
+package com.imkiva.xart.editor.api.lexer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 高亮区间表, 按起始偏移量升序保存
+ * <p>
+ * 不为每个区间创建 {@link HighlightSpan} 对象, 而是保存在并行的基本类型数组里:
+ * 偏移量 int[], 类型 byte[], 只有出现自定义颜色(NOT_USE)时才分配颜色 int[].
+ * 按下标遍历不会分配对象.
+ * <p>
+ * 文本编辑后用 {@link #onInsert(int, int)}/{@link #onDelete(int, int)} 平移区间,
+ * 在重新词法分析完成前颜色也能对齐. 平移是延迟的: 只记录"从某个下标起都要加上的增量",
+ * 下一次编辑时才把两次编辑位置之间的区间落实, 所以在同一处连续编辑的代价是
+ * O(log n + k), k 为两次编辑之间的区间数. 编辑过的范围记为待分析区域.
+ * <p>
+ * 可以附带词法状态检查点, 供增量词法分析从中途重新开始, 见
+ * {@link TokenConverter#makeSpans(Flag, com.imkiva.xart.language.JFlexLexer, HighlightTokenType[],
+ * HighlightSpanList, int, int, com.imkiva.xart.editor.api.listener.OnLexProgressListener)}.
+ * 检查点记在区间下标上, 所以会随区间一起平移.
+ */
+public final class HighlightSpanList {
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final HighlightTokenType[] TYPES = HighlightTokenType.values();
+
+    private int[] offsets;
+    private byte[] types;
+    /**
+     * 自定义颜色, 没有 NOT_USE 区间时为 null
+     */
+    private int[] colors;
+    private int size;
+
+    /**
+     * 下标 >= shiftIndex 的区间, 实际偏移量还要加上 shiftDelta
+     */
+    private int shiftIndex = Integer.MAX_VALUE;
+    private int shiftDelta;
+
+    /**
+     * 编辑过, 等待重新分析的范围 [damageStart, damageEnd], 没有时为 -1.
+     * 删除只留下一个位置, 所以终点也算在内
+     */
+    private int damageStart = -1;
+    private int damageEnd = -1;
+
+    // 检查点, 按区间下标升序
+    private int[] checkpointSpans;
+    /**
+     * 词法分析器在检查点处的状态
+     */
+    private int[] checkpointStates;
+    /**
+     * 检查点的恢复位置在区间起点之前多少个字符(被词法分析器跳过的字符)
+     */
+    private int[] checkpointGaps;
+    private int checkpointCount;
+
+    public HighlightSpanList() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity 预计的区间数量
+     */
+    public HighlightSpanList(int capacity) {
+        capacity = Math.max(capacity, 1);
+        offsets = new int[capacity];
+        types = new byte[capacity];
+    }
+
+    /**
+     * @return 只有一个从 0 开始的 NORMAL 区间的表
+     */
+    public static HighlightSpanList createDefault() {
+        HighlightSpanList spans = new HighlightSpanList(1);
+        spans.add(0, HighlightTokenType.NORMAL);
+        return spans;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getOffset(int index) {
+        int offset = offsets[index];
+        return index >= shiftIndex ? offset + shiftDelta : offset;
+    }
+
+    public HighlightTokenType getType(int index) {
+        return TYPES[types[index]];
+    }
+
+    /**
+     * @return 自定义颜色, 只对类型为 NOT_USE 的区间有意义
+     */
+    public int getColor(int index) {
+        return colors != null ? colors[index] : 0;
+    }
+
+    /**
+     * 创建下标处区间的对象, 只为兼容旧接口, 会分配内存
+     */
+    public HighlightSpan get(int index) {
+        if (getType(index) == HighlightTokenType.NOT_USE) {
+            return new HighlightSpan(getOffset(index), getColor(index));
+        }
+        return new HighlightSpan(getOffset(index), getType(index));
+    }
+
+    /**
+     * 在末尾添加区间, offset 不能小于最后一个区间的偏移量
+     */
+    public void add(int offset, HighlightTokenType type) {
+        ensureCapacity(size + 1);
+        offsets[size] = size >= shiftIndex ? offset - shiftDelta : offset;
+        types[size] = (byte) type.ordinal();
+        ++size;
+    }
+
+    /**
+     * 在末尾添加自定义颜色的区间, 类型为 NOT_USE
+     */
+    public void add(int offset, int color) {
+        ensureCapacity(size + 1);
+        if (colors == null) {
+            colors = new int[offsets.length];
+        }
+        offsets[size] = size >= shiftIndex ? offset - shiftDelta : offset;
+        types[size] = (byte) HighlightTokenType.NOT_USE.ordinal();
+        colors[size] = color;
+        ++size;
+    }
+
+    /**
+     * 二分查找包含 offset 的区间
+     *
+     * @return 最后一个起始偏移量 <= offset 的区间下标, 没有则为 -1
+     */
+    public int find(int offset) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (getOffset(mid) <= offset) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * @return 包括检查点和待分析范围在内的完整副本
+     */
+    public HighlightSpanList copy() {
+        HighlightSpanList copy = new HighlightSpanList(size);
+        copy.addAll(this, 0, size);
+        copy.damageStart = damageStart;
+        copy.damageEnd = damageEnd;
+        return copy;
+    }
+
+    /**
+     * 在末尾添加 src 中下标为 [from, to) 的区间, 以及落在其中的检查点
+     */
+    public void addAll(HighlightSpanList src, int from, int to) {
+        if (from >= to) {
+            return;
+        }
+        int base = size;
+        int count = to - from;
+        ensureCapacity(size + count);
+        for (int i = from; i < to; ++i) {
+            int offset = src.getOffset(i);
+            offsets[size] = size >= shiftIndex ? offset - shiftDelta : offset;
+            ++size;
+        }
+        System.arraycopy(src.types, from, types, base, count);
+        if (src.colors != null) {
+            if (colors == null) {
+                colors = new int[offsets.length];
+            }
+            System.arraycopy(src.colors, from, colors, base, count);
+        }
+
+        for (int i = src.findCheckpointBySpan(from); i < src.checkpointCount; ++i) {
+            int span = src.checkpointSpans[i];
+            if (span >= to) {
+                break;
+            }
+            addCheckpoint(span - from + base, src.checkpointStates[i], src.checkpointGaps[i]);
+        }
+    }
+
+    /**
+     * 在末尾添加 src 中覆盖 [start, end) 的区间, 不含检查点.
+     * 第一个区间改为从 start 开始
+     *
+     * @param end 终点, -1 表示到 src 的末尾
+     */
+    public void addRange(HighlightSpanList src, int start, int end) {
+        if (src.size == 0) {
+            return;
+        }
+        int from = Math.max(src.find(start), 0);
+        int to = end < 0 ? src.size : Math.max(src.find(end - 1) + 1, from + 1);
+        addFrom(src, from, start);
+        for (int i = from + 1; i < to; ++i) {
+            addFrom(src, i, src.getOffset(i));
+        }
+    }
+
+    private void addFrom(HighlightSpanList src, int index, int offset) {
+        if (src.types[index] == HighlightTokenType.NOT_USE.ordinal()) {
+            add(offset, src.getColor(index));
+        } else {
+            add(offset, TYPES[src.types[index]]);
+        }
+    }
+
+    /**
+     * 清空, 保留已分配的数组
+     */
+    public void clear() {
+        size = 0;
+        checkpointCount = 0;
+        shiftIndex = Integer.MAX_VALUE;
+        shiftDelta = 0;
+        clearDamage();
+    }
+
+    //---------------------------------------------------------------------
+    // 检查点
+
+    /**
+     * 记录词法分析器可以从下标为 spanIndex 的区间之前恢复: 以 state 状态从
+     * 区间起点往前 gap 个字符处重新读入, 得到的记号与原来相同.
+     * spanIndex 必须大于已有检查点的区间下标.
+     */
+    public void addCheckpoint(int spanIndex, int state, int gap) {
+        if (checkpointSpans == null) {
+            checkpointSpans = new int[DEFAULT_CAPACITY];
+            checkpointStates = new int[DEFAULT_CAPACITY];
+            checkpointGaps = new int[DEFAULT_CAPACITY];
+        } else if (checkpointCount == checkpointSpans.length) {
+            int newCapacity = checkpointCount + (checkpointCount >> 1);
+            checkpointSpans = Arrays.copyOf(checkpointSpans, newCapacity);
+            checkpointStates = Arrays.copyOf(checkpointStates, newCapacity);
+            checkpointGaps = Arrays.copyOf(checkpointGaps, newCapacity);
+        }
+        checkpointSpans[checkpointCount] = spanIndex;
+        checkpointStates[checkpointCount] = state;
+        checkpointGaps[checkpointCount] = gap;
+        ++checkpointCount;
+    }
+
+    public int getCheckpointCount() {
+        return checkpointCount;
+    }
+
+    /**
+     * 丢弃所有检查点, 下次只能完整分析. 文本被整体替换时使用
+     */
+    public void clearCheckpoints() {
+        checkpointCount = 0;
+    }
+
+    public int getCheckpointSpan(int index) {
+        return checkpointSpans[index];
+    }
+
+    public int getCheckpointState(int index) {
+        return checkpointStates[index];
+    }
+
+    /**
+     * @return 词法分析器从检查点恢复时开始读入的位置
+     */
+    public int getCheckpointOffset(int index) {
+        return getOffset(checkpointSpans[index]) - checkpointGaps[index];
+    }
+
+    /**
+     * @return 最后一个区间起点 < offset 的检查点, 没有则为 -1
+     */
+    public int findCheckpoint(int offset) {
+        int low = 0;
+        int high = checkpointCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (getOffset(checkpointSpans[mid]) < offset) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * @return 第一个区间下标 >= spanIndex 的检查点, 没有则为 getCheckpointCount()
+     */
+    private int findCheckpointBySpan(int spanIndex) {
+        int low = 0;
+        int high = checkpointCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (checkpointSpans[mid] < spanIndex) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    //---------------------------------------------------------------------
+    // 序列化
+
+    /**
+     * @return {@link #writeTo(ByteBuffer)} 写入的字节数
+     */
+    public int getSerializedSize() {
+        return 4 + size * 5 + 4 + (colors != null ? size * 4 : 0) + 4 + checkpointCount * 12;
+    }
+
+    /**
+     * 写入区间和检查点, 不含待分析范围. 格式: 区间数, 偏移量, 类型,
+     * 是否有自定义颜色及颜色, 检查点数, 检查点的区间下标, 状态, 间隔
+     */
+    public void writeTo(ByteBuffer buffer) {
+        buffer.putInt(size);
+        for (int i = 0; i < size; ++i) {
+            buffer.putInt(getOffset(i));
+        }
+        buffer.put(types, 0, size);
+        if (colors != null) {
+            buffer.putInt(1);
+            buffer.asIntBuffer().put(colors, 0, size);
+            buffer.position(buffer.position() + size * 4);
+        } else {
+            buffer.putInt(0);
+        }
+        buffer.putInt(checkpointCount);
+        putInts(buffer, checkpointSpans, checkpointCount);
+        putInts(buffer, checkpointStates, checkpointCount);
+        putInts(buffer, checkpointGaps, checkpointCount);
+    }
+
+    /**
+     * 读取 {@link #writeTo(ByteBuffer)} 写入的内容
+     *
+     * @throws IllegalArgumentException 内容不完整或不合法
+     */
+    public static HighlightSpanList readFrom(ByteBuffer buffer) {
+        int size = buffer.getInt();
+        if (size < 0 || size > buffer.remaining() / 5) {
+            throw new IllegalArgumentException("Bad span count " + size);
+        }
+        HighlightSpanList spans = new HighlightSpanList(size);
+        getInts(buffer, spans.offsets, size);
+        buffer.get(spans.types, 0, size);
+        for (int i = 0; i < size; ++i) {
+            if (spans.types[i] < 0 || spans.types[i] >= TYPES.length) {
+                throw new IllegalArgumentException("Bad span type " + spans.types[i]);
+            }
+        }
+        if (buffer.getInt() != 0) {
+            spans.colors = new int[spans.offsets.length];
+            getInts(buffer, spans.colors, size);
+        }
+        spans.size = size;
+
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining() / 12) {
+            throw new IllegalArgumentException("Bad checkpoint count " + count);
+        }
+        if (count > 0) {
+            spans.checkpointSpans = new int[count];
+            spans.checkpointStates = new int[count];
+            spans.checkpointGaps = new int[count];
+            getInts(buffer, spans.checkpointSpans, count);
+            getInts(buffer, spans.checkpointStates, count);
+            getInts(buffer, spans.checkpointGaps, count);
+            for (int i = 0; i < count; ++i) {
+                if (spans.checkpointSpans[i] < 0 || spans.checkpointSpans[i] >= size) {
+                    throw new IllegalArgumentException("Bad checkpoint span " + spans.checkpointSpans[i]);
+                }
+            }
+            spans.checkpointCount = count;
+        }
+        return spans;
+    }
+
+    private static void putInts(ByteBuffer buffer, int[] values, int count) {
+        if (count > 0) {
+            buffer.asIntBuffer().put(values, 0, count);
+            buffer.position(buffer.position() + count * 4);
+        }
+    }
+
+    private static void getInts(ByteBuffer buffer, int[] values, int count) {
+        if (count > 0) {
+            buffer.asIntBuffer().get(values, 0, count);
+            buffer.position(buffer.position() + count * 4);
+        }
+    }
+
+    //---------------------------------------------------------------------
+    // 跟随编辑平移
+
+    /**
+     * 在 offset 处插入了 count 个字符. 从 offset 起的区间都后移,
+     * 新字符沿用它前面的区间的颜色, 第一个区间始终从 0 开始.
+     */
+    public void onInsert(int offset, int count) {
+        if (count <= 0) {
+            return;
+        }
+        int index = Math.max(find(offset - 1) + 1, 1);
+        shift(index, count);
+
+        if (damageStart >= 0) {
+            if (damageStart > offset) {
+                damageStart += count;
+            }
+            if (damageEnd >= offset) {
+                damageEnd += count;
+            }
+        }
+        damage(offset, offset + count);
+    }
+
+    /**
+     * 删除了 [offset, offset + count). 起点在删除范围内的区间缩为 offset 处的
+     * 空区间, 不移动数组; 之后的区间前移.
+     */
+    public void onDelete(int offset, int count) {
+        if (count <= 0) {
+            return;
+        }
+        int first = find(offset) + 1;
+        int end = find(offset + count) + 1;
+        shift(end, -count);
+        for (int i = Math.max(first, 1); i < end; ++i) {
+            // 在 shiftIndex 之前, 不受延迟增量影响
+            offsets[i] = offset;
+        }
+
+        if (damageStart >= 0) {
+            damageStart = mapDeleted(damageStart, offset, count);
+            damageEnd = mapDeleted(damageEnd, offset, count);
+        }
+        damage(offset, offset);
+    }
+
+    /**
+     * @return 待重新分析范围的起点, 没有则为 -1
+     */
+    public int getDamageStart() {
+        return damageStart;
+    }
+
+    /**
+     * @return 待重新分析范围的终点(含), 没有则为 -1
+     */
+    public int getDamageEnd() {
+        return damageEnd;
+    }
+
+    /**
+     * @return offset 处的颜色是否只是编辑前结果的平移, 还没有重新分析
+     */
+    public boolean isPending(int offset) {
+        return damageStart >= 0 && offset >= damageStart && offset <= damageEnd;
+    }
+
+    /**
+     * 把 [start, end] 记为待分析范围, 例如分析到一半时公布的结果中还没分析到的部分
+     */
+    public void addDamage(int start, int end) {
+        damage(start, end);
+    }
+
+    public void clearDamage() {
+        damageStart = -1;
+        damageEnd = -1;
+    }
+
+    /**
+     * 让下标 >= index 的区间都加上 delta. 与已有的延迟增量合并,
+     * 只需落实两个起始下标之间的区间.
+     */
+    private void shift(int index, int delta) {
+        int oldIndex = Math.min(shiftIndex, size);
+        int oldDelta = shiftDelta;
+        if (oldDelta != 0) {
+            if (oldIndex < index) {
+                for (int i = oldIndex; i < index; ++i) {
+                    offsets[i] += oldDelta;
+                }
+            } else {
+                for (int i = index; i < oldIndex; ++i) {
+                    offsets[i] -= oldDelta;
+                }
+            }
+        }
+        shiftIndex = index;
+        shiftDelta = oldDelta + delta;
+    }
+
+    private void damage(int start, int end) {
+        if (damageStart < 0) {
+            damageStart = start;
+            damageEnd = end;
+            return;
+        }
+        if (damageStart > start) {
+            damageStart = start;
+        }
+        if (damageEnd < end) {
+            damageEnd = end;
+        }
+    }
+
+    private static int mapDeleted(int position, int offset, int count) {
+        if (position <= offset) {
+            return position;
+        }
+        return position >= offset + count ? position - count : offset;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= offsets.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, offsets.length + (offsets.length >> 1));
+        offsets = Arrays.copyOf(offsets, newCapacity);
+        types = Arrays.copyOf(types, newCapacity);
+        if (colors != null) {
+            colors = Arrays.copyOf(colors, newCapacity);
+        }
+    }
+}
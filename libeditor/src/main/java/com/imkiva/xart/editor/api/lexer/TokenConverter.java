@@ -1,57 +1,205 @@
 package com.imkiva.xart.editor.api.lexer;
 
+import com.imkiva.xart.editor.api.listener.OnLexProgressListener;
 import com.imkiva.xart.language.JFlexLexer;
 import com.imkiva.xart.language.LanguageToken;
+import com.imkiva.xart.language.LanguageTokenType;
+import com.imkiva.xart.language.TokenSink;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 public class TokenConverter {
 
+    /**
+     * 相邻检查点之间至少相隔的字符数, 大约每几行一个.
+     * 词法分析器可能跳过换行符不产生记号, 所以按距离而不是按行记录
+     */
+    static final int CHECKPOINT_INTERVAL = 256;
+
+    /**
+     * 每隔这么多个记号检查一次截止时间
+     */
+    private static final int DEADLINE_CHECK_MASK = 0xff;
+
+    private static final HighlightTokenType[] DEFAULT_TYPE_MAP = createDefaultTypeMap();
+
+    /**
+     * 创建默认的记号类型映射表, 语言可以在副本上修改后通过
+     * {@link com.imkiva.xart.language.ParserDefinition#createHighlightTypeMap()} 使用
+     *
+     * @return 以 {@link LanguageTokenType#ordinal()} 为下标的高亮类型表
+     */
+    public static HighlightTokenType[] createDefaultTypeMap() {
+        HighlightTokenType[] typeMap = new HighlightTokenType[LanguageTokenType.values().length];
+        Arrays.fill(typeMap, HighlightTokenType.NORMAL);
+        typeMap[LanguageTokenType.KEYWORD.ordinal()] = HighlightTokenType.KEYWORD;
+        typeMap[LanguageTokenType.KEYWORD2.ordinal()] = HighlightTokenType.KEYWORD;
+        typeMap[LanguageTokenType.OPERATOR.ordinal()] = HighlightTokenType.KEYWORD;
+        typeMap[LanguageTokenType.STRING.ordinal()] = HighlightTokenType.SYMBOL;
+        typeMap[LanguageTokenType.STRING2.ordinal()] = HighlightTokenType.SYMBOL;
+        typeMap[LanguageTokenType.NUMBER.ordinal()] = HighlightTokenType.SYMBOL;
+        typeMap[LanguageTokenType.TYPE.ordinal()] = HighlightTokenType.TYPE;
+        typeMap[LanguageTokenType.TYPE2.ordinal()] = HighlightTokenType.TYPE;
+        typeMap[LanguageTokenType.TYPE3.ordinal()] = HighlightTokenType.TYPE;
+        typeMap[LanguageTokenType.COMMENT.ordinal()] = HighlightTokenType.COMMENT;
+        typeMap[LanguageTokenType.COMMENT2.ordinal()] = HighlightTokenType.COMMENT;
+        return typeMap;
+    }
+
     /**
      * @param lexer 词法分析器
      * @return 词法分析结果
      */
-    public static List<HighlightSpan> makeSpans(Flag flag, JFlexLexer lexer) {
-        List<HighlightSpan> highlightSpans = new ArrayList<HighlightSpan>(50);
+    public static HighlightSpanList makeSpans(Flag flag, JFlexLexer lexer) {
+        return makeSpans(flag, lexer, DEFAULT_TYPE_MAP, false, null);
+    }
+
+    /**
+     * @param lexer             词法分析器
+     * @param typeMap           记号类型映射表, 见 {@link #createDefaultTypeMap()}
+     * @param recordCheckpoints 是否记录检查点, 供下次增量分析使用
+     * @param listener          进度监听器, 可以为 null
+     * @return 词法分析结果
+     */
+    public static HighlightSpanList makeSpans(Flag flag, JFlexLexer lexer, HighlightTokenType[] typeMap,
+                                              boolean recordCheckpoints, OnLexProgressListener listener) {
+        HighlightSpanList highlightSpans = new HighlightSpanList(1024);
+        convert(flag, lexer, typeMap, highlightSpans, recordCheckpoints, 0, Integer.MAX_VALUE, null, listener);
+        return highlightSpans;
+    }
+
+    /**
+     * 只分析一段文本
+     *
+     * @param lexer             已经用 {@link JFlexLexer#yyreset(java.io.Reader, int, int)}
+     *                          定位到 start 的词法分析器
+     * @param typeMap           记号类型映射表
+     * @param end               在起点不小于 end 的记号处停止, -1 表示分析到末尾
+     * @param recordCheckpoints 是否记录检查点
+     * @return 词法分析结果
+     */
+    public static HighlightSpanList makeSpans(Flag flag, JFlexLexer lexer, HighlightTokenType[] typeMap,
+                                              int start, int end, boolean recordCheckpoints) {
+        HighlightSpanList highlightSpans = new HighlightSpanList(64);
+        convert(flag, lexer, typeMap, highlightSpans, recordCheckpoints, start,
+                end < 0 ? Integer.MAX_VALUE : end, null, null);
+        return highlightSpans;
+    }
+
+    /**
+     * 增量词法分析: 保留 previous 中检查点之前的结果, 从检查点开始重新分析,
+     * 越过待分析范围后一旦回到 previous 的某个检查点(位置和状态都相同),
+     * 就直接接上 previous 余下的结果.
+     *
+     * @param lexer      已经用 {@link JFlexLexer#yyreset(java.io.Reader, int, int)}
+     *                   定位到检查点的词法分析器
+     * @param typeMap    记号类型映射表
+     * @param previous   上次的分析结果, 已随编辑平移
+     * @param checkpoint {@link #findRestartCheckpoint(HighlightSpanList)} 的结果
+     * @param end        没有接上 previous 时, 在起点不小于 end 的记号处停止, -1 表示分析到末尾
+     * @param listener   进度监听器, 可以为 null
+     * @return 词法分析结果
+     */
+    public static HighlightSpanList makeSpans(Flag flag, JFlexLexer lexer, HighlightTokenType[] typeMap,
+                                              HighlightSpanList previous, int checkpoint, int end,
+                                              OnLexProgressListener listener) {
+        HighlightSpanList highlightSpans = new HighlightSpanList(previous.size() + 64);
+        highlightSpans.addAll(previous, 0, previous.getCheckpointSpan(checkpoint));
+        convert(flag, lexer, typeMap, highlightSpans, true, previous.getCheckpointOffset(checkpoint),
+                end < 0 ? Integer.MAX_VALUE : end, previous, listener);
+        return highlightSpans;
+    }
+
+    /**
+     * 找出增量分析应该从哪个检查点开始
+     *
+     * @return previous 中的检查点下标, -1 表示需要完整分析
+     */
+    public static int findRestartCheckpoint(HighlightSpanList previous) {
+        int damageStart = previous.getDamageStart();
+        if (damageStart < 0) {
+            return -1;
+        }
+        int checkpoint = previous.findCheckpoint(damageStart);
+        if (checkpoint < 0) {
+            return -1;
+        }
+        // 检查点前的记号可能因为向后看的字符被编辑而改变, 再往前退一个
+        return Math.max(checkpoint - 1, 0);
+    }
+
+    /**
+     * 高亮类型相同的相邻记号合并为一个区间, 只在检查点处强制开始新区间,
+     * 因为检查点要记在区间下标上
+     *
+     * @param resume   词法分析器开始读入的位置
+     * @param limit    在起点不小于 limit 的记号处停止
+     * @param previous 增量分析时上次的结果, 否则为 null
+     */
+    private static void convert(Flag flag, JFlexLexer lexer, HighlightTokenType[] typeMap,
+                                HighlightSpanList highlightSpans,
+                                boolean recordCheckpoints, int resume, int limit,
+                                HighlightSpanList previous, OnLexProgressListener listener) {
+        int start = previous != null ? 0 : resume;
+        int nextProgress = listener != null ? resume : Integer.MAX_VALUE;
+        int state = lexer.yystate();
+        int lastCheckpoint = resume - CHECKPOINT_INTERVAL;
+        int damageEnd = previous != null ? previous.getDamageEnd() : 0;
+        int oldCheckpoint = 0;
+        int tokenCount = 0;
+        HighlightTokenType lastType = highlightSpans.size() > 0
+                ? highlightSpans.getType(highlightSpans.size() - 1) : null;
+        // 词法分析器直接把记号写进这里, 不必为每个记号创建对象
+        TokenHolder token = new TokenHolder();
+        lexer.setTokenSink(token);
         LanguageToken languageToken;
         try {
             while (((languageToken = lexer.advance()) != null) && !flag.isSet()) {
-                switch (languageToken.type) {
-                    case KEYWORD2:
-                    case KEYWORD:
-                        highlightSpans.add(new HighlightSpan(languageToken.start, HighlightTokenType.KEYWORD));
-                        break;
-                    case OPERATOR:
-                        highlightSpans.add(new HighlightSpan(languageToken.start, HighlightTokenType.KEYWORD));
-                        break;
-                    case STRING2:
-                    case STRING:
-                        highlightSpans.add(new HighlightSpan(languageToken.start, HighlightTokenType.SYMBOL));
-                        break;
-                    case NUMBER:
-                        highlightSpans.add(new HighlightSpan(languageToken.start, HighlightTokenType.SYMBOL));
-                        break;
-                    case TYPE3:
-                    case TYPE2:
-                    case TYPE:
-                        highlightSpans.add(new HighlightSpan(languageToken.start, HighlightTokenType.TYPE));
-                        break;
-                    case IDENTIFIER:
-                        highlightSpans.add(new HighlightSpan(languageToken.start, HighlightTokenType.NORMAL));
-                        break;
-                    case COMMENT2:
-                    case COMMENT:
-                        highlightSpans.add(new HighlightSpan(languageToken.start, HighlightTokenType.COMMENT));
-                        break;
-                    default:
-                        highlightSpans.add(new HighlightSpan(languageToken.start, HighlightTokenType.NORMAL));
+                if (languageToken != JFlexLexer.EMITTED) {
+                    //词法分析器自己创建了记号
+                    token.token(languageToken.type, languageToken.start, languageToken.length,
+                            languageToken.pairValue);
+                }
+                if (token.start >= limit
+                        || ((++tokenCount & DEADLINE_CHECK_MASK) == 0 && flag.isCancelled())) {
+                    break;
+                }
+                if (resume >= nextProgress) {
+                    nextProgress = listener.onLexProgress(highlightSpans, resume);
+                }
+                if (previous != null && resume > damageEnd) {
+                    // 后面的文本没有变, 回到上次经过的同一位置和状态, 结果就会和上次相同
+                    int count = previous.getCheckpointCount();
+                    while (oldCheckpoint < count && previous.getCheckpointOffset(oldCheckpoint) < resume) {
+                        ++oldCheckpoint;
+                    }
+                    if (oldCheckpoint < count
+                            && previous.getCheckpointOffset(oldCheckpoint) == resume
+                            && previous.getCheckpointState(oldCheckpoint) == state) {
+                        highlightSpans.addAll(previous,
+                                previous.getCheckpointSpan(oldCheckpoint), previous.size());
                         break;
+                    }
+                }
+                boolean checkpoint = recordCheckpoints && resume - lastCheckpoint >= CHECKPOINT_INTERVAL;
+                if (checkpoint) {
+                    highlightSpans.addCheckpoint(highlightSpans.size(), state,
+                            token.start - resume);
+                    lastCheckpoint = resume;
+                }
+
+                HighlightTokenType type = typeMap[token.type.ordinal()];
+                if (checkpoint || type != lastType) {
+                    highlightSpans.add(token.start, type);
+                    lastType = type;
                 }
+                resume = token.start + token.length;
+                state = lexer.yystate();
             }
         } catch (Throwable ignored) {
         }
+        lexer.setTokenSink(null);
 
         try {
             lexer.yyclose();
@@ -59,11 +207,23 @@ public class TokenConverter {
         }
 
         if (highlightSpans.size() == 0) {
-            highlightSpans.add(HighlightSpan.FIRST_TOKEN);
+            highlightSpans.add(start, HighlightTokenType.NORMAL);
         }
-        return highlightSpans;
-
     }
 
+    /**
+     * 保存词法分析器刚送来的一个记号, 每次分析复用同一个
+     */
+    private static final class TokenHolder implements TokenSink {
+        LanguageTokenType type;
+        int start;
+        int length;
 
+        @Override
+        public void token(LanguageTokenType type, int start, int length, byte pairValue) {
+            this.type = type;
+            this.start = start;
+            this.length = length;
+        }
+    }
 }
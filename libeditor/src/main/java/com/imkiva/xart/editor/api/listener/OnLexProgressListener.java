@@ -0,0 +1,14 @@
+package com.imkiva.xart.editor.api.listener;
+
+import com.imkiva.xart.editor.api.lexer.HighlightSpanList;
+
+public interface OnLexProgressListener {
+    /**
+     * 词法分析进行到 lexedOffset, 在分析线程上调用
+     *
+     * @param spans       目前的结果, 之后还会继续追加, 只能在本方法内读取
+     * @param lexedOffset 已经分析到的位置, 之前的结果不会再变
+     * @return 分析到哪里时再次调用本方法
+     */
+    int onLexProgress(HighlightSpanList spans, int lexedOffset);
+}
@@ -30,7 +30,16 @@ public class Skin {
     }
 
     public int getTokenColor(HighlightSpan highlightSpan) {
-        HighlightTokenType highlightTokenType = highlightSpan != null ? highlightSpan.getHighlightTokenType() : HighlightTokenType.NORMAL;
+        if (highlightSpan == null) {
+            return getTokenColor(HighlightTokenType.NORMAL, 0);
+        }
+        return getTokenColor(highlightSpan.getHighlightTokenType(), highlightSpan.getColor());
+    }
+
+    /**
+     * @param color 自定义颜色, 只在类型为 NOT_USE 时使用
+     */
+    public int getTokenColor(HighlightTokenType highlightTokenType, int color) {
         Colorable element = Colorable.FOREGROUND;
         switch (highlightTokenType) {
             case KEYWORD:
@@ -55,7 +64,7 @@ public class Skin {
                 element = Colorable.KEYWORD;
                 break;
             case NOT_USE:
-                return highlightSpan.getColor();
+                return color;
 
         }
         return getColor(element);
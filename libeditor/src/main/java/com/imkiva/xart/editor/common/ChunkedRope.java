@@ -0,0 +1,243 @@
+package com.imkiva.xart.editor.common;
+
+import com.imkiva.xart.language.ParserDefinition;
+
+import java.util.Arrays;
+
+/**
+ * A storage engine that keeps the text as a sequence of chunks in a
+ * balanced tree, so an edit costs O(log n + CHUNK_SIZE) no matter where it
+ * lands, and nothing ever copies or regrows the whole text.
+ * <p>
+ * A chunk is a region of a char array. Owned chunks are small arrays of
+ * CHUNK_SIZE chars that are edited in place. Shared chunks are slices of a
+ * bigger array, such as the buffer handed to {@link #setContents(char[], int)},
+ * and are never written to: an edit inside a shared chunk splits it into
+ * slices around a new owned chunk instead of copying it, unless it is small
+ * enough to be copied into an owned chunk.
+ * <p>
+ * {@link #snapshot()} shares every chunk with the new rope and turns them all
+ * into shared chunks, so a snapshot costs O(number of chunks) and the next
+ * edit of a chunk copies at most CHUNK_SIZE chars.
+ */
+public class ChunkedRope implements ITextStorage {
+    static final int CHUNK_SIZE = 4096;
+
+    /**
+     * Chunk lengths, in text order
+     */
+    private final LengthTree _chunks;
+    // per chunk payload, indexed by slot
+    private char[][] _arrays;
+    private int[] _starts;
+    private boolean[] _owned;
+
+    public ChunkedRope() {
+        _chunks = new LengthTree();
+        setContents(new char[0], 0);
+    }
+
+    private ChunkedRope(ChunkedRope source) {
+        _chunks = new LengthTree(source._chunks);
+        _arrays = source._arrays.clone();
+        _starts = source._starts.clone();
+        _owned = new boolean[_arrays.length];
+    }
+
+    @Override
+    public ITextStorage snapshot() {
+        // readers never look at _owned, so this is safe under a read lock
+        Arrays.fill(_owned, false);
+        return new ChunkedRope(this);
+    }
+
+    @Override
+    public void setContents(char[] buffer, int textSize) {
+        _chunks.clear();
+        _arrays = new char[_chunks.getSlotCapacity()][];
+        _starts = new int[_chunks.getSlotCapacity()];
+        _owned = new boolean[_chunks.getSlotCapacity()];
+
+        if (buffer.length > textSize) {
+            buffer[textSize] = ParserDefinition.EOF;
+            newChunk(0, buffer, 0, textSize + 1, false);
+        } else {
+            if (textSize > 0) {
+                newChunk(0, buffer, 0, textSize, false);
+            }
+            char[] eof = new char[CHUNK_SIZE];
+            eof[0] = ParserDefinition.EOF;
+            newChunk(_chunks.size(), eof, 0, 1, true);
+        }
+    }
+
+    @Override
+    public int length() {
+        return _chunks.total();
+    }
+
+    @Override
+    public char charAt(int offset) {
+        long location = _chunks.locate(offset);
+        int slot = (int) (location >>> 32);
+        return _arrays[slot][_starts[slot] + (int) location];
+    }
+
+    @Override
+    public void getChars(int offset, int count, char[] dst, int dstBegin) {
+        int index = _chunks.indexOf(offset);
+        int within = offset - _chunks.sumBefore(index);
+        while (count > 0) {
+            int slot = _chunks.slotAt(index);
+            int n = Math.min(count, _chunks.getBySlot(slot) - within);
+            System.arraycopy(_arrays[slot], _starts[slot] + within, dst, dstBegin, n);
+            dstBegin += n;
+            count -= n;
+            within = 0;
+            ++index;
+        }
+    }
+
+    @Override
+    public void visitRegions(int offset, int count, RegionVisitor visitor) {
+        int index = _chunks.indexOf(offset);
+        int within = offset - _chunks.sumBefore(index);
+        while (count > 0) {
+            int slot = _chunks.slotAt(index);
+            int n = Math.min(count, _chunks.getBySlot(slot) - within);
+            int from = _starts[slot] + within;
+            visitor.visit(_arrays[slot], from, from + n);
+            count -= n;
+            within = 0;
+            ++index;
+        }
+    }
+
+    @Override
+    public void insert(int offset, char[] src, int srcBegin, int count) {
+        int index = _chunks.indexOf(offset);
+        int within;
+        if (index < 0) {
+            // appending past the last chunk
+            index = _chunks.size();
+            within = 0;
+        } else {
+            within = offset - _chunks.sumBefore(index);
+        }
+
+        if (within == 0 && index > 0) {
+            // typing at the end of a chunk: grow that chunk rather than the next one
+            int previous = _chunks.slotAt(index - 1);
+            int length = _chunks.getBySlot(previous);
+            if (length + count <= CHUNK_SIZE) {
+                System.arraycopy(src, srcBegin, writableArray(previous, length), length, count);
+                _chunks.add(index - 1, count);
+                return;
+            }
+        }
+
+        if (index < _chunks.size()) {
+            int slot = _chunks.slotAt(index);
+            int length = _chunks.getBySlot(slot);
+            if (length + count <= CHUNK_SIZE) {
+                char[] array = writableArray(slot, length);
+                System.arraycopy(array, within, array, within + count, length - within);
+                System.arraycopy(src, srcBegin, array, within, count);
+                _chunks.add(index, count);
+                return;
+            }
+
+            if (within > 0) {
+                splitChunk(index, slot, within);
+                ++index;
+            }
+        }
+        while (count > 0) {
+            int n = Math.min(count, CHUNK_SIZE);
+            char[] array = new char[CHUNK_SIZE];
+            System.arraycopy(src, srcBegin, array, 0, n);
+            newChunk(index, array, 0, n, true);
+            srcBegin += n;
+            count -= n;
+            ++index;
+        }
+    }
+
+    @Override
+    public void delete(int offset, int count) {
+        int index = _chunks.indexOf(offset);
+        int within = offset - _chunks.sumBefore(index);
+        while (count > 0) {
+            int slot = _chunks.slotAt(index);
+            int length = _chunks.getBySlot(slot);
+            int n = Math.min(count, length - within);
+
+            if (n == length) {
+                _arrays[slot] = null;
+                _chunks.remove(index, 1);
+            } else if (within + n == length) {
+                // suffix
+                _chunks.add(index, -n);
+                ++index;
+                within = 0;
+            } else if (within == 0 && !_owned[slot]) {
+                _starts[slot] += n;
+                _chunks.add(index, -n);
+            } else if (length <= CHUNK_SIZE) {
+                // prefix or middle, close the hole in place
+                char[] array = writableArray(slot, length);
+                System.arraycopy(array, within + n, array, within, length - within - n);
+                _chunks.add(index, -n);
+            } else {
+                // middle of a shared chunk: leave two slices
+                splitChunk(index, slot, within + n);
+                _chunks.add(index, -n);
+            }
+            count -= n;
+        }
+    }
+
+    /**
+     * Cuts the chunk at index so that it keeps its first `at` chars and the
+     * rest becomes a new chunk right after it
+     */
+    private void splitChunk(int index, int slot, int at) {
+        int length = _chunks.getBySlot(slot);
+        _chunks.set(index, at);
+        if (_owned[slot]) {
+            char[] tail = new char[CHUNK_SIZE];
+            System.arraycopy(_arrays[slot], at, tail, 0, length - at);
+            newChunk(index + 1, tail, 0, length - at, true);
+        } else {
+            newChunk(index + 1, _arrays[slot], _starts[slot] + at, length - at, false);
+        }
+    }
+
+    /**
+     * @return The array of the chunk at slot, first copied into a new owned
+     * array if the chunk is shared. The chunk must fit in CHUNK_SIZE.
+     */
+    private char[] writableArray(int slot, int length) {
+        if (!_owned[slot]) {
+            char[] array = new char[CHUNK_SIZE];
+            System.arraycopy(_arrays[slot], _starts[slot], array, 0, length);
+            _arrays[slot] = array;
+            _starts[slot] = 0;
+            _owned[slot] = true;
+        }
+        return _arrays[slot];
+    }
+
+    private void newChunk(int index, char[] array, int start, int length, boolean owned) {
+        int slot = _chunks.insert(index, length);
+        int capacity = _chunks.getSlotCapacity();
+        if (capacity > _arrays.length) {
+            _arrays = Arrays.copyOf(_arrays, capacity);
+            _starts = Arrays.copyOf(_starts, capacity);
+            _owned = Arrays.copyOf(_owned, capacity);
+        }
+        _arrays[slot] = array;
+        _starts[slot] = start;
+        _owned[slot] = owned;
+    }
+}
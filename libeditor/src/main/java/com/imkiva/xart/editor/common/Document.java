@@ -3,44 +3,162 @@ package com.imkiva.xart.editor.common;
 /**
  * A decorator of TextBuffer that adds word-wrap capabilities.
  * <p>
- * Positions for word wrap row breaks are stored here.
- * Word-wrap is enabled by default.
+ * Positions for word wrap row breaks are stored here, in a {@link RowIndex}
+ * kept in step with every edit. Word-wrap is off until
+ * {@link #setWordWrap(int, CharAdvance)} is given a width.
  */
 public class Document extends TextBuffer {
 
     /**
-     * Contains info related to printing of characters, display size and so on
+     * Supplies the advance of a char, in the same unit as the wrap width
      */
+    public interface CharAdvance {
+        int getAdvance(char c);
+    }
 
     /**
      * A table containing the character offset of every row in the document.
-     * Values are valid only in word-wrap mode
+     * Null unless in word-wrap mode
      */
+    private RowIndex _rowIndex;
+
     public Document() {
         super();
     }
 
+    public Document(ITextStorage storage) {
+        super(storage);
+    }
+
+    /**
+     * Copies the current text of source, see {@link TextBuffer#TextBuffer(TextBuffer, boolean)}
+     */
+    Document(Document source, boolean copySpans) {
+        super(source, copySpans);
+    }
+
+    /**
+     * Texts at least this long are stored in a {@link ChunkedRope}
+     */
+    public static final int ROPE_THRESHOLD = 4 * 1024 * 1024;
+
+    /**
+     * Creates a document with the storage engine best suited to hold
+     * textSize chars
+     */
+    public static Document createForTextSize(int textSize) {
+        if (textSize >= ROPE_THRESHOLD) {
+            return new Document(new ChunkedRope());
+        }
+        return new Document();
+    }
+
+    /**
+     * Freezes the current text for background work such as lexing, search or
+     * saving. The snapshot is read-only and keeps {@link #getRevision()} of
+     * the moment it was taken, while this document can go on being edited.
+     * <p>
+     * The snapshot shares the text with this document and is cheap to take:
+     * a {@link GapBuffer} copies its buffer on the first edit that would
+     * overwrite text the snapshot reads, a {@link ChunkedRope} copies only the
+     * chunks either side edits.
+     */
+    public Document snapshot() {
+        return snapshot(false);
+    }
+
+    /**
+     * Same as {@link #snapshot()}. If withSpans, the snapshot also gets a
+     * copy of the current spans, taken together with the text so that their
+     * offsets match it.
+     */
+    public Document snapshot(boolean withSpans) {
+        return new DocumentSnapshot(this, withSpans);
+    }
+
+    /**
+     * Turns word wrap on with rows at most width wide, or off if width is not
+     * positive. Lines are measured lazily, so this is cheap even for a long
+     * document; call it again after a font change.
+     *
+     * @param advance Measures chars for the width; ignored when turning wrap off
+     */
+    public void setWordWrap(int width, CharAdvance advance) {
+        _rowIndex = width > 0 ? new RowIndex(this, width, advance) : null;
+    }
+
+    public boolean isWordWrap() {
+        return _rowIndex != null;
+    }
+
+    /**
+     * @return The wrap width, or 0 if word wrap is off
+     */
+    public int getWrapWidth() {
+        return _rowIndex != null ? _rowIndex.getWidth() : 0;
+    }
+
+    /**
+     * Returns the number of rows. Lines not measured yet are counted by an
+     * estimate, see {@link #ensureRowsMeasured(int, int)}. Without word wrap
+     * every line is one row.
+     */
+    public int getRowCount() {
+        return _rowIndex != null ? _rowIndex.getRowCount() : getLineCount();
+    }
+
+    /**
+     * @return The offset of the first char of row, or -1 if the row does not exist
+     */
+    public int getRowOffset(int rowNumber) {
+        return _rowIndex != null ? _rowIndex.getRowOffset(rowNumber) : getLineOffset(rowNumber);
+    }
+
+    /**
+     * @return The row that charOffset is on, or -1 if charOffset is invalid
+     */
+    public int findRowNumber(int charOffset) {
+        return _rowIndex != null ? _rowIndex.findRowNumber(charOffset) : findLineNumber(charOffset);
+    }
+
+    /**
+     * Measures the rows of lines [firstLine, lastLine], typically the visible
+     * ones, so that row numbers around them are exact. Lines elsewhere stay
+     * estimated until needed.
+     */
+    public void ensureRowsMeasured(int firstLine, int lastLine) {
+        if (_rowIndex != null) {
+            _rowIndex.ensureLines(firstLine, lastLine);
+        }
+    }
+
+    @Override
+    void onLinesReplaced(int line, int oldCount, int newCount) {
+        if (_rowIndex != null) {
+            _rowIndex.onLinesReplaced(line, oldCount, newCount);
+        }
+    }
 
     @Override
-    public synchronized void delete(int charOffset, int totalChars, long timestamp, boolean undoable) {
+    public void delete(int charOffset, int totalChars, long timestamp, boolean undoable) {
         super.delete(charOffset, totalChars, timestamp, undoable);
 
     }
 
     @Override
-    public synchronized void insert(char[] c, int charOffset, long timestamp, boolean undoable) {
+    public void insert(char[] c, int charOffset, long timestamp, boolean undoable) {
         super.insert(c, charOffset, timestamp, undoable);
     }
 
     @Override
     /**
-     * Moves _gapStartIndex by displacement units. Note that displacement can be
-     * negative and will move _gapStartIndex to the left.
+     * Moves the gap start by displacement units. Note that displacement can be
+     * negative and will move the gap start to the left.
      *
      * Only UndoStack should use this method to carry out a simple undo/redo
      * of insertions/deletions. No error checking is done.
      */
-    synchronized void shiftGapStart(int displacement) {
+    void shiftGapStart(int displacement) {
         super.shiftGapStart(displacement);
     }
 
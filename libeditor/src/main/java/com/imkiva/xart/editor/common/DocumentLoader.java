@@ -0,0 +1,310 @@
+package com.imkiva.xart.editor.common;
+
+import com.imkiva.xart.editor.api.lexer.Flag;
+import com.imkiva.xart.language.ParserDefinition;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/**
+ * Reads a Document from a byte stream in a single pass.
+ * <p>
+ * The encoding is taken from a byte order mark, or guessed from the first
+ * block of input when it is {@link EncodingScheme#TEXT_ENCODING_AUTO}. Bytes
+ * are decoded straight into the array that becomes the document storage,
+ * pre-sized from the input size. Line breaks are normalized to
+ * {@link ParserDefinition#NEWLINE} in place while line lengths are collected,
+ * so the document never has to scan the text again.
+ * <p>
+ * A loader can be reused, but not by several threads at once.
+ */
+public class DocumentLoader {
+    private static final int BYTE_BUFFER_SIZE = 64 * 1024;
+    /**
+     * Char capacity to start with when the input size is unknown
+     */
+    private static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    private String _encoding = EncodingScheme.TEXT_ENCODING_AUTO;
+    private ProgressListener _progressListener;
+    private Flag _abort;
+
+    // decoding state
+    private String _detectedEOL;
+    private boolean _afterCR;
+    private boolean _eolUndecided;
+    private int[] _lineLengths;
+    private int _lineCount;
+    private int _lineStart;
+
+    /**
+     * @param encoding One of the EncodingScheme encodings; TEXT_ENCODING_AUTO,
+     *                 the default, detects it
+     */
+    public void setEncoding(String encoding) {
+        _encoding = encoding;
+    }
+
+    public void setProgressListener(ProgressListener progressListener) {
+        _progressListener = progressListener;
+    }
+
+    /**
+     * @param abort Checked after every block; if set, loading stops and
+     *              load() returns null
+     */
+    public void setAbortFlag(Flag abort) {
+        _abort = abort;
+    }
+
+    public Document load(FileChannel channel) throws IOException {
+        return load(channel, channel.size() - channel.position());
+    }
+
+    /**
+     * @param sizeHint Number of bytes expected from in, or -1 if unknown
+     */
+    public Document load(InputStream in, long sizeHint) throws IOException {
+        return load(Channels.newChannel(in), sizeHint);
+    }
+
+    /**
+     * @return The document, or null if loading was aborted
+     */
+    public Document load(ReadableByteChannel channel, long sizeHint) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(BYTE_BUFFER_SIZE);
+        long bytesRead = 0;
+        boolean endOfInput = false;
+        while (!endOfInput && bytes.hasRemaining()) {
+            int n = channel.read(bytes);
+            if (n < 0) {
+                endOfInput = true;
+            } else {
+                bytesRead += n;
+            }
+        }
+        bytes.flip();
+
+        String encoding = detectEncoding(bytes, _encoding, endOfInput);
+        boolean byteOrderMark = bytes.position() > 0;
+        CharsetDecoder decoder = Charset.forName(encoding).newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        char[] contents = new char[initialCapacity(encoding, sizeHint)];
+        int textSize = 0;
+        beginLines();
+
+        while (true) {
+            // keep the last slot free for the EOF sentinel
+            CharBuffer out = CharBuffer.wrap(contents, textSize, contents.length - 1 - textSize);
+            CoderResult result = decoder.decode(bytes, out, endOfInput);
+            textSize = normalizeLines(contents, textSize, out.position());
+
+            if (result.isOverflow()) {
+                contents = grow(contents);
+                continue;
+            }
+            if (endOfInput) {
+                break;
+            }
+            if (_abort != null && _abort.isSet()) {
+                return null;
+            }
+            if (_progressListener != null) {
+                _progressListener.onProgress(bytesRead, sizeHint);
+            }
+
+            bytes.compact();
+            int n = channel.read(bytes);
+            if (n < 0) {
+                endOfInput = true;
+            } else {
+                bytesRead += n;
+            }
+            bytes.flip();
+        }
+
+        while (true) {
+            CharBuffer out = CharBuffer.wrap(contents, textSize, contents.length - 1 - textSize);
+            CoderResult result = decoder.flush(out);
+            textSize = normalizeLines(contents, textSize, out.position());
+            if (!result.isOverflow()) {
+                break;
+            }
+            contents = grow(contents);
+        }
+        if (_progressListener != null) {
+            _progressListener.onProgress(bytesRead, sizeHint);
+        }
+
+        // multi-byte input leaves a lot of unused room; don't keep it around
+        int needed = TextBuffer.memoryNeeded(textSize);
+        if (contents.length - needed > textSize / 2) {
+            contents = Arrays.copyOf(contents, needed);
+        }
+
+        pushLine(textSize - _lineStart + 1); // last line ends with EOF
+        if (_eolUndecided) {
+            // the text ends with its first line break, a CR
+            _detectedEOL = EncodingScheme.LINE_BREAK_CR;
+        }
+        String eol = _detectedEOL != null ? _detectedEOL : EncodingScheme.LINE_BREAK_LF;
+        Document document = Document.createForTextSize(textSize);
+        document.setBuffer(contents, encoding, eol, byteOrderMark, textSize, _lineLengths, _lineCount);
+        _lineLengths = null;
+        return document;
+    }
+
+    /**
+     * Resolves the encoding of the text starting at the position of bytes,
+     * and skips the byte order mark, if any
+     *
+     * @param requested  The encoding asked for, or TEXT_ENCODING_AUTO
+     * @param endOfInput Whether bytes holds the whole input
+     */
+    static String detectEncoding(ByteBuffer bytes, String requested, boolean endOfInput) {
+        int p = bytes.position();
+        int remaining = bytes.remaining();
+        if (remaining >= 3 && (bytes.get(p) & 0xFF) == 0xEF
+                && (bytes.get(p + 1) & 0xFF) == 0xBB && (bytes.get(p + 2) & 0xFF) == 0xBF) {
+            bytes.position(p + 3);
+            return EncodingScheme.TEXT_ENCODING_UTF8;
+        }
+        if (remaining >= 2) {
+            int b0 = bytes.get(p) & 0xFF;
+            int b1 = bytes.get(p + 1) & 0xFF;
+            if (b0 == 0xFE && b1 == 0xFF) {
+                bytes.position(p + 2);
+                return EncodingScheme.TEXT_ENCODING_UTF16BE;
+            }
+            if (b0 == 0xFF && b1 == 0xFE) {
+                bytes.position(p + 2);
+                return EncodingScheme.TEXT_ENCODING_UTF16LE;
+            }
+        }
+        if (!requested.equals(EncodingScheme.TEXT_ENCODING_AUTO)) {
+            return requested;
+        }
+
+        // anything that is not valid UTF-8 is taken as Latin-1, which accepts every byte
+        CharsetDecoder utf8 = Charset.forName(EncodingScheme.TEXT_ENCODING_UTF8).newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        CharBuffer scratch = CharBuffer.allocate(remaining);
+        CoderResult result = utf8.decode(bytes.duplicate(), scratch, endOfInput);
+        return result.isError()
+                ? EncodingScheme.TEXT_ENCODING_LATIN1
+                : EncodingScheme.TEXT_ENCODING_UTF8;
+    }
+
+    private static int initialCapacity(String encoding, long sizeHint) {
+        if (sizeHint < 0) {
+            return TextBuffer.memoryNeeded(DEFAULT_CAPACITY);
+        }
+        // no supported encoding produces more chars than bytes
+        long chars = sizeHint;
+        if (encoding.equals(EncodingScheme.TEXT_ENCODING_UTF16BE)
+                || encoding.equals(EncodingScheme.TEXT_ENCODING_UTF16LE)) {
+            chars = sizeHint / 2;
+        }
+        int capacity = TextBuffer.memoryNeeded((int) Math.min(chars, Integer.MAX_VALUE - 1024));
+        if (capacity < 0) {
+            throw new OutOfMemoryError("File too large: " + sizeHint + " bytes");
+        }
+        return capacity;
+    }
+
+    private static char[] grow(char[] contents) {
+        long newLength = (long) contents.length << 1;
+        if (newLength > Integer.MAX_VALUE - 8) {
+            throw new OutOfMemoryError("File too large");
+        }
+        return Arrays.copyOf(contents, (int) newLength);
+    }
+
+    //---------------------------------------------------------------------
+    // Line breaks
+
+    private void beginLines() {
+        _detectedEOL = null;
+        _afterCR = false;
+        _eolUndecided = false;
+        _lineLengths = new int[1024];
+        _lineCount = 0;
+        _lineStart = 0;
+    }
+
+    /**
+     * Rewrites the freshly decoded chars contents[from, to) so that every
+     * CRLF and lone CR becomes NEWLINE, and records the lines they end.
+     *
+     * @return The new end of the text
+     */
+    private int normalizeLines(char[] contents, int from, int to) {
+        int w = from;
+        for (int r = from; r < to; ++r) {
+            char c = contents[r];
+            if (_eolUndecided) {
+                _detectedEOL = c == ParserDefinition.NEWLINE
+                        ? EncodingScheme.LINE_BREAK_CRLF
+                        : EncodingScheme.LINE_BREAK_CR;
+                _eolUndecided = false;
+            }
+
+            if (c == ParserDefinition.NEWLINE) {
+                if (_afterCR) {
+                    // the CR before it already ended the line
+                    _afterCR = false;
+                    continue;
+                }
+                if (_detectedEOL == null) {
+                    _detectedEOL = EncodingScheme.LINE_BREAK_LF;
+                }
+            } else if (c == '\r') {
+                c = ParserDefinition.NEWLINE;
+                _afterCR = true;
+                if (_detectedEOL == null) {
+                    _eolUndecided = true;
+                }
+            } else {
+                _afterCR = false;
+            }
+
+            contents[w++] = c;
+            if (c == ParserDefinition.NEWLINE) {
+                pushLine(w - _lineStart);
+                _lineStart = w;
+            }
+        }
+        return w;
+    }
+
+    private void pushLine(int length) {
+        if (_lineCount == _lineLengths.length) {
+            _lineLengths = Arrays.copyOf(_lineLengths, _lineCount << 1);
+        }
+        _lineLengths[_lineCount++] = length;
+    }
+
+    /**
+     * Receives the progress of a load
+     */
+    public interface ProgressListener {
+        /**
+         * @param bytesRead  Number of bytes read so far
+         * @param totalBytes Expected total, or -1 if unknown
+         */
+        void onProgress(long bytesRead, long totalBytes);
+    }
+}
@@ -1,10 +1,12 @@
 package com.imkiva.xart.editor.common;
 
 import com.imkiva.xart.language.ParserDefinition;
-import com.imkiva.xart.editor.api.lexer.HighlightSpan;
+import com.imkiva.xart.editor.api.lexer.Flag;
+import com.imkiva.xart.editor.api.lexer.HighlightSpanList;
 import com.imkiva.xart.editor.api.listener.OnEditActionListener;
 
-import java.util.List;
+import java.io.IOException;
+import java.io.OutputStream;
 
 
 /**
@@ -20,11 +22,22 @@ import java.util.List;
  * to be notified. Implement a publish/subscribe interface if required.
  */
 public class DocumentProvider {
+    /**
+     * Number of chars next() copies out of the document at a time
+     */
+    private static final int WINDOW_SIZE = 256;
     private final Document _theText;
     /**
      * Current position in the text. Range [ 0, _theText.getTextLength() )
      */
     private int _currIndex;
+    /**
+     * Chars [_windowStart, _windowEnd) of the text, copied in one locked call
+     * so that iterating doesn't lock the document for every char
+     */
+    private char[] _window;
+    private int _windowStart;
+    private int _windowEnd;
 
     public DocumentProvider() {
         _currIndex = 0;
@@ -48,6 +61,33 @@ public class DocumentProvider {
         return _theText.subSequence(charOffset, maxChars);
     }
 
+    /**
+     * Copy up to count chars starting from charOffset into dst without allocating
+     *
+     * @return The number of chars copied
+     */
+    public int getChars(int charOffset, int count, char[] dst, int dstBegin) {
+        return _theText.getChars(charOffset, count, dst, dstBegin);
+    }
+
+    /**
+     * @return A view of the whole text that reads the document in place
+     */
+    public TextCharSequence getCharSequence() {
+        return _theText.getCharSequence();
+    }
+
+    public TextCharSequence getLineSequence(int lineNumber) {
+        return _theText.getLineSequence(lineNumber);
+    }
+
+    /**
+     * @return A Reader over the whole text that reads the document in place
+     */
+    public TextReader getReader() {
+        return _theText.getReader();
+    }
+
     public char charAt(int charOffset) {
         if (_theText.isValid(charOffset)) {
             return _theText.charAt(charOffset);
@@ -83,6 +123,7 @@ public class DocumentProvider {
      * @return startingChar, or -1 if startingChar does not exist
      */
     public int seekChar(int startingChar) {
+        invalidateWindow();
         if (_theText.isValid(startingChar)) {
             _currIndex = startingChar;
         } else {
@@ -92,6 +133,9 @@ public class DocumentProvider {
     }
 
     public boolean hasNext() {
+        if (_currIndex >= _windowStart && _currIndex < _windowEnd) {
+            return true;
+        }
         return (_currIndex >= 0 &&
                 _currIndex < _theText.getTextLength());
     }
@@ -111,11 +155,33 @@ public class DocumentProvider {
      * @return Next character
      */
     public char next() {
-        char nextChar = _theText.charAt(_currIndex);
+        if (_currIndex < _windowStart || _currIndex >= _windowEnd) {
+            fillWindow(_currIndex);
+        }
+        char nextChar = _window[_currIndex - _windowStart];
         ++_currIndex;
         return nextChar;
     }
 
+    private void fillWindow(int charOffset) {
+        if (_window == null) {
+            _window = new char[WINDOW_SIZE];
+        }
+        int count = _theText.getChars(charOffset, WINDOW_SIZE, _window, 0);
+        if (count == 0) {
+            // out of bounds; keep the unchecked behaviour of charAt
+            _window[0] = _theText.charAt(charOffset);
+            count = 1;
+        }
+        _windowStart = charOffset;
+        _windowEnd = charOffset + count;
+    }
+
+    private void invalidateWindow() {
+        _windowStart = 0;
+        _windowEnd = 0;
+    }
+
     public char peek(int jump) {
         return _theText.charAt(_currIndex + jump);
     }
@@ -134,6 +200,7 @@ public class DocumentProvider {
         char[] a = new char[1];
         a[0] = c;
         _theText.insert(a, insertionPoint, timestamp, true);
+        invalidateWindow();
 
         if (onEditActionListener != null) {
             onEditActionListener.onInsert(insertionPoint);
@@ -153,6 +220,7 @@ public class DocumentProvider {
         }
 
         _theText.insert(cArray, insertionPoint, timestamp, true);
+        invalidateWindow();
 
         if (onEditActionListener != null) {
             onEditActionListener.onInsert(insertionPoint);
@@ -168,6 +236,7 @@ public class DocumentProvider {
             return;
         }
         _theText.delete(deletionPoint, 1, timestamp, true);
+        invalidateWindow();
         if (onEditActionListener != null) {
             onEditActionListener.onDelete(deletionPoint, 1);
         }
@@ -184,6 +253,7 @@ public class DocumentProvider {
         }
         int totalChars = Math.min(maxChars, _theText.getTextLength() - deletionPoint);
         _theText.delete(deletionPoint, totalChars, time, true);
+        invalidateWindow();
 
         if (onEditActionListener != null) {
             onEditActionListener.onDelete(deletionPoint, maxChars);
@@ -221,6 +291,47 @@ public class DocumentProvider {
         return _theText.getTextLength();
     }
 
+    /**
+     * Returns a provider over a read-only snapshot of the document, for
+     * reading it on another thread while this one is edited
+     *
+     * @see Document#snapshot()
+     */
+    public DocumentProvider snapshot() {
+        return new DocumentProvider(_theText.snapshot());
+    }
+
+    /**
+     * Same as {@link #snapshot()}, optionally with a copy of the spans that
+     * matches the snapshot text
+     *
+     * @see Document#snapshot(boolean)
+     */
+    public DocumentProvider snapshot(boolean withSpans) {
+        return new DocumentProvider(_theText.snapshot(withSpans));
+    }
+
+    /**
+     * Returns the revision of the document, which grows with every edit
+     */
+    public long getRevision() {
+        return _theText.getRevision();
+    }
+
+    /**
+     * @see TextBuffer#visitEdits(long, TextBuffer.EditVisitor)
+     */
+    public boolean visitEdits(long revision, TextBuffer.EditVisitor visitor) {
+        return _theText.visitEdits(revision, visitor);
+    }
+
+    /**
+     * Returns whether the document ignores edits
+     */
+    public boolean isReadOnly() {
+        return _theText.isReadOnly();
+    }
+
     /**
      * Returns the character encoding scheme used by the document
      */
@@ -235,6 +346,21 @@ public class DocumentProvider {
         return _theText.getEOLType();
     }
 
+    /**
+     * Returns whether the document was read with a byte order mark
+     */
+    public boolean hasByteOrderMark() {
+        return _theText.hasByteOrderMark();
+    }
+
+    /**
+     * @see TextBuffer#write(OutputStream, String, String, Flag)
+     */
+    public void write(OutputStream byteStream, String encoding, String EOLstyle, Flag abort)
+            throws IOException {
+        _theText.write(byteStream, encoding, EOLstyle, abort);
+    }
+
     //TODO make thread-safe
 
     /**
@@ -249,7 +375,7 @@ public class DocumentProvider {
     /**
      * Beware: Not thread-safe!
      */
-    public List<HighlightSpan> getSpans() {
+    public HighlightSpanList getSpans() {
         return _theText.getSpans();
     }
 
@@ -258,10 +384,10 @@ public class DocumentProvider {
      * Spans are continuous sequences of characters that have the same format
      * like color, font, etc.
      *
-     * @param highlightSpans A collection of Pairs, where Pair.first is the start
-     *              position of the token, and Pair.second is the type of the token.
+     * @param highlightSpans The start position and type of every token, in
+     *                       order of position
      */
-    public void setSpans(List<HighlightSpan> highlightSpans) {
+    public void setSpans(HighlightSpanList highlightSpans) {
         _theText.setSpans(highlightSpans);
     }
 
@@ -274,10 +400,12 @@ public class DocumentProvider {
     }
 
     public int undo() {
+        invalidateWindow();
         return _theText.undo();
     }
 
     public int redo() {
+        invalidateWindow();
         return _theText.redo();
     }
 
@@ -0,0 +1,38 @@
+package com.imkiva.xart.editor.common;
+
+/**
+ * A read-only copy of a Document, made by {@link Document#snapshot()}.
+ * <p>
+ * Edits are ignored and the revision stays the one of the document at the
+ * time of the copy.
+ */
+final class DocumentSnapshot extends Document {
+
+    DocumentSnapshot(Document source, boolean copySpans) {
+        super(source, copySpans);
+    }
+
+    @Override
+    public Document snapshot(boolean withSpans) {
+        return this;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return true;
+    }
+
+    @Override
+    public void insert(char[] c, int charOffset, long timestamp, boolean undoable) {
+    }
+
+    @Override
+    public void delete(int charOffset, int totalChars, long timestamp, boolean undoable) {
+    }
+
+    @Override
+    public void setBuffer(char[] newBuffer, String encoding, String EOLstyle,
+                          int textSize, int lineCount) {
+        throw new UnsupportedOperationException("DocumentSnapshot is read-only");
+    }
+}
@@ -0,0 +1,293 @@
+package com.imkiva.xart.editor.common;
+
+import com.imkiva.xart.language.ParserDefinition;
+
+/**
+ * The default storage engine: a single char array with a movable gap at the
+ * last edit position.
+ * <p>
+ * Consecutive edits around the same position are cheap, and text deleted by
+ * the last edit stays in the gap until it is overwritten, which UndoStack
+ * exploits for lazy undo. Edits that jump far from the gap have to move
+ * everything in between, so for very large texts consider {@link ChunkedRope}.
+ */
+public class GapBuffer implements ITextStorage {
+    // gap size must be > 0 to insert into full buffers successfully
+    protected final static int MIN_GAP_SIZE = 50;
+    protected char[] _contents;
+    protected int _gapStartIndex;
+    /**
+     * One past end of gap
+     */
+    protected int _gapEndIndex;
+    /**
+     * The number of times memory is allocated for the buffer
+     */
+    private int _allocMultiplier;
+    /**
+     * Snapshots share _contents and read the real indices below this one,
+     * see {@link #snapshot()}; -1 if _contents is not shared
+     */
+    private int _sharedEnd = -1;
+
+    public GapBuffer() {
+        _contents = new char[MIN_GAP_SIZE + 1]; // extra char for EOF
+        _contents[MIN_GAP_SIZE] = ParserDefinition.EOF;
+        _allocMultiplier = 1;
+        _gapStartIndex = 0;
+        _gapEndIndex = MIN_GAP_SIZE;
+    }
+
+    /**
+     * @see TextBuffer#memoryNeeded(int)
+     */
+    public static int memoryNeeded(int textSize) {
+        long bufferSize = textSize + MIN_GAP_SIZE + 1; // extra char for EOF
+        if (bufferSize < Integer.MAX_VALUE) {
+            return (int) bufferSize;
+        }
+        return -1;
+    }
+
+    @Override
+    public void setContents(char[] buffer, int textSize) {
+        if (buffer.length <= textSize) {
+            char[] temp = new char[memoryNeeded(textSize)];
+            System.arraycopy(buffer, 0, temp, 0, textSize);
+            buffer = temp;
+        }
+        _contents = buffer;
+        initGap(textSize);
+        _allocMultiplier = 1;
+        _sharedEnd = -1;
+    }
+
+    /**
+     * Shares the buffer with the snapshot instead of copying it. The buffer is
+     * copied by the first edit that would overwrite chars the snapshot reads:
+     * one that moves the gap, or inserts below the gap start of the moment
+     * the snapshot was taken. Typing on at the gap, the common case while a
+     * snapshot is being lexed, copies nothing.
+     */
+    @Override
+    public ITextStorage snapshot() {
+        GapBuffer snapshot = new GapBuffer();
+        snapshot._contents = _contents;
+        snapshot._gapStartIndex = _gapStartIndex;
+        snapshot._gapEndIndex = _gapEndIndex;
+        // the snapshot has no gap of its own to write into
+        snapshot._sharedEnd = Integer.MAX_VALUE;
+        // the gap of the snapshot is unused, and edits don't move _gapEndIndex
+        // without moving the gap, so only chars below the gap start are read
+        _sharedEnd = Math.max(_sharedEnd, _gapStartIndex);
+        return snapshot;
+    }
+
+    @Override
+    public int length() {
+        return _contents.length - gapSize();
+    }
+
+    @Override
+    public char charAt(int offset) {
+        return _contents[logicalToRealIndex(offset)];
+    }
+
+    @Override
+    public void getChars(int offset, int count, char[] dst, int dstBegin) {
+        // at most two copies, one on each side of the gap
+        int end = offset + count;
+        if (offset < _gapStartIndex) {
+            int n = Math.min(end, _gapStartIndex) - offset;
+            System.arraycopy(_contents, offset, dst, dstBegin, n);
+            dstBegin += n;
+            offset += n;
+        }
+        if (offset < end) {
+            System.arraycopy(_contents, offset + gapSize(), dst, dstBegin, end - offset);
+        }
+    }
+
+    @Override
+    public void visitRegions(int offset, int count, RegionVisitor visitor) {
+        int end = offset + count;
+        if (offset < _gapStartIndex) {
+            visitor.visit(_contents, offset, Math.min(end, _gapStartIndex));
+        }
+        if (end > _gapStartIndex) {
+            int from = Math.max(offset, _gapStartIndex) + gapSize();
+            visitor.visit(_contents, from, end + gapSize());
+        }
+    }
+
+    @Override
+    public void insert(int offset, char[] src, int srcBegin, int count) {
+        int insertIndex = logicalToRealIndex(offset);
+
+        // shift gap to insertion point
+        if (insertIndex != _gapEndIndex) {
+            if (isBeforeGap(insertIndex)) {
+                shiftGapLeft(insertIndex);
+            } else {
+                shiftGapRight(insertIndex);
+            }
+        }
+
+        if (count >= gapSize()) {
+            growBufferBy(count - gapSize());
+        } else if (_gapStartIndex < _sharedEnd) {
+            unshare();
+        }
+
+        System.arraycopy(src, srcBegin, _contents, _gapStartIndex, count);
+        _gapStartIndex += count;
+    }
+
+    @Override
+    public void delete(int offset, int count) {
+        int newGapStart = offset + count;
+
+        // shift gap to deletion point
+        if (newGapStart != _gapStartIndex) {
+            if (isBeforeGap(newGapStart)) {
+                shiftGapLeft(newGapStart);
+            } else {
+                shiftGapRight(newGapStart + gapSize());
+            }
+        }
+
+        // increase gap size
+        _gapStartIndex -= count;
+    }
+
+    /**
+     * Gets charCount number of consecutive characters starting from _gapStartIndex.
+     * <p>
+     * Only UndoStack should use this method, through TextBuffer. No error
+     * checking is done.
+     */
+    char[] gapSubSequence(int charCount) {
+        char[] chars = new char[charCount];
+
+        System.arraycopy(_contents, _gapStartIndex, chars, 0, charCount);
+
+        return chars;
+    }
+
+    /**
+     * Moves _gapStartIndex by displacement units. Note that displacement can be
+     * negative and will move _gapStartIndex to the left.
+     * <p>
+     * Only UndoStack should use this method, through TextBuffer. No error
+     * checking is done.
+     */
+    void shiftGapStart(int displacement) {
+        _gapStartIndex += displacement;
+    }
+
+    /**
+     * Logical offset of the gap, which is also the real index of the first
+     * char in the gap
+     */
+    final int getGapStart() {
+        return _gapStartIndex;
+    }
+
+    final char[] getArray() {
+        return _contents;
+    }
+
+    /**
+     * Adjusts gap so that _gapStartIndex is at newGapStart
+     */
+    final protected void shiftGapLeft(int newGapStart) {
+        int n = _gapStartIndex - newGapStart;
+        if (n > 0) {
+            unshare();
+            System.arraycopy(_contents, newGapStart, _contents, _gapEndIndex - n, n);
+            _gapStartIndex -= n;
+            _gapEndIndex -= n;
+        }
+    }
+
+    /**
+     * Adjusts gap so that _gapEndIndex is at newGapEnd
+     */
+    final protected void shiftGapRight(int newGapEnd) {
+        int n = newGapEnd - _gapEndIndex;
+        if (n > 0) {
+            unshare();
+            System.arraycopy(_contents, _gapEndIndex, _contents, _gapStartIndex, n);
+            _gapStartIndex += n;
+            _gapEndIndex += n;
+        }
+    }
+
+    /**
+     * Turn the free space after the contents into the gap and tack a EOF at
+     * the end. The contents stay where they are, so adopting a freshly loaded
+     * buffer costs nothing.
+     * Precondition: real contents are from _contents[0] to _contents[contentsLength-1]
+     */
+    protected void initGap(int contentsLength) {
+        _contents[_contents.length - 1] = ParserDefinition.EOF; // mark end of file
+        _gapStartIndex = contentsLength;
+        _gapEndIndex = _contents.length - 1;
+    }
+
+    /**
+     * Copies _contents into a buffer that is larger by
+     * minIncrement + INITIAL_GAP_SIZE * _allocCount bytes.
+     * <p>
+     * _allocMultiplier doubles on every call to this method, to avoid the
+     * overhead of repeated allocations.
+     */
+    protected void growBufferBy(int minIncrement) {
+        //TODO handle new size > MAX_INT or allocation failure
+        int increasedSize = minIncrement + MIN_GAP_SIZE * _allocMultiplier;
+        char[] temp = new char[_contents.length + increasedSize];
+        System.arraycopy(_contents, 0, temp, 0, _gapStartIndex);
+        System.arraycopy(_contents, _gapEndIndex, temp, _gapEndIndex + increasedSize,
+                _contents.length - _gapEndIndex);
+
+        _gapEndIndex += increasedSize;
+        _contents = temp;
+        _allocMultiplier <<= 1;
+        _sharedEnd = -1;
+    }
+
+    /**
+     * Gives this storage its own copy of a buffer shared with snapshots.
+     * The gap is copied as well, it may still hold text for UndoStack.
+     */
+    private void unshare() {
+        if (_sharedEnd >= 0) {
+            _contents = _contents.clone();
+            _sharedEnd = -1;
+        }
+    }
+
+    final protected int gapSize() {
+        return _gapEndIndex - _gapStartIndex;
+    }
+
+    final protected int logicalToRealIndex(int i) {
+        if (isBeforeGap(i)) {
+            return i;
+        } else {
+            return i + gapSize();
+        }
+    }
+
+    final protected int realToLogicalIndex(int i) {
+        if (isBeforeGap(i)) {
+            return i;
+        } else {
+            return i - gapSize();
+        }
+    }
+
+    final protected boolean isBeforeGap(int i) {
+        return i < _gapStartIndex;
+    }
+}
@@ -0,0 +1,66 @@
+package com.imkiva.xart.editor.common;
+
+/**
+ * Storage engine for the characters of a TextBuffer.
+ * <p>
+ * Offsets are logical character offsets. The stored text always ends with
+ * the EOF sentinel, which is counted by {@link #length()} like any other char.
+ * <p>
+ * TextBuffer does all argument checking and locking; implementations can
+ * assume valid arguments and a single writer.
+ */
+public interface ITextStorage {
+
+    /**
+     * Receives the stored text as a series of contiguous array regions
+     */
+    interface RegionVisitor {
+        /**
+         * @param array The backing array. Must not be modified or retained.
+         * @param from  Start of the region in array, inclusive
+         * @param to    End of the region in array, exclusive
+         */
+        void visit(char[] array, int from, int to);
+    }
+
+    /**
+     * @return The number of stored chars, including the EOF sentinel
+     */
+    int length();
+
+    char charAt(int offset);
+
+    /**
+     * Copies count chars starting from offset into dst, starting at dstBegin
+     */
+    void getChars(int offset, int count, char[] dst, int dstBegin);
+
+    /**
+     * Visits count chars starting from offset, in order, without copying them
+     */
+    void visitRegions(int offset, int count, RegionVisitor visitor);
+
+    /**
+     * Inserts src[srcBegin, srcBegin + count) before offset
+     */
+    void insert(int offset, char[] src, int srcBegin, int count);
+
+    /**
+     * Deletes count chars starting from offset, inclusive
+     */
+    void delete(int offset, int count);
+
+    /**
+     * Replaces the whole content with buffer[0, textSize) followed by the
+     * EOF sentinel. The storage takes ownership of buffer and may use it in
+     * place, so the caller must not touch it afterwards.
+     */
+    void setContents(char[] buffer, int textSize);
+
+    /**
+     * Creates a storage holding the current text that later edits of either
+     * storage don't affect. Called with readers running, so it must not change
+     * what they see.
+     */
+    ITextStorage snapshot();
+}
@@ -0,0 +1,456 @@
+package com.imkiva.xart.editor.common;
+
+import java.util.Arrays;
+
+/**
+ * A sequence of non-negative lengths kept in an implicit treap, so that
+ * positional insert/remove, point updates and prefix sums are all O(log n).
+ * <p>
+ * Nodes live in parallel primitive arrays and are addressed by slot. Slot 0 is
+ * the null node. The slot of an element never changes while the element is in
+ * the tree, so clients may keep per-element payload in their own arrays indexed
+ * by slot (see {@link #getSlotCapacity()}).
+ * <p>
+ * Lookups do not touch any shared scratch state and may run concurrently;
+ * mutations must be externally serialized against everything else.
+ * <p>
+ * Copies share the node arrays with their source. Whichever of them is
+ * changed first takes its own copy of the arrays, so a copy is O(1) and a
+ * read-only copy never pays for one.
+ */
+final class LengthTree {
+    private static final int NIL = 0;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private int[] _left;
+    private int[] _right;
+    private int[] _priority;
+    private int[] _length;
+    /**
+     * Sum of _length over the subtree rooted at a slot
+     */
+    private int[] _sum;
+    /**
+     * Number of nodes in the subtree rooted at a slot
+     */
+    private int[] _count;
+
+    private int _root = NIL;
+    private int _nextSlot = 1;
+    /**
+     * Head of the list of released slots, chained through _left
+     */
+    private int _freeSlots = NIL;
+    private int _seed = 0x2545F491;
+    /**
+     * Whether the node arrays may be shared with a copy, see {@link #unshare()}
+     */
+    private boolean _shared;
+
+    // results of split()
+    private int _splitLeft;
+    private int _splitRight;
+
+    LengthTree() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Creates a copy of source, with the same slots, that shares its arrays
+     * until either of the two is changed. Only writes the shared flag of
+     * source, so it may be called while source is being read.
+     */
+    LengthTree(LengthTree source) {
+        _left = source._left;
+        _right = source._right;
+        _priority = source._priority;
+        _length = source._length;
+        _sum = source._sum;
+        _count = source._count;
+        _shared = true;
+        source._shared = true;
+        _root = source._root;
+        _nextSlot = source._nextSlot;
+        _freeSlots = source._freeSlots;
+        _seed = source._seed;
+    }
+
+    private void allocate(int capacity) {
+        _left = new int[capacity];
+        _right = new int[capacity];
+        _priority = new int[capacity];
+        _length = new int[capacity];
+        _sum = new int[capacity];
+        _count = new int[capacity];
+    }
+
+    /**
+     * Number of elements in the sequence
+     */
+    int size() {
+        return _count[_root];
+    }
+
+    /**
+     * Sum of all lengths in the sequence
+     */
+    int total() {
+        return _sum[_root];
+    }
+
+    /**
+     * Slots are in the range [1, getSlotCapacity())
+     */
+    int getSlotCapacity() {
+        return _left.length;
+    }
+
+    void clear() {
+        _root = NIL;
+        _nextSlot = 1;
+        _freeSlots = NIL;
+        if (_shared || _left.length > INITIAL_CAPACITY) {
+            allocate(INITIAL_CAPACITY);
+            _shared = false;
+        }
+    }
+
+    /**
+     * Replaces the whole sequence with values[from, from + count)
+     */
+    void build(int[] values, int from, int count) {
+        clear();
+        ensureCapacity(count + 1);
+        _root = buildTreap(values, from, count);
+    }
+
+    int get(int index) {
+        return _length[slotAt(index)];
+    }
+
+    int getBySlot(int slot) {
+        return _length[slot];
+    }
+
+    /**
+     * @return The slot holding the element at index. Index must be valid.
+     */
+    int slotAt(int index) {
+        int t = _root;
+        while (true) {
+            int leftCount = _count[_left[t]];
+            if (index < leftCount) {
+                t = _left[t];
+            } else if (index == leftCount) {
+                return t;
+            } else {
+                index -= leftCount + 1;
+                t = _right[t];
+            }
+        }
+    }
+
+    /**
+     * @return The sum of lengths of elements [0, index). index may be size().
+     */
+    int sumBefore(int index) {
+        int t = _root;
+        int acc = 0;
+        while (t != NIL) {
+            int l = _left[t];
+            int leftCount = _count[l];
+            if (index < leftCount) {
+                t = l;
+            } else {
+                acc += _sum[l];
+                if (index == leftCount) {
+                    break;
+                }
+                acc += _length[t];
+                index -= leftCount + 1;
+                t = _right[t];
+            }
+        }
+        return acc;
+    }
+
+    /**
+     * @return The index of the element that covers position pos, or -1 if pos
+     * is outside [0, total()). Zero-length elements never cover a position.
+     */
+    int indexOf(int pos) {
+        if (pos < 0 || pos >= total()) {
+            return -1;
+        }
+        int t = _root;
+        int index = 0;
+        while (true) {
+            int l = _left[t];
+            if (pos < _sum[l]) {
+                t = l;
+                continue;
+            }
+            pos -= _sum[l];
+            if (pos < _length[t]) {
+                return index + _count[l];
+            }
+            pos -= _length[t];
+            index += _count[l] + 1;
+            t = _right[t];
+        }
+    }
+
+    /**
+     * Same search as {@link #indexOf(int)}, but returns the slot of the
+     * covering element in the high 32 bits and the offset of pos inside that
+     * element in the low 32 bits. Returns -1 if pos is out of range.
+     */
+    long locate(int pos) {
+        if (pos < 0 || pos >= total()) {
+            return -1;
+        }
+        int t = _root;
+        while (true) {
+            int l = _left[t];
+            if (pos < _sum[l]) {
+                t = l;
+                continue;
+            }
+            pos -= _sum[l];
+            if (pos < _length[t]) {
+                return ((long) t << 32) | pos;
+            }
+            pos -= _length[t];
+            t = _right[t];
+        }
+    }
+
+    /**
+     * Adds delta to the element at index
+     */
+    void add(int index, int delta) {
+        unshare();
+        int t = _root;
+        while (true) {
+            _sum[t] += delta;
+            int leftCount = _count[_left[t]];
+            if (index < leftCount) {
+                t = _left[t];
+            } else if (index == leftCount) {
+                _length[t] += delta;
+                return;
+            } else {
+                index -= leftCount + 1;
+                t = _right[t];
+            }
+        }
+    }
+
+    void set(int index, int value) {
+        add(index, value - get(index));
+    }
+
+    /**
+     * Inserts a single element before index
+     *
+     * @return The slot of the new element
+     */
+    int insert(int index, int value) {
+        unshare();
+        ensureCapacity(1);
+        int node = newNode(value);
+        split(_root, index);
+        int right = _splitRight;
+        _root = merge(merge(_splitLeft, node), right);
+        return node;
+    }
+
+    /**
+     * Inserts values[from, from + count) before index in O(count + log n)
+     */
+    void insertAll(int index, int[] values, int from, int count) {
+        if (count <= 0) {
+            return;
+        }
+        if (count == 1) {
+            insert(index, values[from]);
+            return;
+        }
+        unshare();
+        ensureCapacity(count);
+        int middle = buildTreap(values, from, count);
+        split(_root, index);
+        int right = _splitRight;
+        _root = merge(merge(_splitLeft, middle), right);
+    }
+
+    /**
+     * Removes elements [index, index + count)
+     */
+    void remove(int index, int count) {
+        if (count <= 0) {
+            return;
+        }
+        unshare();
+        split(_root, index);
+        int left = _splitLeft;
+        split(_splitRight, count);
+        int right = _splitRight;
+        release(_splitLeft);
+        _root = merge(left, right);
+    }
+
+    //---------------------------------------------------------------------
+
+    /**
+     * Gives this tree its own copy of arrays shared with a copy, before the
+     * first change
+     */
+    private void unshare() {
+        if (_shared) {
+            _left = _left.clone();
+            _right = _right.clone();
+            _priority = _priority.clone();
+            _length = _length.clone();
+            _sum = _sum.clone();
+            _count = _count.clone();
+            _shared = false;
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        int needed = _nextSlot + extra;
+        if (needed <= _left.length) {
+            return;
+        }
+        int capacity = Math.max(needed, _left.length + (_left.length >> 1));
+        _left = Arrays.copyOf(_left, capacity);
+        _right = Arrays.copyOf(_right, capacity);
+        _priority = Arrays.copyOf(_priority, capacity);
+        _length = Arrays.copyOf(_length, capacity);
+        _sum = Arrays.copyOf(_sum, capacity);
+        _count = Arrays.copyOf(_count, capacity);
+    }
+
+    private int newNode(int value) {
+        int node;
+        if (_freeSlots != NIL) {
+            node = _freeSlots;
+            _freeSlots = _left[node];
+        } else {
+            node = _nextSlot++;
+        }
+        _left[node] = NIL;
+        _right[node] = NIL;
+        _priority[node] = nextPriority();
+        _length[node] = value;
+        _sum[node] = value;
+        _count[node] = 1;
+        return node;
+    }
+
+    private int nextPriority() {
+        // xorshift32
+        int x = _seed;
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        _seed = x;
+        return x;
+    }
+
+    private void release(int t) {
+        if (t == NIL) {
+            return;
+        }
+        release(_left[t]);
+        release(_right[t]);
+        _left[t] = _freeSlots;
+        _freeSlots = t;
+    }
+
+    private void update(int t) {
+        int l = _left[t];
+        int r = _right[t];
+        _sum[t] = _sum[l] + _length[t] + _sum[r];
+        _count[t] = _count[l] + 1 + _count[r];
+    }
+
+    /**
+     * Splits t so that _splitLeft holds its first k elements and _splitRight
+     * holds the rest
+     */
+    private void split(int t, int k) {
+        if (t == NIL) {
+            _splitLeft = NIL;
+            _splitRight = NIL;
+            return;
+        }
+        int leftCount = _count[_left[t]];
+        if (k <= leftCount) {
+            split(_left[t], k);
+            _left[t] = _splitRight;
+            update(t);
+            _splitRight = t;
+        } else {
+            split(_right[t], k - leftCount - 1);
+            _right[t] = _splitLeft;
+            update(t);
+            _splitLeft = t;
+        }
+    }
+
+    private int merge(int a, int b) {
+        if (a == NIL) {
+            return b;
+        }
+        if (b == NIL) {
+            return a;
+        }
+        if (_priority[a] > _priority[b]) {
+            _right[a] = merge(_right[a], b);
+            update(a);
+            return a;
+        } else {
+            _left[b] = merge(a, _left[b]);
+            update(b);
+            return b;
+        }
+    }
+
+    /**
+     * Builds a treap over values[from, from + count) in O(count) using the
+     * Cartesian tree construction. Capacity must already be reserved.
+     */
+    private int buildTreap(int[] values, int from, int count) {
+        if (count <= 0) {
+            return NIL;
+        }
+        int[] stack = new int[count];
+        int top = 0;
+        for (int i = 0; i < count; ++i) {
+            int node = newNode(values[from + i]);
+            int last = NIL;
+            while (top > 0 && _priority[stack[top - 1]] < _priority[node]) {
+                last = stack[--top];
+            }
+            _left[node] = last;
+            if (top > 0) {
+                _right[stack[top - 1]] = node;
+            }
+            stack[top++] = node;
+        }
+        int root = stack[0];
+        pullUp(root);
+        return root;
+    }
+
+    private void pullUp(int t) {
+        if (t == NIL) {
+            return;
+        }
+        pullUp(_left[t]);
+        pullUp(_right[t]);
+        update(t);
+    }
+}
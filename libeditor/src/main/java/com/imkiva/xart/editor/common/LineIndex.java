@@ -0,0 +1,222 @@
+package com.imkiva.xart.editor.common;
+
+import com.imkiva.xart.language.ParserDefinition;
+
+/**
+ * Maps between line numbers and character offsets of a TextBuffer.
+ * <p>
+ * The length of every line, including its line terminator (or the EOF
+ * sentinel for the last line), is kept in a {@link LengthTree}. The line
+ * offset is the prefix sum of the lengths before it, so both directions of
+ * the mapping are O(log n). The index is updated incrementally from the
+ * inserted characters and the deleted range of every edit.
+ * <p>
+ * There is always at least one line, since the text always contains the EOF
+ * sentinel.
+ */
+final class LineIndex {
+    private final LengthTree _lines;
+    /**
+     * Line lengths collected while scanning inserted text
+     */
+    private int[] _scratch = new int[16];
+    private int _scratchSize;
+    /**
+     * Length of the last, still open line while building
+     */
+    private int _pendingLength;
+
+    LineIndex() {
+        _lines = new LengthTree();
+        _lines.insert(0, 1); // EOF
+    }
+
+    /**
+     * Creates a copy of source in O(1). The lengths are shared until either
+     * index is changed, see {@link LengthTree#LengthTree(LengthTree)}.
+     */
+    LineIndex(LineIndex source) {
+        _lines = new LengthTree(source._lines);
+    }
+
+    int getLineCount() {
+        return _lines.size();
+    }
+
+    /**
+     * @return The character offset of lineNumber, or -1 if the line does not exist
+     */
+    int getLineOffset(int lineNumber) {
+        if (lineNumber < 0 || lineNumber >= _lines.size()) {
+            return -1;
+        }
+        return _lines.sumBefore(lineNumber);
+    }
+
+    /**
+     * @return The number of chars in lineNumber, including the line terminator,
+     * or 0 if the line does not exist
+     */
+    int getLineSize(int lineNumber) {
+        if (lineNumber < 0 || lineNumber >= _lines.size()) {
+            return 0;
+        }
+        return _lines.get(lineNumber);
+    }
+
+    /**
+     * @return The line that charOffset is on, or -1 if charOffset is invalid
+     */
+    int findLineNumber(int charOffset) {
+        return _lines.indexOf(charOffset);
+    }
+
+    //---------------------------------------------------------------------
+    // Bulk construction
+
+    /**
+     * Starts rebuilding the index from scratch. Feed the whole text, EOF
+     * included, through {@link #append(char[], int, int)}, then call
+     * {@link #endBuild()}.
+     */
+    void beginBuild() {
+        _scratchSize = 0;
+        _pendingLength = 0;
+    }
+
+    void append(char[] text, int from, int to) {
+        int lineStart = from;
+        int i;
+        while ((i = indexOfNewline(text, lineStart, to)) >= 0) {
+            pushScratch(_pendingLength + i + 1 - lineStart);
+            _pendingLength = 0;
+            lineStart = i + 1;
+        }
+        _pendingLength += to - lineStart;
+    }
+
+    void endBuild() {
+        pushScratch(_pendingLength);
+        _lines.build(_scratch, 0, _scratchSize);
+        releaseScratch();
+    }
+
+    /**
+     * Replaces the index with lineCount precomputed line lengths, the last
+     * one including the EOF sentinel
+     */
+    void build(int[] lineLengths, int lineCount) {
+        _lines.build(lineLengths, 0, lineCount);
+    }
+
+    //---------------------------------------------------------------------
+    // Incremental updates
+
+    /**
+     * Updates the index after src[from, from + count) was inserted at charOffset
+     */
+    void onInsert(int charOffset, char[] src, int from, int count) {
+        if (count <= 0) {
+            return;
+        }
+        int line = _lines.indexOf(charOffset);
+        if (line < 0) {
+            // appending past the end; attach to the last line
+            line = _lines.size() - 1;
+        }
+        int end = from + count;
+        int i = indexOfNewline(src, from, end);
+        if (i < 0) {
+            // the common case of typing or pasting within a line
+            _lines.add(line, count);
+            return;
+        }
+
+        int column = charOffset - _lines.sumBefore(line);
+        int oldLength = _lines.get(line);
+
+        _scratchSize = 0;
+        int segmentStart = from;
+        do {
+            pushScratch(i + 1 - segmentStart);
+            segmentStart = i + 1;
+        } while ((i = indexOfNewline(src, segmentStart, end)) >= 0);
+
+        // the line is cut at the insertion point: its head gets the first
+        // segment, its tail is appended to the last segment
+        int head = column + _scratch[0];
+        _scratch[0] = (end - segmentStart) + (oldLength - column);
+        _lines.set(line, head);
+        // _scratch now holds: tail, segment 1 .. segment k-1; rotate tail to the end
+        int tail = _scratch[0];
+        System.arraycopy(_scratch, 1, _scratch, 0, _scratchSize - 1);
+        _scratch[_scratchSize - 1] = tail;
+        _lines.insertAll(line + 1, _scratch, 0, _scratchSize);
+        releaseScratch();
+    }
+
+    /**
+     * Updates the index before totalChars chars starting from charOffset are
+     * deleted
+     */
+    void onDelete(int charOffset, int totalChars) {
+        if (totalChars <= 0) {
+            return;
+        }
+        int first = _lines.indexOf(charOffset);
+        if (first < 0) {
+            return;
+        }
+        int end = charOffset + totalChars;
+        int total = _lines.total();
+        int last;
+        int lastEnd;
+        if (end >= total) {
+            end = total;
+            last = _lines.size() - 1;
+            lastEnd = total;
+        } else {
+            last = _lines.indexOf(end);
+            lastEnd = _lines.sumBefore(last) + _lines.get(last);
+        }
+
+        if (first == last) {
+            _lines.add(first, -(end - charOffset));
+        } else {
+            int merged = (charOffset - _lines.sumBefore(first)) + (lastEnd - end);
+            _lines.remove(first + 1, last - first);
+            _lines.set(first, merged);
+        }
+    }
+
+    /**
+     * @return The index of the first NEWLINE in text[from, to), or -1
+     */
+    static int indexOfNewline(char[] text, int from, int to) {
+        for (int i = from; i < to; ++i) {
+            if (text[i] == ParserDefinition.NEWLINE) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void pushScratch(int length) {
+        if (_scratchSize == _scratch.length) {
+            int[] temp = new int[_scratch.length << 1];
+            System.arraycopy(_scratch, 0, temp, 0, _scratchSize);
+            _scratch = temp;
+        }
+        _scratch[_scratchSize++] = length;
+    }
+
+    /**
+     * Don't keep a huge scratch array alive after loading a big file
+     */
+    private void releaseScratch() {
+        if (_scratch.length > 1024) {
+            _scratch = new int[16];
+        }
+        _scratchSize = 0;
+    }
+}
@@ -0,0 +1,534 @@
+package com.imkiva.xart.editor.common;
+
+import com.imkiva.xart.language.ParserDefinition;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * A read-only document that views a file through FileChannel.map instead of
+ * loading it, for inspecting files too big to fit in the heap.
+ * <p>
+ * The file is split into pages of about PAGE_SIZE bytes, cut on character
+ * boundaries. A background thread walks the pages once and records where
+ * each page starts in bytes, chars and lines; that sparse index is all that
+ * is kept for the whole file. Text is decoded a page at a time on demand and
+ * the last CACHED_PAGES decoded pages are kept in an LRU cache, so heap use is
+ * bounded whatever the file size.
+ * <p>
+ * Until the index is complete, the document only reports the part indexed so
+ * far: getTextLength() and getLineCount() grow as indexing proceeds, and
+ * {@link OnIndexProgressListener} is told whenever they do. Every published
+ * page counts as an insertion at the end of the text, so the revision grows
+ * with it and results computed from the shorter text are stale.
+ * <p>
+ * Lines are broken at NEWLINE only; a CR of a CRLF file stays as the last
+ * char of its line. Char offsets are ints, so text past Integer.MAX_VALUE
+ * chars is not shown.
+ */
+public class MappedDocument extends Document {
+    static final int PAGE_SIZE = 64 * 1024;
+    private static final int CACHED_PAGES = 16;
+    /**
+     * Files are mapped in segments of this size, overlapping by a page so that
+     * every page lies entirely in the segment its first byte is in
+     */
+    private static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+    private static final long SEGMENT_OVERLAP = PAGE_SIZE + 4;
+    /**
+     * Number of newly indexed pages between two progress notifications
+     */
+    private static final int PROGRESS_INTERVAL = 256;
+
+    private final RandomAccessFile _file;
+    private final FileChannel _channel;
+    private final long _fileSize;
+    private final Charset _charset;
+    private final MappedByteBuffer[] _segments;
+    private final CharsetDecoder _decoder;
+
+    // page table, guarded by this; entry i is the start of page i and
+    // entry _pageCount is the end of the indexed text
+    private long[] _pageByteStart;
+    private int[] _pageCharStart;
+    /**
+     * Number of line breaks before the page
+     */
+    private int[] _pageLineStart;
+    private int _pageCount;
+    private boolean _indexComplete;
+
+    private final Map<Integer, Page> _pageCache =
+            new LinkedHashMap<Integer, Page>(CACHED_PAGES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, Page> eldest) {
+                    return size() > CACHED_PAGES;
+                }
+            };
+
+    private volatile OnIndexProgressListener _onIndexProgressListener;
+    private volatile boolean _closed;
+    private final Thread _indexer;
+
+    /**
+     * Maps the file and indexes its first page; the rest is indexed in the
+     * background
+     *
+     * @param encoding One of the EncodingScheme encodings; TEXT_ENCODING_AUTO
+     *                 detects it
+     */
+    public MappedDocument(File file, String encoding) throws IOException {
+        _file = new RandomAccessFile(file, "r");
+        _channel = _file.getChannel();
+        _fileSize = _channel.size();
+        _segments = new MappedByteBuffer[(int) ((_fileSize + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+
+        ByteBuffer head = _fileSize > 0 ? segment(0) : ByteBuffer.allocate(0);
+        head.limit(Math.min(head.limit(), PAGE_SIZE));
+        String resolved = DocumentLoader.detectEncoding(head, encoding, _fileSize <= PAGE_SIZE);
+        _charset = Charset.forName(resolved);
+        _decoder = newDecoder();
+        _originalFormat = resolved;
+        _originalEOLType = EncodingScheme.LINE_BREAK_LF;
+        _byteOrderMark = head.position() > 0;
+
+        _pageByteStart = new long[64];
+        _pageCharStart = new int[64];
+        _pageLineStart = new int[64];
+        _pageByteStart[0] = head.position();
+
+        Indexer indexer = new Indexer();
+        // show the beginning of the file right away
+        indexer.indexNextPage();
+        _indexer = new Thread(indexer, "MappedDocument indexer");
+        _indexer.setDaemon(true);
+        _indexer.setPriority(Thread.MIN_PRIORITY);
+        _indexer.start();
+    }
+
+    /**
+     * Stops indexing and releases the file. The document is empty afterwards.
+     */
+    public void close() throws IOException {
+        _closed = true;
+        _indexer.interrupt();
+        Lock lock = getWriteLock();
+        lock.lock();
+        try {
+            int textSize;
+            synchronized (this) {
+                textSize = _pageCharStart[_pageCount];
+                _pageCount = 0;
+                _pageCache.clear();
+            }
+            logExternalEdit(0, textSize, 0);
+        } finally {
+            lock.unlock();
+        }
+        _file.close();
+    }
+
+    public void setOnIndexProgressListener(OnIndexProgressListener listener) {
+        _onIndexProgressListener = listener;
+        if (listener != null) {
+            // catch up on what happened before
+            listener.onIndexProgress(this, isIndexComplete());
+        }
+    }
+
+    public synchronized boolean isIndexComplete() {
+        return _indexComplete;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return true;
+    }
+
+    /**
+     * The file is never edited through this document, so it is its own
+     * snapshot
+     */
+    @Override
+    public Document snapshot(boolean withSpans) {
+        return this;
+    }
+
+    //---------------------------------------------------------------------
+    // Read access
+
+    @Override
+    public synchronized int getTextLength() {
+        return _pageCharStart[_pageCount] + 1; // EOF
+    }
+
+    @Override
+    public synchronized int getLineCount() {
+        return _pageLineStart[_pageCount] + 1;
+    }
+
+    @Override
+    public synchronized char charAt(int charOffset) {
+        int textSize = _pageCharStart[_pageCount];
+        if (charOffset == textSize) {
+            return ParserDefinition.EOF;
+        }
+        int page = findPageByChar(charOffset);
+        return getPage(page).chars[charOffset - _pageCharStart[page]];
+    }
+
+    @Override
+    protected synchronized void copyText(int charOffset, final int count, final char[] dst, final int dstBegin) {
+        int textSize = _pageCharStart[_pageCount];
+        int copied = Math.min(count, textSize - charOffset);
+        visitPages(charOffset, copied, new ITextStorage.RegionVisitor() {
+            private int _at = dstBegin;
+
+            @Override
+            public void visit(char[] array, int from, int to) {
+                System.arraycopy(array, from, dst, _at, to - from);
+                _at += to - from;
+            }
+        });
+        if (copied < count) {
+            dst[dstBegin + copied] = ParserDefinition.EOF;
+        }
+    }
+
+    @Override
+    char peekChar(int charOffset) {
+        return charAt(charOffset);
+    }
+
+    @Override
+    protected synchronized void visitText(int charOffset, int count, ITextStorage.RegionVisitor visitor) {
+        visitPages(charOffset, count, visitor);
+    }
+
+    @Override
+    public synchronized int getLineOffset(int lineNumber) {
+        if (lineNumber < 0 || lineNumber >= getLineCount()) {
+            return -1;
+        }
+        if (lineNumber == 0) {
+            return 0;
+        }
+        // the line starts right after the lineNumber-th line break
+        int page = findPageByBreak(lineNumber);
+        Page p = getPage(page);
+        return _pageCharStart[page] + p.breaks[lineNumber - _pageLineStart[page] - 1] + 1;
+    }
+
+    @Override
+    public synchronized int getLineSize(int lineNumber) {
+        int offset = getLineOffset(lineNumber);
+        if (offset < 0) {
+            return 0;
+        }
+        int next = lineNumber + 1 < getLineCount()
+                ? getLineOffset(lineNumber + 1)
+                : getTextLength();
+        return next - offset;
+    }
+
+    @Override
+    public synchronized int findLineNumber(int charOffset) {
+        if (!isValid(charOffset)) {
+            return -1;
+        }
+        if (charOffset == _pageCharStart[_pageCount]) {
+            return getLineCount() - 1;
+        }
+        int page = findPageByChar(charOffset);
+        int[] breaks = getPage(page).breaks;
+        int column = charOffset - _pageCharStart[page];
+        // number of breaks strictly before column
+        int i = Arrays.binarySearch(breaks, column);
+        int before = i >= 0 ? i : -i - 1;
+        return _pageLineStart[page] + before;
+    }
+
+    //---------------------------------------------------------------------
+    // Edits are ignored
+
+    @Override
+    public synchronized void insert(char[] c, int charOffset, long timestamp, boolean undoable) {
+    }
+
+    @Override
+    public synchronized void delete(int charOffset, int totalChars, long timestamp, boolean undoable) {
+    }
+
+    @Override
+    public synchronized void setBuffer(char[] newBuffer, String encoding, String EOLstyle,
+                                       int textSize, int lineCount) {
+        throw new UnsupportedOperationException("MappedDocument is read-only");
+    }
+
+    //---------------------------------------------------------------------
+    // Pages
+
+    private void visitPages(int charOffset, int count, ITextStorage.RegionVisitor visitor) {
+        int page = findPageByChar(charOffset);
+        int within = charOffset - _pageCharStart[page];
+        while (count > 0) {
+            char[] chars = getPage(page).chars;
+            int n = Math.min(count, chars.length - within);
+            visitor.visit(chars, within, within + n);
+            count -= n;
+            within = 0;
+            ++page;
+        }
+    }
+
+    /**
+     * @return The page holding charOffset, which must be within the indexed text
+     */
+    private int findPageByChar(int charOffset) {
+        int i = Arrays.binarySearch(_pageCharStart, 0, _pageCount + 1, charOffset);
+        // pages are never empty, so page starts are distinct
+        return i >= 0 ? i : -i - 2;
+    }
+
+    /**
+     * @return The page holding the n-th line break, counting from 1
+     */
+    private int findPageByBreak(int n) {
+        int low = 0;
+        int high = _pageCount - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (_pageLineStart[mid + 1] < n) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private Page getPage(int page) {
+        Page p = _pageCache.get(page);
+        if (p == null) {
+            p = decodePage(_decoder, _pageByteStart[page], _pageByteStart[page + 1]);
+            _pageCache.put(page, p);
+        }
+        return p;
+    }
+
+    private Page decodePage(CharsetDecoder decoder, long start, long end) {
+        ByteBuffer bytes = slice(start, end);
+        // none of the supported encodings yields more chars than bytes
+        CharBuffer out = CharBuffer.allocate((int) (end - start));
+        decoder.reset();
+        decoder.decode(bytes, out, true);
+        decoder.flush(out);
+        char[] chars = Arrays.copyOf(out.array(), out.position());
+        return new Page(chars);
+    }
+
+    /**
+     * @return The bytes [start, end) of the file
+     */
+    private ByteBuffer slice(long start, long end) {
+        ByteBuffer segment = segment(start);
+        long base = (start / SEGMENT_SIZE) * SEGMENT_SIZE;
+        segment.limit((int) (end - base));
+        segment.position((int) (start - base));
+        return segment;
+    }
+
+    /**
+     * @return A private view of the segment that position is in
+     */
+    private ByteBuffer segment(long position) {
+        int index = (int) (position / SEGMENT_SIZE);
+        synchronized (_segments) {
+            if (_segments[index] == null) {
+                long base = index * SEGMENT_SIZE;
+                long size = Math.min(_fileSize - base, SEGMENT_SIZE + SEGMENT_OVERLAP);
+                try {
+                    _segments[index] = _channel.map(FileChannel.MapMode.READ_ONLY, base, size);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Cannot map " + _file, e);
+                }
+            }
+            return _segments[index].duplicate();
+        }
+    }
+
+    private CharsetDecoder newDecoder() {
+        return _charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Moves a page end back so that it does not cut a character in two
+     */
+    private long alignPageEnd(long start, long end) {
+        if (end >= _fileSize) {
+            return _fileSize;
+        }
+        ByteBuffer segment = segment(start);
+        long base = (start / SEGMENT_SIZE) * SEGMENT_SIZE;
+        String encoding = _originalFormat;
+        if (encoding.equals(EncodingScheme.TEXT_ENCODING_UTF8)) {
+            // back up over continuation bytes to the lead byte
+            int back = 0;
+            while (back < 3 && (segment.get((int) (end - base)) & 0xC0) == 0x80) {
+                --end;
+                ++back;
+            }
+        } else if (encoding.equals(EncodingScheme.TEXT_ENCODING_UTF16BE)
+                || encoding.equals(EncodingScheme.TEXT_ENCODING_UTF16LE)) {
+            // keep surrogate pairs together
+            int highByte = encoding.equals(EncodingScheme.TEXT_ENCODING_UTF16BE)
+                    ? segment.get((int) (end - 2 - base))
+                    : segment.get((int) (end - 1 - base));
+            if ((highByte & 0xFC) == 0xD8) {
+                end -= 2;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Appends a page to the index
+     */
+    private synchronized boolean publishPage(long end, int chars, int lineBreaks, Page page) {
+        if (_closed) {
+            return false;
+        }
+        long charEnd = (long) _pageCharStart[_pageCount] + chars;
+        if (charEnd >= Integer.MAX_VALUE - 1) {
+            return false;
+        }
+        if (_pageCount + 1 == _pageByteStart.length) {
+            int newLength = _pageByteStart.length << 1;
+            _pageByteStart = Arrays.copyOf(_pageByteStart, newLength);
+            _pageCharStart = Arrays.copyOf(_pageCharStart, newLength);
+            _pageLineStart = Arrays.copyOf(_pageLineStart, newLength);
+        }
+        _pageByteStart[_pageCount + 1] = end;
+        _pageCharStart[_pageCount + 1] = (int) charEnd;
+        _pageLineStart[_pageCount + 1] = _pageLineStart[_pageCount] + lineBreaks;
+        if (_pageCount == 0) {
+            // it is about to be shown
+            _pageCache.put(0, page);
+        }
+        ++_pageCount;
+        return true;
+    }
+
+    private synchronized void completeIndex() {
+        _indexComplete = true;
+    }
+
+    private void notifyProgress(boolean done) {
+        OnIndexProgressListener listener = _onIndexProgressListener;
+        if (listener != null) {
+            listener.onIndexProgress(this, done);
+        }
+    }
+
+    /**
+     * Decoded chars of a page and the positions of its line breaks
+     */
+    private static final class Page {
+        final char[] chars;
+        final int[] breaks;
+
+        Page(char[] chars) {
+            this.chars = chars;
+            int count = 0;
+            for (char c : chars) {
+                if (c == ParserDefinition.NEWLINE) {
+                    ++count;
+                }
+            }
+            breaks = new int[count];
+            int j = 0;
+            for (int i = 0; i < chars.length; ++i) {
+                if (chars[i] == ParserDefinition.NEWLINE) {
+                    breaks[j++] = i;
+                }
+            }
+        }
+    }
+
+    private class Indexer implements Runnable {
+        private final CharsetDecoder _indexDecoder = newDecoder();
+        private long _position;
+
+        Indexer() {
+            _position = _pageByteStart[0];
+        }
+
+        /**
+         * @return Whether there are more pages
+         */
+        boolean indexNextPage() {
+            if (_position >= _fileSize) {
+                return false;
+            }
+            long end = alignPageEnd(_position, _position + PAGE_SIZE);
+            Page page = decodePage(_indexDecoder, _position, end);
+            // the new chars are an insertion at the old end of the text, so
+            // that results computed from the shorter text count as stale
+            Lock lock = getWriteLock();
+            lock.lock();
+            try {
+                int textSize = getTextLength() - 1;
+                if (!publishPage(end, page.chars.length, page.breaks.length, page)) {
+                    return false;
+                }
+                logExternalEdit(textSize, 0, page.chars.length);
+            } finally {
+                lock.unlock();
+            }
+            _position = end;
+            return true;
+        }
+
+        @Override
+        public void run() {
+            int pages = 0;
+            while (!_closed && indexNextPage()) {
+                if (++pages % PROGRESS_INTERVAL == 0) {
+                    notifyProgress(false);
+                }
+            }
+            if (!_closed) {
+                completeIndex();
+                notifyProgress(true);
+            }
+        }
+    }
+
+    /**
+     * Receives updates while a MappedDocument is indexed.
+     * Called from the indexing thread, except for the first call made by
+     * {@link #setOnIndexProgressListener(OnIndexProgressListener)}.
+     */
+    public interface OnIndexProgressListener {
+        /**
+         * The text length and line count of document have grown
+         *
+         * @param done Whether the whole file is indexed now
+         */
+        void onIndexProgress(MappedDocument document, boolean done);
+    }
+}
@@ -0,0 +1,244 @@
+package com.imkiva.xart.editor.common;
+
+import com.imkiva.xart.language.ParserDefinition;
+
+import java.util.Arrays;
+
+/**
+ * Maps between word-wrap rows and character offsets of a Document.
+ * <p>
+ * The number of rows of every line is kept in a {@link LengthTree}, so the
+ * row of a line is a prefix sum and the line of a row a search, both
+ * O(log n). The row breaks inside a line are kept per tree slot in a
+ * primitive array, only for lines that wrap.
+ * <p>
+ * Lines are measured lazily: a line that is new, edited or not yet measured
+ * after a width change counts an estimated number of rows until a lookup
+ * touches it or {@link #ensureLines(int, int)} is called for it. Enabling
+ * word wrap therefore costs one pass over the line lengths, and row numbers
+ * below lines still unmeasured are approximate.
+ * <p>
+ * Not thread safe; lookups measure lines and so mutate the index. The
+ * document calls {@link #onLinesReplaced(int, int, int)} from its edits.
+ */
+final class RowIndex {
+    private final Document _document;
+    private final Document.CharAdvance _advance;
+    private final int _width;
+    /**
+     * Advance used to estimate the rows of unmeasured lines
+     */
+    private final int _estimateAdvance;
+
+    private final LengthTree _rows = new LengthTree();
+    /**
+     * Row starts after the first one, relative to the line start, by slot;
+     * null for a line that fits in one row
+     */
+    private int[][] _breaks = new int[0][];
+    private boolean[] _measured = new boolean[0];
+
+    private char[] _text = new char[256];
+    private int[] _scratch = new int[16];
+    private int _scratchSize;
+
+    RowIndex(Document document, int width, Document.CharAdvance advance) {
+        _document = document;
+        _width = width;
+        _advance = advance;
+        _estimateAdvance = Math.max(advance.getAdvance('x'), 1);
+        rebuild();
+    }
+
+    int getWidth() {
+        return _width;
+    }
+
+    /**
+     * @return The number of rows, counting unmeasured lines by estimate
+     */
+    int getRowCount() {
+        sync();
+        return _rows.total();
+    }
+
+    /**
+     * @return The offset of the first char of row, or -1 if the row does not exist
+     */
+    int getRowOffset(int row) {
+        sync();
+        int line;
+        // measuring the line may change its row count and so the line covering row
+        while ((line = _rows.indexOf(row)) >= 0 && !_measured[_rows.slotAt(line)]) {
+            measure(line);
+        }
+        if (line < 0) {
+            return -1;
+        }
+        int rowInLine = row - _rows.sumBefore(line);
+        int offset = _document.getLineOffset(line);
+        return rowInLine == 0 ? offset : offset + _breaks[_rows.slotAt(line)][rowInLine - 1];
+    }
+
+    /**
+     * @return The row that charOffset is on, or -1 if charOffset is invalid
+     */
+    int findRowNumber(int charOffset) {
+        sync();
+        int line = _document.findLineNumber(charOffset);
+        if (line < 0) {
+            return -1;
+        }
+        int slot = ensureMeasured(line);
+        int row = _rows.sumBefore(line);
+        int[] breaks = _breaks[slot];
+        if (breaks != null) {
+            int column = charOffset - _document.getLineOffset(line);
+            int index = Arrays.binarySearch(breaks, column);
+            row += index >= 0 ? index + 1 : -index - 1;
+        }
+        return row;
+    }
+
+    /**
+     * Measures the lines [firstLine, lastLine] that are not measured yet,
+     * e.g. the visible ones, so that their row numbers are exact
+     */
+    void ensureLines(int firstLine, int lastLine) {
+        sync();
+        int last = Math.min(lastLine, _rows.size() - 1);
+        for (int line = Math.max(firstLine, 0); line <= last; ++line) {
+            ensureMeasured(line);
+        }
+    }
+
+    /**
+     * Lines [line, line + oldCount) were replaced by newCount lines
+     */
+    void onLinesReplaced(int line, int oldCount, int newCount) {
+        if (line == 0 && oldCount >= _rows.size()) {
+            rebuild();
+            return;
+        }
+        int[] estimates = new int[newCount];
+        for (int i = 0; i < newCount; ++i) {
+            estimates[i] = estimateRows(line + i);
+        }
+        _rows.remove(line, oldCount);
+        _rows.insertAll(line, estimates, 0, newCount);
+        ensurePayloadCapacity();
+        for (int i = 0; i < newCount; ++i) {
+            int slot = _rows.slotAt(line + i);
+            _breaks[slot] = null;
+            _measured[slot] = false;
+        }
+    }
+
+    /**
+     * Resets every line to its estimate
+     */
+    private void rebuild() {
+        int lineCount = _document.getLineCount();
+        int[] estimates = new int[lineCount];
+        for (int i = 0; i < lineCount; ++i) {
+            estimates[i] = estimateRows(i);
+        }
+        _rows.build(estimates, 0, lineCount);
+        _breaks = new int[_rows.getSlotCapacity()][];
+        _measured = new boolean[_rows.getSlotCapacity()];
+    }
+
+    /**
+     * Catches up with lines a document added without editing,
+     * see {@link MappedDocument}
+     */
+    private void sync() {
+        int lineCount = _document.getLineCount();
+        int size = _rows.size();
+        if (lineCount > size) {
+            // the last line may have grown as well
+            onLinesReplaced(size - 1, 1, 1 + lineCount - size);
+        } else if (lineCount < size) {
+            rebuild();
+        }
+    }
+
+    private int ensureMeasured(int line) {
+        int slot = _rows.slotAt(line);
+        if (!_measured[slot]) {
+            measure(line);
+        }
+        return slot;
+    }
+
+    private int estimateRows(int line) {
+        long width = (long) Math.max(_document.getLineSize(line) - 1, 0) * _estimateAdvance;
+        return (int) Math.max((width + _width - 1) / _width, 1);
+    }
+
+    /**
+     * Breaks line into rows no wider than the wrap width, after the last
+     * space or tab where possible
+     */
+    private void measure(int line) {
+        int offset = _document.getLineOffset(line);
+        int size = _document.getLineSize(line);
+        if (_text.length < size) {
+            _text = new char[Math.max(size, _text.length * 2)];
+        }
+        int length = _document.getChars(offset, size, _text, 0);
+        int end = length;
+        if (end > 0 && (_text[end - 1] == ParserDefinition.NEWLINE || _text[end - 1] == ParserDefinition.EOF)) {
+            // the terminator never starts a row of its own
+            --end;
+        }
+
+        _scratchSize = 0;
+        int rowStart = 0;
+        int wordBreak = -1;
+        int x = 0;
+        for (int i = 0; i < end; ++i) {
+            char c = _text[i];
+            int advance = _advance.getAdvance(c);
+            while (x + advance > _width && i > rowStart) {
+                int rowBreak = wordBreak > rowStart ? wordBreak : i;
+                pushScratch(rowBreak);
+                x = 0;
+                for (int j = rowBreak; j < i; ++j) {
+                    x += _advance.getAdvance(_text[j]);
+                }
+                rowStart = rowBreak;
+            }
+            x += advance;
+            if (c == ' ' || c == ParserDefinition.TAB) {
+                wordBreak = i + 1;
+            }
+        }
+
+        int slot = _rows.slotAt(line);
+        _breaks[slot] = _scratchSize > 0 ? Arrays.copyOf(_scratch, _scratchSize) : null;
+        _measured[slot] = true;
+        _rows.set(line, _scratchSize + 1);
+        if (_scratch.length > 1024) {
+            _scratch = new int[16];
+        }
+        if (_text.length > 64 * 1024) {
+            _text = new char[256];
+        }
+    }
+
+    private void ensurePayloadCapacity() {
+        int capacity = _rows.getSlotCapacity();
+        if (_breaks.length < capacity) {
+            _breaks = Arrays.copyOf(_breaks, capacity);
+            _measured = Arrays.copyOf(_measured, capacity);
+        }
+    }
+
+    private void pushScratch(int value) {
+        if (_scratchSize == _scratch.length) {
+            _scratch = Arrays.copyOf(_scratch, _scratch.length << 1);
+        }
+        _scratch[_scratchSize++] = value;
+    }
+}
@@ -1,54 +1,122 @@
 package com.imkiva.xart.editor.common;
 
-import com.imkiva.xart.language.ParserDefinition;
 import com.imkiva.xart.editor.api.lexer.Flag;
-import com.imkiva.xart.editor.api.lexer.HighlightSpan;
-import com.imkiva.xart.editor.api.lexer.HighlightTokenType;
-import com.imkiva.xart.editor.model.Pair;
+import com.imkiva.xart.editor.api.lexer.HighlightSpanList;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.ArrayList;
-import java.util.List;
-
-
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ * The text of a document, its line index and undo history.
+ * <p>
+ * Characters are kept by a pluggable {@link ITextStorage}. The default is a
+ * {@link GapBuffer}; {@link ChunkedRope} trades a little constant overhead for
+ * O(log n) edits anywhere in very large texts.
+ * <p>
+ * Reads and edits are guarded by a read-write lock rather than the monitor:
+ * any number of threads may read at once, e.g. the painter while the lexer
+ * copies the text, and only edits wait for them or make them wait.
+ */
 public class TextBuffer {
-    // gap size must be > 0 to insert into full buffers successfully
-    protected final static int MIN_GAP_SIZE = 50;
-    protected char[] _contents;
-    protected int _gapStartIndex;
     /**
-     * One past end of gap
+     * Number of chars written between two checks of the abort flag
      */
-    protected int _gapEndIndex;
-    protected int _lineCount;
-    protected String _originalFormat;
-    protected String _originalEOLType;
+    private static final int WRITE_SLICE_SIZE = 64 * 1024;
+    protected ITextStorage _storage;
+    protected volatile int _lineCount;
     /**
-     * Continuous seq of chars that have the same format (color, font, etc.)
+     * Bumped by every change of the text
+     */
+    private volatile long _revision;
+    /**
+     * Number of recent edits kept for {@link #visitEdits(long, EditVisitor)},
+     * a power of 2
+     */
+    private static final int EDIT_LOG_SIZE = 64;
+    /**
+     * The edit that produced revision r is at index r & (EDIT_LOG_SIZE - 1)
      */
-    protected List<HighlightSpan> _Pairs;
+    private final int[] _editOffsets = new int[EDIT_LOG_SIZE];
+    private final int[] _editRemoved = new int[EDIT_LOG_SIZE];
+    private final int[] _editInserted = new int[EDIT_LOG_SIZE];
     /**
-     * The number of times memory is allocated for the buffer
+     * The oldest revision the edit log can be replayed from; edits before it
+     * are gone or, after setBuffer, meaningless
+     */
+    private long _editLogStart;
+    protected volatile String _originalFormat;
+    protected volatile String _originalEOLType;
+    /**
+     * Whether the text was read with a byte order mark, which is then
+     * written back by saves in a Unicode encoding
+     */
+    protected volatile boolean _byteOrderMark;
+    /**
+     * Continuous seq of chars that have the same format (color, font, etc.)
+     * <p>
+     * Shifted along with every edit, so the colors stay on their chars until
+     * the text is lexed again. Replaced by the UI thread and read by the
+     * lexer thread when it takes a snapshot.
      */
-    private int _allocMultiplier;
-    private TextBufferCache _cache;
+    protected volatile HighlightSpanList _Pairs;
+    private LineIndex _lineIndex;
     private UndoStack _undoStack;
+    /**
+     * Created on the first save and reused afterwards
+     */
+    private TextStreamWriter _writer;
+    private final Object _writerLock = new Object();
+    private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+    private final Lock _readLock = _lock.readLock();
+    private final Lock _writeLock = _lock.writeLock();
 
 
     public TextBuffer() {
-        _contents = new char[MIN_GAP_SIZE + 1]; // extra char for EOF
-        _contents[MIN_GAP_SIZE] = ParserDefinition.EOF;
-        _allocMultiplier = 1;
-        _gapStartIndex = 0;
-        _gapEndIndex = MIN_GAP_SIZE;
-        _lineCount = 1;
-        _cache = new TextBufferCache();
+        this(new GapBuffer());
+    }
+
+    public TextBuffer(ITextStorage storage) {
+        _storage = storage;
+        _lineIndex = new LineIndex();
+        rebuildLineIndex();
+        _lineCount = _lineIndex.getLineCount();
         _undoStack = new UndoStack(this);
         _originalFormat = EncodingScheme.TEXT_ENCODING_UTF8;
         _originalEOLType = EncodingScheme.LINE_BREAK_LF;
     }
 
+    /**
+     * Creates a copy of the current text of source, with its line index,
+     * format and revision but no undo history
+     *
+     * @param copySpans Whether to copy the spans of source as well. They are
+     *                  copied under the same lock as the text, so they are
+     *                  shifted by exactly the edits the copied text has seen.
+     */
+    TextBuffer(TextBuffer source, boolean copySpans) {
+        source._readLock.lock();
+        try {
+            _storage = source._storage.snapshot();
+            HighlightSpanList spans = source._Pairs;
+            if (copySpans && spans != null) {
+                _Pairs = spans.copy();
+            }
+            _lineIndex = new LineIndex(source._lineIndex);
+            _lineCount = source._lineCount;
+            _originalFormat = source._originalFormat;
+            _originalEOLType = source._originalEOLType;
+            _byteOrderMark = source._byteOrderMark;
+            _revision = source._revision;
+            _editLogStart = _revision;
+        } finally {
+            source._readLock.unlock();
+        }
+        _undoStack = new UndoStack(this);
+    }
+
     /**
      * Calculate the implementation size of the char array needed to store
      * textSize number of characters.
@@ -61,56 +129,178 @@ public class TextBuffer {
      * cannot be satisfied
      */
     public static int memoryNeeded(int textSize) {
-        long bufferSize = textSize + MIN_GAP_SIZE + 1; // extra char for EOF
-        if (bufferSize < Integer.MAX_VALUE) {
-            return (int) bufferSize;
+        return GapBuffer.memoryNeeded(textSize);
+    }
+
+    public void setBuffer(char[] newBuffer, String encoding,
+                          String EOLstyle, int textSize, int lineCount) {
+        _writeLock.lock();
+        try {
+            _originalFormat = encoding;
+            _originalEOLType = EOLstyle;
+            _byteOrderMark = false;
+            int oldLineCount = _lineCount;
+            _storage.setContents(newBuffer, textSize);
+            rebuildLineIndex();
+            _lineCount = _lineIndex.getLineCount();
+            onLinesReplaced(0, oldLineCount, _lineCount);
+            ++_revision;
+            _editLogStart = _revision;
+            if (_Pairs != null) {
+                // the old spans no longer describe the text
+                _Pairs.clearCheckpoints();
+            }
+        } finally {
+            _writeLock.unlock();
         }
-        return -1;
     }
 
-    synchronized public void setBuffer(char[] newBuffer, String encoding,
-                                       String EOLstyle, int textSize, int lineCount) {
-        _originalFormat = encoding;
-        _originalEOLType = EOLstyle;
-        _contents = newBuffer;
-        initGap(textSize);
-        _lineCount = lineCount;
-        _allocMultiplier = 1;
+    /**
+     * Same as {@link #setBuffer(char[], String, String, int, int)}, for callers
+     * that already know the length of every line, e.g. DocumentLoader. Skips
+     * scanning the text for line breaks.
+     *
+     * @param lineLengths   Length of every line including its line break; the
+     *                      last one counts the EOF sentinel instead
+     * @param byteOrderMark Whether the text was preceded by a byte order mark
+     */
+    void setBuffer(char[] newBuffer, String encoding, String EOLstyle, boolean byteOrderMark,
+                   int textSize, int[] lineLengths, int lineCount) {
+        _writeLock.lock();
+        try {
+            _originalFormat = encoding;
+            _originalEOLType = EOLstyle;
+            _byteOrderMark = byteOrderMark;
+            int oldLineCount = _lineCount;
+            _storage.setContents(newBuffer, textSize);
+            _lineIndex.build(lineLengths, lineCount);
+            _lineCount = _lineIndex.getLineCount();
+            onLinesReplaced(0, oldLineCount, _lineCount);
+            ++_revision;
+            _editLogStart = _revision;
+            if (_Pairs != null) {
+                // the old spans no longer describe the text
+                _Pairs.clearCheckpoints();
+            }
+        } finally {
+            _writeLock.unlock();
+        }
+    }
+
+    private void rebuildLineIndex() {
+        final LineIndex lineIndex = _lineIndex;
+        lineIndex.beginBuild();
+        _storage.visitRegions(0, _storage.length(), lineIndex::append);
+        lineIndex.endBuild();
+    }
+
+    /**
+     * @return The storage engine holding the characters
+     */
+    public ITextStorage getStorage() {
+        return _storage;
+    }
+
+
+    /**
+     * Writes the text to byteStream without building a copy of it.
+     * <p>
+     * The text is written from a snapshot, see {@link #snapshotForWrite()},
+     * so edits go on while a large file is saved; the stream gets the text
+     * as it was when write was called. It is encoded in slices through fixed
+     * size buffers, converting line breaks to EOLstyle. abort is checked
+     * between slices; if it is set the method returns early, leaving a
+     * truncated stream and the original format unchanged.
+     *
+     * @param encoding One of the EncodingScheme encodings, or TEXT_ENCODING_AUTO
+     *                 to keep the original one
+     * @param EOLstyle One of the EncodingScheme line breaks, or LINE_BREAK_AUTO
+     *                 to keep the original one
+     * @param abort    Cancellation flag, may be null
+     */
+    public void write(OutputStream byteStream, String encoding,
+                      String EOLstyle, Flag abort)
+            throws IOException {
+        TextBuffer text = snapshotForWrite();
+        // the writer can only serve one save at a time
+        synchronized (_writerLock) {
+            writeLocked(text, byteStream, encoding, EOLstyle, abort);
+        }
     }
 
+    /**
+     * @return The text to write from: a copy sharing the storage of this
+     * buffer, taken under the read lock and released right away, or this
+     * buffer itself if its text cannot be edited
+     */
+    TextBuffer snapshotForWrite() {
+        return isReadOnly() ? this : new TextBuffer(this, false);
+    }
 
-    synchronized public void write(OutputStream byteStream, String encoding,
-                                   String EOLstyle, Flag abort)
+    private void writeLocked(TextBuffer text, OutputStream byteStream, String encoding,
+                             String EOLstyle, Flag abort)
             throws IOException {
         String enc = encoding;
         if (encoding.equals(EncodingScheme.TEXT_ENCODING_AUTO)) {
-            enc = _originalFormat;
+            enc = text._originalFormat;
         }
         String EOL = EOLstyle;
         if (EOLstyle.equals(EncodingScheme.LINE_BREAK_AUTO)) {
-            EOL = _originalEOLType;
+            EOL = text._originalEOLType;
+        }
+
+        if (_writer == null) {
+            _writer = new TextStreamWriter();
+        }
+        TextStreamWriter writer = _writer;
+        boolean byteOrderMark = text._byteOrderMark
+                && !enc.equals(EncodingScheme.TEXT_ENCODING_LATIN1);
+        writer.begin(byteStream, enc, EOL, byteOrderMark);
+        int textSize = text.getTextLength() - 1; // the EOF sentinel is not saved
+        for (int offset = 0; offset < textSize; offset += WRITE_SLICE_SIZE) {
+            if (abort != null && abort.isSet()) {
+                writer.end();
+                return;
+            }
+            text.visitText(offset, Math.min(WRITE_SLICE_SIZE, textSize - offset), writer);
+            writer.checkError();
         }
+        writer.finish();
 
         _originalFormat = enc;
         _originalEOLType = EOL;
+        _byteOrderMark = byteOrderMark;
     }
 
 
+    /**
+     * Visits count chars starting from charOffset without copying them.
+     * Subclasses that don't keep their text in _storage override this.
+     */
+    protected void visitText(int charOffset, int count, ITextStorage.RegionVisitor visitor) {
+        _storage.visitRegions(charOffset, count, visitor);
+    }
+
     /**
      * Returns a string of text corresponding to the line with index lineNumber.
      *
      * @param lineNumber The index of the line of interest
      * @return The text on lineNumber, or an empty string if the line does not exist
      */
-    synchronized public String getLine(int lineNumber) {
-        int startIndex = getLineOffset(lineNumber);
+    public String getLine(int lineNumber) {
+        _readLock.lock();
+        try {
+            int startIndex = getLineOffset(lineNumber);
 
-        if (startIndex < 0) {
-            return "";
-        }
-        int lineSize = getLineSize(lineNumber);
+            if (startIndex < 0) {
+                return "";
+            }
+            int lineSize = getLineSize(lineNumber);
 
-        return new String(subSequence(startIndex, lineSize));
+            return new String(subSequence(startIndex, lineSize));
+        } finally {
+            _readLock.unlock();
+        }
     }
 
     /**
@@ -120,93 +310,13 @@ public class TextBuffer {
      * @param lineNumber The index of the line of interest
      * @return The character offset of lineNumber, or -1 if the line does not exist
      */
-    synchronized public int getLineOffset(int lineNumber) {
-        if (lineNumber < 0) {
-            return -1;
-        }
-
-        // start search from nearest known lineIndex~charOffset pair
-        Pair cachedEntry = _cache.getNearestLine(lineNumber);
-        int cachedLine = cachedEntry.getFirst();
-        int cachedOffset = cachedEntry.getSecond();
-
-        int offset;
-        if (lineNumber > cachedLine) {
-            offset = findCharOffset(lineNumber, cachedLine, cachedOffset);
-        } else if (lineNumber < cachedLine) {
-            offset = findCharOffsetBackward(lineNumber, cachedLine, cachedOffset);
-        } else {
-            offset = cachedOffset;
-        }
-
-        if (offset >= 0) {
-            // seek successful
-            _cache.updateEntry(lineNumber, offset);
-        }
-
-        return offset;
-    }
-
-    /*
-     * Precondition: startOffset is the offset of startLine
-     */
-    private int findCharOffset(int targetLine, int startLine, int startOffset) {
-        int workingLine = startLine;
-        int offset = logicalToRealIndex(startOffset);
-
-
-        while ((workingLine < targetLine) && (offset < _contents.length)) {
-            if (_contents[offset] == ParserDefinition.NEWLINE) {
-                ++workingLine;
-            }
-            ++offset;
-
-            // skip the gap
-            if (offset == _gapStartIndex) {
-                offset = _gapEndIndex;
-            }
-        }
-
-        if (workingLine != targetLine) {
-            return -1;
-        }
-        return realToLogicalIndex(offset);
-    }
-
-    /*
-     * Precondition: startOffset is the offset of startLine
-     */
-    private int findCharOffsetBackward(int targetLine, int startLine, int startOffset) {
-        if (targetLine == 0) {
-            return 0;
+    public int getLineOffset(int lineNumber) {
+        _readLock.lock();
+        try {
+            return _lineIndex.getLineOffset(lineNumber);
+        } finally {
+            _readLock.unlock();
         }
-
-
-        int workingLine = startLine;
-        int offset = logicalToRealIndex(startOffset);
-        while (workingLine > (targetLine - 1) && offset >= 0) {
-            // skip behind the gap
-            if (offset == _gapEndIndex) {
-                offset = _gapStartIndex;
-            }
-            --offset;
-
-            if (_contents[offset] == ParserDefinition.NEWLINE) {
-                --workingLine;
-            }
-
-        }
-
-        int charOffset;
-        if (offset >= 0) {
-            // now at the '\n' of the line before targetLine
-            charOffset = realToLogicalIndex(offset);
-            ++charOffset;
-        } else {
-            charOffset = -1;
-        }
-
-        return charOffset;
     }
 
     /**
@@ -214,59 +324,15 @@ public class TextBuffer {
      *
      * @return The line number that charOffset is on, or -1 if charOffset is invalid
      */
-    synchronized public int findLineNumber(int charOffset) {
-        if (!isValid(charOffset)) {
-            return -1;
-        }
-
-        Pair cachedEntry = _cache.getNearestCharOffset(charOffset);
-        int line = cachedEntry.getFirst();
-        int offset = logicalToRealIndex(cachedEntry.getSecond());
-        int targetFirst = logicalToRealIndex(charOffset);
-        int lastKnownLine = -1;
-        int lastKnownCharOffset = -1;
-
-        if (targetFirst > offset) {
-            // search forward
-            while ((offset < targetFirst) && (offset < _contents.length)) {
-                if (_contents[offset] == ParserDefinition.NEWLINE) {
-                    ++line;
-                    lastKnownLine = line;
-                    lastKnownCharOffset = realToLogicalIndex(offset) + 1;
-                }
-
-                ++offset;
-                // skip the gap
-                if (offset == _gapStartIndex) {
-                    offset = _gapEndIndex;
-                }
+    public int findLineNumber(int charOffset) {
+        _readLock.lock();
+        try {
+            if (!isValid(charOffset)) {
+                return -1;
             }
-        } else if (targetFirst < offset) {
-            // search backward
-            while ((offset > targetFirst) && (offset > 0)) {
-                // skip behind the gap
-                if (offset == _gapEndIndex) {
-                    offset = _gapStartIndex;
-                }
-                --offset;
-
-                if (_contents[offset] == ParserDefinition.NEWLINE) {
-                    lastKnownLine = line;
-                    lastKnownCharOffset = realToLogicalIndex(offset) + 1;
-                    --line;
-                }
-            }
-        }
-
-
-        if (offset == targetFirst) {
-            if (lastKnownLine != -1) {
-                // cache the lookup entry
-                _cache.updateEntry(lastKnownLine, lastKnownCharOffset);
-            }
-            return line;
-        } else {
-            return -1;
+            return _lineIndex.findLineNumber(charOffset);
+        } finally {
+            _readLock.unlock();
         }
     }
 
@@ -278,27 +344,13 @@ public class TextBuffer {
      *
      * @return The number of chars in lineNumber, or 0 if the line does not exist.
      */
-    synchronized public int getLineSize(int lineNumber) {
-        int lineLength = 0;
-        int pos = getLineOffset(lineNumber);
-
-        if (pos != -1) {
-            pos = logicalToRealIndex(pos);
-            //TODO consider adding check for (pos < _contents.length) in case EOF is not properly set
-            while (_contents[pos] != ParserDefinition.NEWLINE &&
-                    _contents[pos] != ParserDefinition.EOF) {
-                ++lineLength;
-                ++pos;
-
-                // skip the gap
-                if (pos == _gapStartIndex) {
-                    pos = _gapEndIndex;
-                }
-            }
-            ++lineLength; // account for the line terminator char
+    public int getLineSize(int lineNumber) {
+        _readLock.lock();
+        try {
+            return _lineIndex.getLineSize(lineNumber);
+        } finally {
+            _readLock.unlock();
         }
-
-        return lineLength;
     }
 
     /**
@@ -308,8 +360,13 @@ public class TextBuffer {
      * @return The char at charOffset. If charOffset is invalid, the result
      * is undefined.
      */
-    synchronized public char charAt(int charOffset) {
-        return _contents[logicalToRealIndex(charOffset)];
+    public char charAt(int charOffset) {
+        _readLock.lock();
+        try {
+            return _storage.charAt(charOffset);
+        } finally {
+            _readLock.unlock();
+        }
     }
 
     /**
@@ -319,246 +376,352 @@ public class TextBuffer {
      * An empty array is returned if charOffset is invalid or maxChars is
      * non-positive.
      */
-    synchronized public char[] subSequence(int charOffset, int maxChars) {
-        if (!isValid(charOffset) || maxChars <= 0) {
-            return new char[0];
-        }
-        int totalChars = maxChars;
-        if ((charOffset + totalChars) > getTextLength()) {
-            totalChars = getTextLength() - charOffset;
+    public char[] subSequence(int charOffset, int maxChars) {
+        _readLock.lock();
+        try {
+            if (!isValid(charOffset) || maxChars <= 0) {
+                return new char[0];
+            }
+            int totalChars = maxChars;
+            if ((charOffset + totalChars) > getTextLength()) {
+                totalChars = getTextLength() - charOffset;
+            }
+            char[] chars = new char[totalChars];
+            copyText(charOffset, totalChars, chars, 0);
+
+            return chars;
+        } finally {
+            _readLock.unlock();
         }
-        int realIndex = logicalToRealIndex(charOffset);
-        char[] chars = new char[totalChars];
-
-        for (int i = 0; i < totalChars; ++i) {
-            chars[i] = _contents[realIndex];
-            ++realIndex;
-            // skip the gap
-            if (realIndex == _gapStartIndex) {
-                realIndex = _gapEndIndex;
+    }
+
+    /**
+     * Copies up to count chars starting at charOffset into dst, starting at
+     * dstBegin, without allocating
+     *
+     * @return The number of chars copied, which is 0 if charOffset is invalid
+     */
+    public int getChars(int charOffset, int count, char[] dst, int dstBegin) {
+        _readLock.lock();
+        try {
+            if (!isValid(charOffset) || count <= 0) {
+                return 0;
             }
+            int totalChars = Math.min(count, getTextLength() - charOffset);
+            copyText(charOffset, totalChars, dst, dstBegin);
+            return totalChars;
+        } finally {
+            _readLock.unlock();
         }
+    }
 
-        return chars;
+    /**
+     * @return A view of the whole text, without the EOF sentinel, that reads
+     * the buffer in place
+     * @see TextCharSequence
+     */
+    public TextCharSequence getCharSequence() {
+        return new TextCharSequence(this, 0, getTextLength() - 1);
     }
 
     /**
-     * Gets charCount number of consecutive characters starting from _gapStartIndex.
-     * <p>
-     * Only UndoStack should use this method. No error checking is done.
+     * @return A view of lineNumber in the same form as {@link #getLine(int)},
+     * or an empty view if the line does not exist
      */
-    char[] gapSubSequence(int charCount) {
-        char[] chars = new char[charCount];
+    public TextCharSequence getLineSequence(int lineNumber) {
+        _readLock.lock();
+        try {
+            int startIndex = getLineOffset(lineNumber);
+            if (startIndex < 0) {
+                return new TextCharSequence(this, 0, 0);
+            }
+            return new TextCharSequence(this, startIndex, startIndex + getLineSize(lineNumber));
+        } finally {
+            _readLock.unlock();
+        }
+    }
 
-        System.arraycopy(_contents, _gapStartIndex, chars, 0, charCount);
+    /**
+     * @return A Reader over the whole text, without the EOF sentinel
+     * @see TextReader
+     */
+    public TextReader getReader() {
+        return new TextReader(this, 0, getTextLength() - 1);
+    }
 
-        return chars;
+    /**
+     * Held by readers that make several calls which must see the same text,
+     * e.g. TextReader
+     */
+    Lock getReadLock() {
+        return _readLock;
     }
 
     /**
-     * Insert all characters in c into position charOffset.
-     * <p>
-     * No error checking is done
+     * Held by subclasses that keep their text elsewhere while they change it,
+     * see {@link #logExternalEdit(int, int, int)}
      */
-    public synchronized void insert(char[] c, int charOffset, long timestamp,
-                                    boolean undoable) {
-        if (undoable) {
-            _undoStack.captureInsert(charOffset, c.length, timestamp);
-        }
+    Lock getWriteLock() {
+        return _writeLock;
+    }
 
-        int insertIndex = logicalToRealIndex(charOffset);
+    /**
+     * Records a change made by a subclass that keeps its text elsewhere, e.g.
+     * MappedDocument publishing newly indexed pages, so that the revision
+     * moves on and {@link #visitEdits(long, EditVisitor)} replays it like any
+     * other edit. Called with the write lock held.
+     */
+    void logExternalEdit(int charOffset, int removedCount, int insertedCount) {
+        logEdit(charOffset, removedCount, insertedCount);
+        ++_revision;
+    }
 
-        // shift gap to insertion point
-        if (insertIndex != _gapEndIndex) {
-            if (isBeforeGap(insertIndex)) {
-                shiftGapLeft(insertIndex);
-            } else {
-                shiftGapRight(insertIndex);
-            }
-        }
+    /**
+     * Unlocked charAt, for TextCharSequence
+     */
+    char peekChar(int charOffset) {
+        return _storage.charAt(charOffset);
+    }
 
-        if (c.length >= gapSize()) {
-            growBufferBy(c.length - gapSize());
-        }
+    /**
+     * Copies count chars starting from charOffset. No error checking is done.
+     * Subclasses that don't keep their text in _storage override this.
+     */
+    protected void copyText(int charOffset, int count, char[] dst, int dstBegin) {
+        _storage.getChars(charOffset, count, dst, dstBegin);
+    }
 
-        for (char aC : c) {
-            if (aC == ParserDefinition.NEWLINE) {
-                ++_lineCount;
-            }
-            _contents[_gapStartIndex] = aC;
-            ++_gapStartIndex;
-        }
+    /**
+     * Whether the chars removed by the last deletion can still be read back
+     * from the storage gap. UndoStack uses this to copy deleted text lazily;
+     * other storage engines have it copied before the deletion.
+     */
+    boolean isGapRecallSupported() {
+        return _storage instanceof GapBuffer;
+    }
 
-        _cache.invalidateCache(charOffset);
+    /**
+     * Gets charCount number of consecutive characters starting from the gap start.
+     * <p>
+     * Only UndoStack should use this method, and only if
+     * {@link #isGapRecallSupported()}. No error checking is done.
+     */
+    char[] gapSubSequence(int charCount) {
+        return ((GapBuffer) _storage).gapSubSequence(charCount);
     }
 
     /**
-     * Deletes up to totalChars number of char starting from position
-     * charOffset, inclusive.
+     * Insert all characters in c into position charOffset.
      * <p>
      * No error checking is done
      */
-    public synchronized void delete(int charOffset, int totalChars, long timestamp,
-                                    boolean undoable) {
-        if (undoable) {
-            _undoStack.captureDelete(charOffset, totalChars, timestamp);
-        }
-
-        int newGapStart = charOffset + totalChars;
-
-        // shift gap to deletion point
-        if (newGapStart != _gapStartIndex) {
-            if (isBeforeGap(newGapStart)) {
-                shiftGapLeft(newGapStart);
-            } else {
-                shiftGapRight(newGapStart + gapSize());
+    public void insert(char[] c, int charOffset, long timestamp,
+                       boolean undoable) {
+        _writeLock.lock();
+        try {
+            if (undoable) {
+                _undoStack.captureInsert(charOffset, c.length, timestamp);
             }
-        }
 
-        // increase gap size
-        for (int i = 0; i < totalChars; ++i) {
-            --_gapStartIndex;
-            if (_contents[_gapStartIndex] == ParserDefinition.NEWLINE) {
-                --_lineCount;
+            _storage.insert(charOffset, c, 0, c.length);
+
+            int line = insertionLine(charOffset);
+            int oldLineCount = _lineCount;
+            _lineIndex.onInsert(charOffset, c, 0, c.length);
+            _lineCount = _lineIndex.getLineCount();
+            onLinesReplaced(line, 1, 1 + _lineCount - oldLineCount);
+            if (_Pairs != null) {
+                _Pairs.onInsert(charOffset, c.length);
             }
+            logEdit(charOffset, 0, c.length);
+            ++_revision;
+        } finally {
+            _writeLock.unlock();
         }
-
-        _cache.invalidateCache(charOffset);
     }
 
     /**
-     * Moves _gapStartIndex by displacement units. Note that displacement can be
-     * negative and will move _gapStartIndex to the left.
+     * Deletes up to totalChars number of char starting from position
+     * charOffset, inclusive.
      * <p>
-     * Only UndoStack should use this method to carry out a simple undo/redo
-     * of insertions/deletions. No error checking is done.
+     * No error checking is done
      */
-    synchronized void shiftGapStart(int displacement) {
-        if (displacement >= 0) {
-            _lineCount += countNewlines(_gapStartIndex, displacement);
-        } else {
-            _lineCount -= countNewlines(_gapStartIndex + displacement, -displacement);
-        }
+    public void delete(int charOffset, int totalChars, long timestamp,
+                       boolean undoable) {
+        _writeLock.lock();
+        try {
+            if (undoable) {
+                _undoStack.captureDelete(charOffset, totalChars, timestamp);
+            }
 
-        _gapStartIndex += displacement;
-        _cache.invalidateCache(realToLogicalIndex(_gapStartIndex - 1) + 1);
-    }
+            int line = _lineIndex.findLineNumber(charOffset);
+            int oldLineCount = _lineCount;
+            _lineIndex.onDelete(charOffset, totalChars);
+            _lineCount = _lineIndex.getLineCount();
+            if (line >= 0) {
+                onLinesReplaced(line, 1 + oldLineCount - _lineCount, 1);
+            }
 
-    //does NOT skip the gap when examining consecutive positions
-    private int countNewlines(int start, int totalChars) {
-        int newlines = 0;
-        for (int i = start; i < (start + totalChars); ++i) {
-            if (_contents[i] == ParserDefinition.NEWLINE) {
-                ++newlines;
+            _storage.delete(charOffset, totalChars);
+            if (_Pairs != null) {
+                _Pairs.onDelete(charOffset, totalChars);
             }
+            logEdit(charOffset, totalChars, 0);
+            ++_revision;
+        } finally {
+            _writeLock.unlock();
         }
-
-        return newlines;
     }
 
     /**
-     * Adjusts gap so that _gapStartIndex is at newGapStart
+     * @return The line that text inserted at charOffset joins
      */
-    final protected void shiftGapLeft(int newGapStart) {
-        while (_gapStartIndex > newGapStart) {
-            --_gapEndIndex;
-            --_gapStartIndex;
-            _contents[_gapEndIndex] = _contents[_gapStartIndex];
-        }
+    private int insertionLine(int charOffset) {
+        int line = _lineIndex.findLineNumber(charOffset);
+        // appending past the end attaches to the last line
+        return line >= 0 ? line : _lineIndex.getLineCount() - 1;
     }
 
     /**
-     * Adjusts gap so that _gapEndIndex is at newGapEnd
+     * Records the edit that is about to bump the revision.
+     * Called with the write lock held.
      */
-    final protected void shiftGapRight(int newGapEnd) {
-        while (_gapEndIndex < newGapEnd) {
-            _contents[_gapStartIndex] = _contents[_gapEndIndex];
-            ++_gapStartIndex;
-            ++_gapEndIndex;
+    private void logEdit(int charOffset, int removedCount, int insertedCount) {
+        int index = (int) (_revision + 1) & (EDIT_LOG_SIZE - 1);
+        _editOffsets[index] = charOffset;
+        _editRemoved[index] = removedCount;
+        _editInserted[index] = insertedCount;
+        long oldest = _revision + 1 - EDIT_LOG_SIZE;
+        if (_editLogStart < oldest) {
+            _editLogStart = oldest;
         }
     }
 
     /**
-     * Create a gap at the start of _contents[] and tack a EOF at the end.
-     * Precondition: real contents are from _contents[0] to _contents[contentsLength-1]
+     * Called with the write lock held after lines [line, line + oldCount) were
+     * replaced by newCount lines, so that subclasses can keep per-line data
+     * in step with the text
      */
-    protected void initGap(int contentsLength) {
-        int toPosition = _contents.length - 1;
-        _contents[toPosition--] = ParserDefinition.EOF; // mark end of file
-        int fromPosition = contentsLength - 1;
-        while (fromPosition >= 0) {
-            _contents[toPosition--] = _contents[fromPosition--];
-        }
-        _gapStartIndex = 0;
-        _gapEndIndex = toPosition + 1; // went one-past in the while loop
+    void onLinesReplaced(int line, int oldCount, int newCount) {
     }
 
     /**
-     * Copies _contents into a buffer that is larger by
-     * minIncrement + INITIAL_GAP_SIZE * _allocCount bytes.
+     * Moves the gap start by displacement units. Note that displacement can be
+     * negative and will move the gap start to the left.
      * <p>
-     * _allocMultiplier doubles on every call to this method, to avoid the
-     * overhead of repeated allocations.
-     */
-    protected void growBufferBy(int minIncrement) {
-        //TODO handle new size > MAX_INT or allocation failure
-        int increasedSize = minIncrement + MIN_GAP_SIZE * _allocMultiplier;
-        char[] temp = new char[_contents.length + increasedSize];
-        int i = 0;
-        while (i < _gapStartIndex) {
-            temp[i] = _contents[i];
-            ++i;
-        }
+     * Only UndoStack should use this method to carry out a simple undo/redo
+     * of insertions/deletions, and only if {@link #isGapRecallSupported()}.
+     * No error checking is done.
+     */
+    void shiftGapStart(int displacement) {
+        _writeLock.lock();
+        try {
+            GapBuffer gapBuffer = (GapBuffer) _storage;
+            int gapStart = gapBuffer.getGapStart();
+            int line = displacement >= 0 ? insertionLine(gapStart)
+                    : _lineIndex.findLineNumber(gapStart + displacement);
+            int oldLineCount = _lineCount;
+            if (displacement >= 0) {
+                // the chars are still in the gap; gap start is also their logical offset
+                _lineIndex.onInsert(gapStart, gapBuffer.getArray(), gapStart, displacement);
+                if (_Pairs != null) {
+                    _Pairs.onInsert(gapStart, displacement);
+                }
+            } else {
+                _lineIndex.onDelete(gapStart + displacement, -displacement);
+                if (_Pairs != null) {
+                    _Pairs.onDelete(gapStart + displacement, -displacement);
+                }
+            }
+            _lineCount = _lineIndex.getLineCount();
+            if (line >= 0) {
+                onLinesReplaced(line, Math.max(1 + oldLineCount - _lineCount, 1),
+                        Math.max(1 + _lineCount - oldLineCount, 1));
+            }
 
-        i = _gapEndIndex;
-        while (i < _contents.length) {
-            temp[i + increasedSize] = _contents[i];
-            ++i;
+            gapBuffer.shiftGapStart(displacement);
+            if (displacement >= 0) {
+                logEdit(gapStart, 0, displacement);
+            } else {
+                logEdit(gapStart + displacement, -displacement, 0);
+            }
+            ++_revision;
+        } finally {
+            _writeLock.unlock();
         }
-
-        _gapEndIndex += increasedSize;
-        _contents = temp;
-        _allocMultiplier <<= 1;
     }
 
     /**
      * Returns the total number of characters in the text, including the
      * EOF sentinel char
      */
-    final synchronized public int getTextLength() {
-        return _contents.length - gapSize();
+    public int getTextLength() {
+        _readLock.lock();
+        try {
+            return _storage.length();
+        } finally {
+            _readLock.unlock();
+        }
     }
 
-    synchronized public int getLineCount() {
+    public int getLineCount() {
         return _lineCount;
     }
 
-    final synchronized public boolean isValid(int charOffset) {
+    public final boolean isValid(int charOffset) {
         return (charOffset >= 0 && charOffset < getTextLength());
     }
 
-    final protected int gapSize() {
-        return _gapEndIndex - _gapStartIndex;
+    /**
+     * @return A number that grows with every change of the text, so that
+     * results computed from the text can be checked for staleness
+     */
+    public long getRevision() {
+        return _revision;
     }
 
-    final protected int logicalToRealIndex(int i) {
-        if (isBeforeGap(i)) {
-            return i;
-        } else {
-            return i + gapSize();
-        }
+    /**
+     * Receives the edits made after some revision, see
+     * {@link #visitEdits(long, EditVisitor)}
+     */
+    public interface EditVisitor {
+        /**
+         * removedCount chars starting from charOffset were replaced by
+         * insertedCount chars. At most one of the counts is non-zero.
+         */
+        void visit(int charOffset, int removedCount, int insertedCount);
     }
 
-    final protected int realToLogicalIndex(int i) {
-        if (isBeforeGap(i)) {
-            return i;
-        } else {
-            return i - gapSize();
+    /**
+     * Replays the edits that took the text from revision to the current
+     * revision, oldest first, so that data computed from the text at
+     * revision can be updated instead of recomputed. Only the last few edits
+     * are kept.
+     *
+     * @return false if the edits since revision are no longer known; nothing
+     * is visited then and the data has to be recomputed
+     */
+    public boolean visitEdits(long revision, EditVisitor visitor) {
+        _readLock.lock();
+        try {
+            if (revision < _editLogStart || revision > _revision) {
+                return false;
+            }
+            for (long r = revision + 1; r <= _revision; ++r) {
+                int index = (int) r & (EDIT_LOG_SIZE - 1);
+                visitor.visit(_editOffsets[index], _editRemoved[index], _editInserted[index]);
+            }
+            return true;
+        } finally {
+            _readLock.unlock();
         }
     }
 
-    final protected boolean isBeforeGap(int i) {
-        return i < _gapStartIndex;
+    /**
+     * @return Whether edits are ignored
+     */
+    public boolean isReadOnly() {
+        return false;
     }
 
     public String getEncodingScheme() {
@@ -569,12 +732,19 @@ public class TextBuffer {
         return _originalEOLType;
     }
 
+    /**
+     * @return Whether the text was read with a byte order mark, which saves
+     * keep
+     */
+    public boolean hasByteOrderMark() {
+        return _byteOrderMark;
+    }
+
     public void clearSpans() {
-        _Pairs = new ArrayList<HighlightSpan>();
-        _Pairs.add(new HighlightSpan(0, HighlightTokenType.NORMAL));
+        _Pairs = HighlightSpanList.createDefault();
     }
 
-    public List<HighlightSpan> getSpans() {
+    public HighlightSpanList getSpans() {
         return _Pairs;
     }
 
@@ -583,10 +753,10 @@ public class TextBuffer {
      * Pairs are continuous sequences of characters that have the same format
      * like color, font, etc.
      *
-     * @param highlightSpans A collection of Pairs, where Pair.first is the start
-     *              position of the token, and Pair.second is the type of the token.
+     * @param highlightSpans The start position and type of every token, in
+     *                       order of position
      */
-    public void setSpans(List<HighlightSpan> highlightSpans) {
+    public void setSpans(HighlightSpanList highlightSpans) {
         _Pairs = highlightSpans;
     }
 
@@ -622,10 +792,21 @@ public class TextBuffer {
     }
 
     public int undo() {
-        return _undoStack.undo();
+        // a batch is undone as a whole before any reader sees the text again
+        _writeLock.lock();
+        try {
+            return _undoStack.undo();
+        } finally {
+            _writeLock.unlock();
+        }
     }
 
     public int redo() {
-        return _undoStack.redo();
+        _writeLock.lock();
+        try {
+            return _undoStack.redo();
+        } finally {
+            _writeLock.unlock();
+        }
     }
 }
@@ -0,0 +1,78 @@
+package com.imkiva.xart.editor.common;
+
+import java.io.Reader;
+
+/**
+ * A CharSequence over a range of a TextBuffer that reads the storage in
+ * place instead of copying it.
+ * <p>
+ * The view is live: it sees edits made after it was created, and its
+ * bounds are not adjusted for them, so it is meant to be used right away,
+ * e.g. for a search, a regex match or drawing one frame, on the thread that
+ * edits the buffer. charAt() does not lock the buffer. Code running on
+ * another thread should use {@link #newReader()}, which reads in locked
+ * blocks.
+ */
+public final class TextCharSequence implements CharSequence {
+    private final TextBuffer _buf;
+    private final int _start;
+    private final int _end;
+
+    /**
+     * @param start Offset of the first char, inclusive
+     * @param end   Offset of the last char, exclusive
+     */
+    public TextCharSequence(TextBuffer buf, int start, int end) {
+        if (start < 0 || end < start) {
+            throw new IndexOutOfBoundsException("start " + start + ", end " + end);
+        }
+        _buf = buf;
+        _start = start;
+        _end = end;
+    }
+
+    @Override
+    public int length() {
+        return _end - _start;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= _end - _start) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length());
+        }
+        return _buf.peekChar(_start + index);
+    }
+
+    @Override
+    public TextCharSequence subSequence(int start, int end) {
+        if (start < 0 || end > _end - _start || start > end) {
+            throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + length());
+        }
+        return new TextCharSequence(_buf, _start + start, _start + end);
+    }
+
+    /**
+     * Copies chars [srcBegin, srcEnd) of this sequence into dst, starting at dstBegin
+     */
+    public void getChars(int srcBegin, int srcEnd, char[] dst, int dstBegin) {
+        if (srcBegin < 0 || srcEnd > _end - _start || srcBegin > srcEnd) {
+            throw new IndexOutOfBoundsException("begin " + srcBegin + ", end " + srcEnd + ", length " + length());
+        }
+        _buf.getChars(_start + srcBegin, srcEnd - srcBegin, dst, dstBegin);
+    }
+
+    /**
+     * @return A Reader over the same range
+     */
+    public Reader newReader() {
+        return new TextReader(_buf, _start, _end);
+    }
+
+    @Override
+    public String toString() {
+        char[] chars = new char[_end - _start];
+        _buf.getChars(_start, chars.length, chars, 0);
+        return new String(chars);
+    }
+}
@@ -0,0 +1,99 @@
+package com.imkiva.xart.editor.common;
+
+import java.io.Reader;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * A Reader over a range of a TextBuffer that copies the storage straight
+ * into the caller's array.
+ * <p>
+ * Every read() takes the read lock of the buffer and copies one block, so
+ * the reader can be used from another thread while the buffer is edited, and
+ * never holds up other readers. Each block is
+ * consistent, but the blocks may come from different versions of the text;
+ * a reader that must not see edits should read a snapshot instead.
+ */
+public class TextReader extends Reader {
+    private final TextBuffer _buf;
+    private final int _end;
+    private int _position;
+    private int _mark;
+
+    /**
+     * @param start Offset of the first char, inclusive
+     * @param end   Offset of the last char, exclusive
+     */
+    public TextReader(TextBuffer buf, int start, int end) {
+        _buf = buf;
+        _position = start;
+        _mark = start;
+        _end = end;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        Lock lock = _buf.getReadLock();
+        lock.lock();
+        try {
+            // don't read past the text if it shrank meanwhile
+            int end = Math.min(_end, _buf.getTextLength() - 1);
+            int count = Math.min(len, end - _position);
+            if (count <= 0) {
+                return -1;
+            }
+            _buf.getChars(_position, count, cbuf, off);
+            _position += count;
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int read() {
+        Lock lock = _buf.getReadLock();
+        lock.lock();
+        try {
+            if (_position >= Math.min(_end, _buf.getTextLength() - 1)) {
+                return -1;
+            }
+            return _buf.charAt(_position++);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long skip(long n) {
+        long skipped = Math.max(0, Math.min(n, _end - _position));
+        _position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public boolean ready() {
+        return true;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public void mark(int readAheadLimit) {
+        _mark = _position;
+    }
+
+    @Override
+    public void reset() {
+        _position = _mark;
+    }
+
+    @Override
+    public void close() {
+    }
+}
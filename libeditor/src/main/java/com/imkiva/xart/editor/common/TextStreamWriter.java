@@ -0,0 +1,170 @@
+package com.imkiva.xart.editor.common;
+
+import com.imkiva.xart.language.ParserDefinition;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Encodes the regions of a text storage to an OutputStream through fixed
+ * size buffers, converting line breaks on the way.
+ * <p>
+ * Used by {@link TextBuffer#write}. One instance is kept per TextBuffer and
+ * reused across saves; the encoder is only recreated when the encoding
+ * changes. Not thread safe.
+ */
+final class TextStreamWriter implements ITextStorage.RegionVisitor {
+    private static final int BYTE_BUFFER_SIZE = 8192;
+    private static final int CHAR_BUFFER_SIZE = 4096;
+    private static final char[] CRLF = {'\r', ParserDefinition.NEWLINE};
+    private static final char[] CR = {'\r'};
+    private static final char BYTE_ORDER_MARK = '\uFEFF';
+
+    private final ByteBuffer _bytes = ByteBuffer.allocate(BYTE_BUFFER_SIZE);
+    private final CharBuffer _chars = CharBuffer.allocate(CHAR_BUFFER_SIZE);
+    private CharsetEncoder _encoder;
+    private String _encoding;
+
+    private OutputStream _out;
+    /**
+     * Replacement for ParserDefinition.NEWLINE, or null to keep it as is
+     */
+    private char[] _lineBreak;
+    /**
+     * First error thrown while visiting, rethrown by {@link #checkError()}
+     */
+    private IOException _error;
+
+    /**
+     * Prepares for writing a new stream
+     *
+     * @param byteOrderMark Whether to start the stream with a byte order mark
+     */
+    void begin(OutputStream out, String encoding, String EOLstyle, boolean byteOrderMark) {
+        if (_encoder == null || !encoding.equals(_encoding)) {
+            _encoder = Charset.forName(encoding).newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            _encoding = encoding;
+        }
+        _encoder.reset();
+        _bytes.clear();
+        _chars.clear();
+        _out = out;
+        _error = null;
+        if (byteOrderMark) {
+            // encoded as EF BB BF, FE FF or FF FE
+            _chars.put(BYTE_ORDER_MARK);
+        }
+
+        switch (EOLstyle) {
+            case EncodingScheme.LINE_BREAK_CRLF:
+                _lineBreak = CRLF;
+                break;
+            case EncodingScheme.LINE_BREAK_CR:
+                _lineBreak = CR;
+                break;
+            default:
+                _lineBreak = null;
+                break;
+        }
+    }
+
+    @Override
+    public void visit(char[] array, int from, int to) {
+        if (_error != null) {
+            return;
+        }
+        try {
+            if (_lineBreak == null && _chars.position() == 0) {
+                // nothing to convert, encode straight from the storage
+                encode(CharBuffer.wrap(array, from, to - from), false);
+            } else {
+                translate(array, from, to);
+            }
+        } catch (IOException e) {
+            _error = e;
+        }
+    }
+
+    void checkError() throws IOException {
+        if (_error != null) {
+            IOException error = _error;
+            end();
+            throw error;
+        }
+    }
+
+    /**
+     * Flushes everything that is still buffered and releases the stream
+     */
+    void finish() throws IOException {
+        checkError();
+        _chars.flip();
+        encode(_chars, true);
+        _chars.clear();
+        while (_encoder.flush(_bytes).isOverflow()) {
+            drainBytes();
+        }
+        drainBytes();
+        _out.flush();
+        end();
+    }
+
+    /**
+     * Releases the stream without flushing, e.g. after an abort
+     */
+    void end() {
+        _out = null;
+        _error = null;
+    }
+
+    private void translate(char[] array, int from, int to) throws IOException {
+        final char[] lineBreak = _lineBreak;
+        for (int i = from; i < to; ++i) {
+            if (_chars.remaining() < 2) {
+                flushChars();
+            }
+            char c = array[i];
+            if (c == ParserDefinition.NEWLINE && lineBreak != null) {
+                _chars.put(lineBreak);
+            } else {
+                _chars.put(c);
+            }
+        }
+    }
+
+    private void flushChars() throws IOException {
+        _chars.flip();
+        encode(_chars, false);
+        // keep a dangling high surrogate for the next round
+        _chars.compact();
+    }
+
+    private void encode(CharBuffer in, boolean endOfInput) throws IOException {
+        while (true) {
+            CoderResult result = _encoder.encode(in, _bytes, endOfInput);
+            if (result.isOverflow()) {
+                drainBytes();
+            } else {
+                break;
+            }
+        }
+        if (!endOfInput && in.hasRemaining() && in != _chars) {
+            // a surrogate pair split across two regions
+            _chars.put(in);
+        }
+    }
+
+    private void drainBytes() throws IOException {
+        _bytes.flip();
+        _out.write(_bytes.array(), _bytes.arrayOffset(), _bytes.remaining());
+        _bytes.clear();
+    }
+}
@@ -52,6 +52,9 @@ import java.util.LinkedList;
  * can be retrieved from the gap and inserted characters are trivially available.
  * For undo/redo of the topmost entry, only the gap boundaries of TextBuffer
  * need to be moved.
+ * <p>
+ * Storage engines without a gap (see {@link TextBuffer#isGapRecallSupported()})
+ * lose deleted characters immediately, so deletions copy them eagerly instead.
  */
 public class UndoStack {
     /**
@@ -248,7 +251,7 @@ public class UndoStack {
         public abstract void redo();
 
         /**
-         * Populates _data with the affected text
+         * Populates _data with the affected text, unless it is already there
          */
         public abstract void recordData();
 
@@ -291,6 +294,8 @@ public class UndoStack {
             if ((time - _lastEditTime) < MERGE_TIME
                     && newStart == _start + _length) {
                 _length += length;
+                // data recorded by an earlier undo is stale now
+                _data = null;
                 trimStack();
                 return true;
             }
@@ -300,6 +305,9 @@ public class UndoStack {
 
         @Override
         public void recordData() {
+            if (_data != null) {
+                return;
+            }
             try {
                 _data = new String(_buf.subSequence(_start, _length));
             } catch (OutOfMemoryError error) {
@@ -312,7 +320,11 @@ public class UndoStack {
         public void undo() {
             if (_data == null) {
                 recordData();
-                _buf.shiftGapStart(-_length);
+                if (_buf.isGapRecallSupported()) {
+                    _buf.shiftGapStart(-_length);
+                } else {
+                    _buf.delete(_start, _length, 0, false);
+                }
             } else {
                 //dummy timestamp of 0
                 _buf.delete(_start, _length, 0, false);
@@ -338,6 +350,11 @@ public class UndoStack {
 
 
     private class DeleteCommand extends Command {
+        /**
+         * Whether _data is copied at capture time rather than from the gap
+         */
+        private final boolean _eager;
+
         /**
          * Corresponds to an deletion of text of size length starting from
          * start position, inclusive.
@@ -346,6 +363,10 @@ public class UndoStack {
             _start = start;
             _length = length;
             _group = seqNumber;
+            _eager = !_buf.isGapRecallSupported();
+            if (_eager) {
+                _data = new String(_buf.subSequence(start, length));
+            }
         }
 
         @Override
@@ -355,7 +376,12 @@ public class UndoStack {
             }
 
             if ((time - _lastEditTime) < MERGE_TIME
-                    && newStart == _start - _length - length + 1) {
+                    && newStart + length == _start) {
+                if (_eager) {
+                    _data = new String(_buf.subSequence(newStart, length)) + _data;
+                } else {
+                    _data = null;
+                }
                 _start = newStart;
                 _length += length;
                 trimStack();
@@ -367,6 +393,9 @@ public class UndoStack {
 
         @Override
         public void recordData() {
+            if (_data != null) {
+                return;
+            }
             try {
                 _data = new String(_buf.gapSubSequence(_length));
             } catch (OutOfMemoryError error) {
@@ -0,0 +1,228 @@
+package com.imkiva.xart.editor.highlight;
+
+import com.imkiva.xart.editor.api.lexer.HighlightSpanList;
+import com.imkiva.xart.editor.common.TextCharSequence;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 词法分析结果的磁盘缓存
+ * <p>
+ * 以 (语言和词法分析器版本, 文本哈希) 为键, 每个结果存为目录下的一个文件,
+ * 打开同一个文件时一次读入就能显示颜色, 不必重新分析.
+ * 目录总大小超过上限时按最近使用时间淘汰.
+ */
+public class HighlightCache {
+
+    /**
+     * 比这短的文本分析很快, 不缓存
+     */
+    public static final int MIN_TEXT_LENGTH = 64 * 1024;
+
+    private static final int MAGIC = 0x58484331;
+    private static final int FORMAT_VERSION = 1;
+    private static final String SUFFIX = ".xhc";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * 所有缓存共用的写入线程
+     */
+    private static ExecutorService writer;
+
+    private final File directory;
+    private final long maxSize;
+
+    /**
+     * @param directory 缓存目录, 例如 Context.getCacheDir() 下的子目录
+     * @param maxSize   目录中缓存文件的总大小上限, 字节
+     */
+    public HighlightCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * 计算文本的 64 位哈希 (FNV-1a)
+     */
+    public static long hash(CharSequence text) {
+        long hash = FNV_OFFSET;
+        int length = text.length();
+        if (text instanceof TextCharSequence) {
+            //成块读取, 不必每个字符都加锁
+            TextCharSequence sequence = (TextCharSequence) text;
+            char[] block = new char[8192];
+            for (int start = 0; start < length; start += block.length) {
+                int end = Math.min(start + block.length, length);
+                sequence.getChars(start, end, block, 0);
+                for (int i = 0; i < end - start; ++i) {
+                    hash = (hash ^ block[i]) * FNV_PRIME;
+                }
+            }
+        } else {
+            for (int i = 0; i < length; ++i) {
+                hash = (hash ^ text.charAt(i)) * FNV_PRIME;
+            }
+        }
+        return (hash ^ length) * FNV_PRIME;
+    }
+
+    /**
+     * 读取缓存的结果
+     *
+     * @param key         语言和词法分析器版本, 见 {@link com.imkiva.xart.editor.api.adapter.ITokenizeAdapter#getCacheKey()}
+     * @param contentHash {@link #hash(CharSequence)} 的结果
+     * @param textLength  文本长度
+     * @return 缓存的结果, 没有时为 null
+     */
+    public synchronized HighlightSpanList load(String key, long contentHash, int textLength) {
+        File file = getFile(key, contentHash);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            byte[] data;
+            try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+                data = new byte[(int) input.length()];
+                input.readFully(data);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                throw new IllegalArgumentException("Not a highlight cache file");
+            }
+            byte[] storedKey = new byte[buffer.getShort() & 0xffff];
+            buffer.get(storedKey);
+            if (!Arrays.equals(storedKey, key.getBytes(UTF_8))
+                    || buffer.getLong() != contentHash
+                    || buffer.getInt() != textLength) {
+                return null;
+            }
+            HighlightSpanList spans = HighlightSpanList.readFrom(buffer);
+            //最近使用时间
+            file.setLastModified(System.currentTimeMillis());
+            return spans;
+        } catch (IOException | RuntimeException e) {
+            //损坏的文件
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * 把结果编码为缓存文件的内容. 结果交给别人修改之前调用,
+     * 之后用 {@link #storeInBackground(String, long, byte[])} 在后台写入
+     */
+    public byte[] encode(String key, long contentHash, int textLength, HighlightSpanList spans) {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 4 + 2 + keyBytes.length + 8 + 4
+                + spans.getSerializedSize());
+        buffer.putInt(MAGIC);
+        buffer.putInt(FORMAT_VERSION);
+        buffer.putShort((short) keyBytes.length);
+        buffer.put(keyBytes);
+        buffer.putLong(contentHash);
+        buffer.putInt(textLength);
+        spans.writeTo(buffer);
+        return buffer.array();
+    }
+
+    /**
+     * 写入 {@link #encode(String, long, int, HighlightSpanList)} 的结果, 然后按需淘汰旧文件
+     */
+    public synchronized void store(String key, long contentHash, byte[] data) {
+        if (data.length > maxSize || (!directory.isDirectory() && !directory.mkdirs())) {
+            return;
+        }
+        File file = getFile(key, contentHash);
+        File temp = new File(directory, file.getName() + ".tmp");
+        try (FileOutputStream output = new FileOutputStream(temp)) {
+            output.write(data);
+        } catch (IOException e) {
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            return;
+        }
+        evict();
+    }
+
+    /**
+     * 在后台线程上调用 {@link #store(String, long, byte[])}, 按提交的顺序写入
+     */
+    public void storeInBackground(String key, long contentHash, byte[] data) {
+        getWriter().execute(() -> store(key, contentHash, data));
+    }
+
+    private static synchronized ExecutorService getWriter() {
+        if (writer == null) {
+            writer = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "XartEditor-HighlightCache");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return writer;
+    }
+
+    /**
+     * 删除所有缓存文件
+     */
+    public synchronized void clear() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(SUFFIX)) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * 从最久没用的文件开始删除, 直到总大小不超过上限
+     */
+    private void evict() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        long[] modified = new long[files.length];
+        for (int i = 0; i < files.length; ++i) {
+            total += files[i].length();
+            modified[i] = files[i].lastModified();
+        }
+        if (total <= maxSize) {
+            return;
+        }
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < order.length; ++i) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(modified[a], modified[b]));
+        for (int i = 0; i < order.length && total > maxSize; ++i) {
+            File file = files[order[i]];
+            long length = file.length();
+            if (file.delete()) {
+                total -= length;
+            }
+        }
+    }
+
+    private File getFile(String key, long contentHash) {
+        return new File(directory, String.format("%016x%016x" + SUFFIX, hash(key), contentHash));
+    }
+}
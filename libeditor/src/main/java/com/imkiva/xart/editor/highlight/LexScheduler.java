@@ -0,0 +1,142 @@
+package com.imkiva.xart.editor.highlight;
+
+import java.util.ArrayList;
+
+/**
+ * 所有 Lexer 共用的一个常驻词法分析线程
+ * <p>
+ * 每个 Lexer 最多只有一个待处理的请求: 新请求合并进还没开始的请求,
+ * 或者终止正在进行的分析, 所以总是只分析最新的文本.
+ * 请求在 Lexer 的防抖间隔内没有新请求时才开始处理, 空闲后的第一个请求立即处理.
+ */
+final class LexScheduler implements Runnable {
+
+    private static LexScheduler instance;
+
+    /**
+     * 有待处理请求的 Lexer
+     */
+    private final ArrayList<Lexer> queue = new ArrayList<>();
+
+    private Thread worker;
+
+    /**
+     * 正在分析的 Lexer, 没有时为 null
+     */
+    private Lexer running;
+
+    static synchronized LexScheduler getInstance() {
+        if (instance == null) {
+            instance = new LexScheduler();
+        }
+        return instance;
+    }
+
+    private LexScheduler() {
+    }
+
+    /**
+     * 为 lexer 提交一个请求, 文本已经由 {@link Lexer#setDocument} 设置好
+     */
+    synchronized void schedule(Lexer lexer) {
+        long now = System.nanoTime();
+        long debounce = lexer.getDebounceDelay() * 1000000L;
+
+        ++lexer.requestCount;
+        if (lexer.queued || running == lexer) {
+            ++lexer.coalescedCount;
+        }
+        lexer.dueTime = now - lexer.lastRequestTime >= debounce ? now : now + debounce;
+        lexer.lastRequestTime = now;
+        if (!lexer.queued) {
+            lexer.queued = true;
+            queue.add(lexer);
+        }
+        if (running == lexer) {
+            //正在分析的文本已经过时
+            lexer.abortTask();
+        }
+
+        if (worker == null) {
+            worker = new Thread(this, "XartEditor-Lexer");
+            worker.setDaemon(true);
+            worker.start();
+        }
+        notifyAll();
+    }
+
+    /**
+     * 丢弃 lexer 待处理的请求, 终止正在进行的分析
+     */
+    synchronized void cancel(Lexer lexer) {
+        if (lexer.queued) {
+            lexer.queued = false;
+            queue.remove(lexer);
+        }
+        if (running == lexer) {
+            lexer.abortTask();
+        }
+    }
+
+    /**
+     * @return 有待处理请求的 Lexer 数量
+     */
+    synchronized int getQueueLength() {
+        return queue.size();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Lexer lexer;
+                synchronized (this) {
+                    running = null;
+                    lexer = takeNext();
+                    running = lexer;
+                    lexer.prepareTask();
+                }
+                try {
+                    lexer.executeTask();
+                } catch (RuntimeException e) {
+                    //适配器或回调出错只丢弃这一次分析, 线程继续处理其他请求
+                    lexer.dropTask();
+                }
+            }
+        } catch (InterruptedException ignored) {
+        } finally {
+            synchronized (this) {
+                //异常退出时, 下一个请求会启动新线程
+                worker = null;
+                running = null;
+            }
+        }
+    }
+
+    /**
+     * 等待并取出防抖间隔已过的请求中最早的一个
+     */
+    private Lexer takeNext() throws InterruptedException {
+        while (true) {
+            Lexer next = null;
+            for (int i = 0; i < queue.size(); ++i) {
+                Lexer lexer = queue.get(i);
+                if (next == null || lexer.dueTime - next.dueTime < 0) {
+                    next = lexer;
+                }
+            }
+            if (next == null) {
+                wait();
+                continue;
+            }
+            long delay = next.dueTime - System.nanoTime();
+            if (delay > 0) {
+                wait(delay / 1000000L, (int) (delay % 1000000L));
+                continue;
+            }
+            next.queued = false;
+            queue.remove(next);
+            return next;
+        }
+    }
+}
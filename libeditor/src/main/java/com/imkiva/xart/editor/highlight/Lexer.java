@@ -2,14 +2,35 @@ package com.imkiva.xart.editor.highlight;
 
 import com.imkiva.xart.editor.api.adapter.ITokenizeAdapter;
 import com.imkiva.xart.editor.api.lexer.Flag;
-import com.imkiva.xart.editor.api.lexer.HighlightSpan;
+import com.imkiva.xart.editor.api.lexer.HighlightSpanList;
+import com.imkiva.xart.editor.api.lexer.HighlightTokenType;
+import com.imkiva.xart.editor.api.listener.OnLexProgressListener;
 import com.imkiva.xart.editor.common.DocumentProvider;
 
-import java.util.List;
-
 
 public class Lexer {
 
+    /**
+     * 可见区域已经分析完之后, 至少每分析这么多字符公布一次部分结果,
+     * 间隔随已分析的长度翻倍, 复制结果的总代价与文本长度成正比
+     */
+    private static final int PUBLISH_STEP = 16 * 1024;
+
+    /**
+     * 每分析这么多字符检查一次可见区域是否变化
+     */
+    private static final int PROGRESS_INTERVAL = 4 * 1024;
+
+    /**
+     * 滚动引起的重新公布之间至少间隔的时间, 纳秒
+     */
+    private static final long SCROLL_PUBLISH_INTERVAL = 50_000_000L;
+
+    /**
+     * 默认的防抖间隔, 毫秒
+     */
+    public static final long DEFAULT_DEBOUNCE_DELAY = 30;
+
     /**
      * 词法分析回调
      */
@@ -18,17 +39,64 @@ public class Lexer {
     /**
      * 词法分析适配器
      */
-    private ITokenizeAdapter tokenizeAdapter = (flag, documentProvider) -> ITokenizeAdapter.DEFAULT_HIGHLIGHT_SPANS;
+    private ITokenizeAdapter tokenizeAdapter = (flag, documentProvider) -> HighlightSpanList.createDefault();
 
     /**
-     * 要词法分析的文本提供器
+     * 要词法分析的文本提供器. 分析开始时才在分析线程上取快照,
+     * 被合并掉的请求不复制任何东西
      */
     private DocumentProvider hDoc;
 
     /**
-     * 词法分析线程
+     * 文档上的旧结果能否用于增量分析
+     */
+    private boolean incremental;
+
+    /**
+     * 最近一次分析完成的文档和所用的适配器. 别的文档是刚打开的,
+     * 分析前先查缓存; 之后的编辑不再查
+     */
+    private DocumentProvider lexedDocument;
+    private ITokenizeAdapter lexedAdapter;
+
+    /**
+     * 结果的磁盘缓存, 可能为 null
+     */
+    private volatile HighlightCache highlightCache;
+
+    /**
+     * 可见区域 [visibleStart, visibleEnd), 优先分析
      */
-    private LexThread workerThread = null;
+    private volatile int visibleStart = 0;
+    private volatile int visibleEnd = 0;
+
+    /**
+     * 适配器换过之后, 旧结果不能用于增量分析
+     */
+    private volatile boolean adapterChanged = false;
+
+    /**
+     * 词法分析任务, 在 {@link LexScheduler} 的线程上执行
+     */
+    private final LexTask task = new LexTask();
+
+    /**
+     * 防抖间隔, 毫秒. 间隔内连续的请求合并为一次分析
+     */
+    private volatile long debounceDelay = DEFAULT_DEBOUNCE_DELAY;
+
+    // 以下由 LexScheduler 的锁保护
+    boolean queued;
+    long dueTime;
+    long lastRequestTime = System.nanoTime() - Long.MAX_VALUE / 2;
+    int requestCount;
+    int coalescedCount;
+
+    // 统计, 分析线程写入
+    private volatile int completedCount;
+    private volatile int failedCount;
+    private volatile long lastLatency = -1;
+    private volatile long lastStopLatency = -1;
 
     /**
      * @return 词法分析适配器
@@ -44,6 +112,24 @@ public class Lexer {
      */
     public void setTokenizeAdapter(ITokenizeAdapter tokenizeAdapter) {
         this.tokenizeAdapter = tokenizeAdapter;
+        this.adapterChanged = true;
+    }
+
+    /**
+     * @return 结果的磁盘缓存, 可能为 null
+     */
+    public HighlightCache getHighlightCache() {
+        return highlightCache;
+    }
+
+    /**
+     * 设置结果的磁盘缓存. 刚打开的较大文本先查缓存, 文本没变就不再分析;
+     * 没有命中时分析完成后写入缓存
+     *
+     * @param highlightCache 缓存, null 表示不使用
+     */
+    public void setHighlightCache(HighlightCache highlightCache) {
+        this.highlightCache = highlightCache;
     }
 
     /**
@@ -56,15 +142,16 @@ public class Lexer {
     }
 
     public void tokenize(DocumentProvider hDoc) {
-
-        //使用副本,不然会影响渲染
-        setDocument(new DocumentProvider(hDoc));
-        if (workerThread == null) {
-            workerThread = new LexThread();
-            workerThread.start();
-        } else {
-            workerThread.restart();
+        if (hDoc.isReadOnly()) {
+            //只读文档(例如内存映射的大文件)不做词法分析
+            cancelTokenize();
+            notifyTokenizeDone(null);
+            return;
         }
+
+        //快照和旧结果的副本在分析开始时才取, 见 LexTask#tokenize()
+        setDocument(hDoc, !adapterChanged && tokenizeAdapter.isIncrementalSupported());
+        LexScheduler.getInstance().schedule(this);
     }
 
     /**
@@ -72,14 +159,47 @@ public class Lexer {
      *
      * @param result 词法分析结果
      */
-    void notifyTokenizeDone(List<HighlightSpan> result) {
+    void notifyTokenizeDone(HighlightSpanList result) {
+        notifyTokenizeDone(result, -1);
+    }
+
+    /**
+     * 提醒回调词法分析完成
+     *
+     * @param result   词法分析结果
+     * @param revision 分析的文档版本, -1 表示未知
+     */
+    void notifyTokenizeDone(HighlightSpanList result, long revision) {
         if (result == null) {
-            result = ITokenizeAdapter.DEFAULT_HIGHLIGHT_SPANS;
+            result = HighlightSpanList.createDefault();
+        }
+        adapterChanged = false;
+        if (callback != null) {
+            callback.lexDone(result, revision);
         }
+    }
+
+    /**
+     * 公布部分词法分析结果
+     *
+     * @param result   目前的结果, 还没分析到的部分已标为待分析
+     * @param revision 分析的文档版本
+     */
+    void notifyTokenizeProgress(HighlightSpanList result, long revision) {
         if (callback != null) {
-            callback.lexDone(result);
+            callback.lexProgress(result, revision);
         }
-        workerThread = null;
+    }
+
+    /**
+     * 设置可见区域, 词法分析会优先处理这部分文本, 滚动后调用
+     *
+     * @param start 可见的第一个字符
+     * @param end   可见的最后一个字符之后
+     */
+    public void setVisibleRange(int start, int end) {
+        visibleStart = start;
+        visibleEnd = end;
     }
 
     /**
@@ -87,12 +207,108 @@ public class Lexer {
      * NOTE: 需要词法分析适配器支持
      */
     public void cancelTokenize() {
-        if (workerThread != null) {
-            workerThread.abort();
-            workerThread = null;
+        LexScheduler.getInstance().cancel(this);
+    }
+
+    /**
+     * @return 防抖间隔, 毫秒
+     */
+    public long getDebounceDelay() {
+        return debounceDelay;
+    }
+
+    /**
+     * 设置防抖间隔: 请求后这么久没有新请求才开始分析, 连续输入时只分析最后的文本.
+     * 空闲后的第一个请求不受影响
+     *
+     * @param debounceDelay 毫秒, 0 表示不防抖
+     */
+    public void setDebounceDelay(long debounceDelay) {
+        this.debounceDelay = Math.max(debounceDelay, 0);
+    }
+
+    /**
+     * @return 提交过的请求数
+     */
+    public int getRequestCount() {
+        synchronized (LexScheduler.getInstance()) {
+            return requestCount;
         }
     }
 
+    /**
+     * @return 被后来的请求合并或终止的请求数
+     */
+    public int getCoalescedCount() {
+        synchronized (LexScheduler.getInstance()) {
+            return coalescedCount;
+        }
+    }
+
+    /**
+     * @return 完成并交给回调的分析次数
+     */
+    public int getCompletedCount() {
+        return completedCount;
+    }
+
+    /**
+     * @return 因为适配器或回调抛出异常而被丢弃的分析次数
+     */
+    public int getFailedCount() {
+        return failedCount;
+    }
+
+    /**
+     * @return 最近一次完成的分析从请求到完成用了多久, 毫秒; 还没有时为 -1
+     */
+    public long getLastLatency() {
+        return lastLatency;
+    }
+
+    /**
+     * @return 最近一次被终止的分析从终止到真正停下用了多久, 微秒; 还没有时为 -1
+     */
+    public long getLastStopLatency() {
+        return lastStopLatency;
+    }
+
+    /**
+     * @return 所有编辑器中等待分析的 Lexer 数量
+     */
+    public static int getQueueLength() {
+        return LexScheduler.getInstance().getQueueLength();
+    }
+
+    /**
+     * 终止正在进行的分析, 由 LexScheduler 持锁调用
+     */
+    void abortTask() {
+        task.abort();
+    }
+
+    /**
+     * 开始一次分析前, 由 LexScheduler 持锁调用
+     */
+    void prepareTask() {
+        task.prepare(lastRequestTime);
+    }
+
+    /**
+     * 在分析线程上执行分析
+     */
+    void executeTask() {
+        task.execute();
+    }
+
+    /**
+     * 分析出错时由分析线程调用, 丢弃这一次的中间结果
+     */
+    void dropTask() {
+        ++failedCount;
+        task.drop();
+    }
+
     /**
      * @return 要词法分析的文档提供器
      */
@@ -106,7 +322,18 @@ public class Lexer {
      * @param hDoc 文本内容
      */
     public synchronized void setDocument(DocumentProvider hDoc) {
+        setDocument(hDoc, false);
+    }
+
+    /**
+     * 设置文本内容
+     *
+     * @param hDoc        文本内容
+     * @param incremental 文档上的旧结果能否用于增量分析
+     */
+    synchronized void setDocument(DocumentProvider hDoc, boolean incremental) {
         this.hDoc = hDoc;
+        this.incremental = incremental;
     }
 
 
@@ -120,58 +347,239 @@ public class Lexer {
          *
          * @param results 词法分析结果
          */
-        void lexDone(List<HighlightSpan> results);
+        void lexDone(HighlightSpanList results);
+
+        /**
+         * 词法分析完成
+         *
+         * @param results  词法分析结果
+         * @param revision 分析的文档快照的版本, 可与
+         *                 {@link DocumentProvider#getRevision()} 比较判断结果是否过时;
+         *                 -1 表示未知
+         */
+        default void lexDone(HighlightSpanList results, long revision) {
+            lexDone(results);
+        }
+
+        /**
+         * 公布部分结果: 已经分析的部分, 可见区域的近似结果, 其余沿用上次的结果.
+         * 在分析线程上调用, 之后还会有 lexProgress 或 lexDone
+         *
+         * @param results  部分结果, 还没分析到的部分已标为待分析
+         * @param revision 分析的文档快照的版本
+         */
+        default void lexProgress(HighlightSpanList results, long revision) {
+        }
     }
 
     /**
-     * 词法分析的工作线程
+     * 一次词法分析
      */
-    private class LexThread extends Thread {
+    private class LexTask implements OnLexProgressListener {
 
         private final Flag isAbort;
-        private boolean rescan = false;
 
-        private List<HighlightSpan> tokenCollection;
+        /**
+         * 本次分析的文档和适配器
+         */
+        private DocumentProvider document;
+        private ITokenizeAdapter adapter;
+
+        private HighlightSpanList tokenCollection;
+        private long tokenRevision;
+        private long requestTime;
+
+        /**
+         * 要写入缓存的结果, 没有时为 null
+         */
+        private byte[] cacheData;
+        private String cacheKey;
+        private long contentHash;
+
+        // 本次分析的状态, 供公布部分结果使用
+        private CharSequence text;
+        private HighlightSpanList fallback;
+        private int nextPublish;
+        private long lastPublishTime;
 
-        public LexThread() {
+        /**
+         * 提前分析的可见区域及其结果, 没有时为 null
+         */
+        private HighlightSpanList rangeSpans;
+        private int rangeStart;
+        private int rangeEnd;
+        private boolean rangeUnsupported;
+
+        LexTask() {
             isAbort = new Flag();
         }
 
-        @Override
-        public void run() {
-            do {
-                rescan = false;
-                isAbort.clear();
-                tokenize();
-            }
-            while (rescan);
+        /**
+         * @param requestTime 要处理的请求的提交时间
+         */
+        void prepare(long requestTime) {
+            this.requestTime = requestTime;
+            isAbort.clear();
+        }
 
+        void execute() {
+            tokenize();
             if (!isAbort.isSet()) {
                 //词法分析完成
-                notifyTokenizeDone(tokenCollection);
+                lastLatency = (System.nanoTime() - requestTime) / 1000000L;
+                ++completedCount;
+                synchronized (Lexer.this) {
+                    lexedDocument = document;
+                    lexedAdapter = adapter;
+                }
+                notifyTokenizeDone(tokenCollection, tokenRevision);
+                if (cacheData != null) {
+                    HighlightCache cache = highlightCache;
+                    if (cache != null) {
+                        //写文件和淘汰在后台进行, 不耽误下一次分析
+                        cache.storeInBackground(cacheKey, contentHash, cacheData);
+                    }
+                }
+            } else {
+                //被新请求终止, 记录多久才停下
+                isAbort.acknowledge();
+                lastStopLatency = isAbort.getStopLatency() / 1000L;
             }
+            this.tokenCollection = null;
+            this.cacheData = null;
+            this.document = null;
+            this.adapter = null;
         }
 
-        /**
-         * 重新开始词法分析
-         */
-        public void restart() {
-            rescan = true;
-            isAbort.set();
+        void drop() {
+            this.tokenCollection = null;
+            this.cacheData = null;
+            this.document = null;
+            this.adapter = null;
+            this.text = null;
+            this.fallback = null;
+            this.rangeSpans = null;
         }
 
         /**
          * 终止词法分析
          */
-        public void abort() {
+        void abort() {
             isAbort.set();
         }
 
         /**
          * 执行词法分析
          */
-        public void tokenize() {
-            this.tokenCollection = tokenizeAdapter.tokenize(isAbort, hDoc.getText());
+        private void tokenize() {
+            boolean reusePrevious;
+            boolean opened;
+            synchronized (Lexer.this) {
+                this.document = getDocument();
+                this.adapter = tokenizeAdapter;
+                reusePrevious = incremental;
+                opened = document != lexedDocument || adapter != lexedAdapter;
+            }
+            //旧结果只用于增量分析和公布部分结果, 短文本不公布部分结果,
+            //所以只有这两种情况才复制
+            boolean partial = document.docLength() > PUBLISH_STEP;
+            //在分析线程上取快照, 分析期间的编辑不会影响它, 也不会阻塞渲染.
+            //旧结果和文本在同一把锁下复制, 偏移量一致, 之后的平移也不会影响分析
+            DocumentProvider snapshot = document.snapshot(reusePrevious || partial);
+            this.fallback = snapshot.getSpans();
+            this.tokenRevision = snapshot.getRevision();
+            this.text = snapshot.getCharSequence();
+
+            //刚打开的文本或刚换的语言先查缓存, 编辑后的分析不必计算哈希
+            HighlightCache cache = highlightCache;
+            this.cacheKey = null;
+            if (cache != null && opened && text.length() >= HighlightCache.MIN_TEXT_LENGTH) {
+                this.cacheKey = adapter.getCacheKey();
+            }
+            if (cacheKey != null) {
+                this.contentHash = HighlightCache.hash(text);
+                HighlightSpanList cached = cache.load(cacheKey, contentHash, text.length());
+                if (cached != null) {
+                    this.tokenCollection = cached;
+                    this.text = null;
+                    this.fallback = null;
+                    return;
+                }
+            }
+
+            this.rangeSpans = null;
+            this.rangeUnsupported = !partial;
+            this.lastPublishTime = System.nanoTime() - SCROLL_PUBLISH_INTERVAL;
+            int end = visibleEnd;
+            this.nextPublish = !partial ? Integer.MAX_VALUE
+                    : end > 0 ? Math.min(end, PUBLISH_STEP) : PUBLISH_STEP;
+            this.tokenCollection = adapter.tokenize(isAbort, text,
+                    reusePrevious ? fallback : null, this);
+            if (cacheKey != null && !isAbort.isSet()) {
+                //结果交给回调之后就会被修改, 先编码
+                this.cacheData = cache.encode(cacheKey, contentHash, text.length(), tokenCollection);
+            }
+            this.text = null;
+            this.fallback = null;
+            this.rangeSpans = null;
+        }
+
+        @Override
+        public int onLexProgress(HighlightSpanList spans, int lexedOffset) {
+            int start = visibleStart;
+            int end = visibleEnd;
+            if (start > lexedOffset && !rangeUnsupported
+                    && (rangeSpans == null || start < rangeStart || end > rangeEnd)
+                    && System.nanoTime() - lastPublishTime >= SCROLL_PUBLISH_INTERVAL) {
+                //可见区域还没分析到, 先单独分析它
+                HighlightSpanList range = adapter.tokenizeRange(isAbort, text, start, end);
+                if (range == null) {
+                    rangeUnsupported = true;
+                } else {
+                    rangeSpans = range;
+                    rangeStart = start;
+                    rangeEnd = end;
+                    publish(spans, lexedOffset);
+                }
+            }
+            if (lexedOffset >= nextPublish) {
+                publish(spans, lexedOffset);
+                nextPublish = lexedOffset + Math.max(lexedOffset, PUBLISH_STEP);
+            }
+            return Math.min(nextPublish, lexedOffset + PROGRESS_INTERVAL);
+        }
+
+        /**
+         * 拼出并公布部分结果: [0, lexedOffset) 用新结果, 可见区域用提前分析的结果,
+         * 其余用上次的结果
+         */
+        private void publish(HighlightSpanList spans, int lexedOffset) {
+            if (isAbort.isSet()) {
+                return;
+            }
+            HighlightSpanList published = spans.copy();
+            int position = lexedOffset;
+            if (rangeSpans != null && rangeEnd > lexedOffset) {
+                int start = Math.max(rangeStart, lexedOffset);
+                addFallback(published, position, start);
+                published.addRange(rangeSpans, start, rangeEnd);
+                position = rangeEnd;
+            }
+            addFallback(published, position, -1);
+            published.addDamage(lexedOffset, text.length());
+            lastPublishTime = System.nanoTime();
+            notifyTokenizeProgress(published, tokenRevision);
+        }
+
+        private void addFallback(HighlightSpanList published, int start, int end) {
+            if (start == end) {
+                return;
+            }
+            if (fallback != null) {
+                published.addRange(fallback, start, end);
+            } else {
+                published.add(start, HighlightTokenType.NORMAL);
+            }
         }
 
 
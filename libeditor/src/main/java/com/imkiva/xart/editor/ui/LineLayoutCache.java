@@ -0,0 +1,584 @@
+package com.imkiva.xart.editor.ui;
+
+import android.graphics.Paint;
+
+import com.imkiva.xart.editor.common.Document;
+import com.imkiva.xart.editor.common.DocumentProvider;
+import com.imkiva.xart.editor.common.TextBuffer;
+import com.imkiva.xart.language.ParserDefinition;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 行布局缓存
+ * <p>
+ * 每行的布局包括文本副本和每个字符的 x 坐标, 绘制时不必再测量.
+ * 布局以行的内容为键, 编辑后只有内容变了的行需要重新测量,
+ * 因插入删除而上下移动的行仍然能找到原来的布局.
+ * 文档版本没变时同一行号直接复用上次的布局, 不必读文本.
+ * 按最近使用淘汰, 行数和字符总数都有上限.
+ * <p>
+ * 很长的行另外存放, 不占字符总数: 不复制整行, 只读取并测量绘制用到的一段;
+ * 累计宽度按块保存, 编辑时按 {@link DocumentProvider#visitEdits} 重放,
+ * 只重新测量被改动的块.
+ */
+final class LineLayoutCache {
+
+    private static final int MAX_LINES = 512;
+    private static final int MAX_CHARS = 1024 * 1024;
+
+    /**
+     * 比这长的行不整行测量, 只测量绘制时用到的一段
+     */
+    static final int LONG_LINE_LENGTH = 4096;
+
+    /**
+     * 同时保存布局的长行数
+     */
+    private static final int MAX_LONG_LINES = 4;
+
+    /**
+     * 长行按块累计宽度, 每块的字符数, 编辑后在 [1, 2 * BLOCK_SIZE] 之间
+     */
+    private static final int BLOCK_SIZE = 1024;
+
+    /**
+     * 测量长行的一段时两侧多测量的字符数, 小幅滚动不必重新测量
+     */
+    private static final int MEASURE_MARGIN = 1024;
+
+    /**
+     * 按行号直接映射的最近布局, 大小是 2 的幂
+     */
+    private static final int RECENT_SIZE = 256;
+
+    /**
+     * 一行的布局
+     */
+    class LineLayout {
+        /**
+         * 行中 [textStart, textStart + text.length) 的文本, EOF 替换为 '\0'
+         */
+        char[] text;
+        int textStart;
+        int length;
+
+        final long hash;
+
+        /**
+         * 已测量的范围 [measureStart, measureEnd] 内, positions[i - measureStart]
+         * 是第 i 个字符左边相对 measureStart 的 x 坐标, Tab 已展开
+         */
+        private float[] positions;
+        int measureStart;
+        int measureEnd = -1;
+
+        /**
+         * 点击测试和光标用的累计宽度, extents[i] 是前 i 个字符的整数宽度之和,
+         * 第一次用到时计算
+         */
+        private int[] extents;
+
+        /**
+         * 最近一次由 {@link #get} 返回时的文档, 行号和文档版本
+         */
+        DocumentProvider document;
+        int line;
+        long revision;
+
+        LineLayout(char[] text, int length, long hash) {
+            this.text = text;
+            this.length = length;
+            this.hash = hash;
+        }
+
+        /**
+         * 确保 [start, end) 已经测量
+         */
+        void measure(int start, int end, Paint paint, float tabAdvance) {
+            if (start >= measureStart && end <= measureEnd) {
+                return;
+            }
+            measureText(start, end, paint, tabAdvance);
+        }
+
+        /**
+         * 测量 [start, end), 文本必须已经读入
+         */
+        final void measureText(int start, int end, Paint paint, float tabAdvance) {
+            int count = end - start;
+            int from = start - textStart;
+            float[] widths = new float[count];
+            paint.getTextWidths(text, from, count, widths);
+            float[] positions = new float[count + 1];
+            float x = 0;
+            for (int i = 0; i < count; ++i) {
+                positions[i] = x;
+                x += text[from + i] == ParserDefinition.TAB ? tabAdvance : widths[i];
+            }
+            positions[count] = x;
+            this.positions = positions;
+            this.measureStart = start;
+            this.measureEnd = end;
+        }
+
+        /**
+         * @return 第 index 个字符左边的 x 坐标, 相对已测量范围的起点, index 必须已经测量
+         */
+        float getX(int index) {
+            return positions[index - measureStart];
+        }
+
+        /**
+         * @return [start, end) 的宽度, 范围必须已经测量
+         */
+        float getAdvance(int start, int end) {
+            return getX(end) - getX(start);
+        }
+
+        /**
+         * @return 前 index 个字符的整数宽度之和, index 可以等于 length
+         */
+        int getExtent(int index) {
+            return getExtents()[index];
+        }
+
+        /**
+         * 二分查找右边缘不小于 x 的第一个字符
+         *
+         * @return 字符在行中的下标, 没有时为 length
+         */
+        int findCharAt(int x) {
+            int[] extents = getExtents();
+            int low = 0;
+            int high = length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (extents[mid + 1] >= x) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            return low;
+        }
+
+        private int[] getExtents() {
+            if (extents == null) {
+                int[] extents = new int[length + 1];
+                for (int i = 0; i < length; ++i) {
+                    char c = text[i];
+                    if (i == length - 1 && c == '\u0000') {
+                        //行尾的 EOF 在布局里被替换了
+                        c = ParserDefinition.EOF;
+                    }
+                    extents[i + 1] = extents[i] + advance.getAdvance(c);
+                }
+                this.extents = extents;
+            }
+            return extents;
+        }
+    }
+
+    /**
+     * 很长的一行的布局
+     * <p>
+     * text 只是最近测量的一段. 整数宽度按块保存: 块 b 有 blockLengths[b] 个字符,
+     * 宽度之和为 blockWidths[b], -1 表示还没测量. 块内的宽度用到时从文档读取计算.
+     */
+    private final class LongLineLayout extends LineLayout implements TextBuffer.EditVisitor {
+        /**
+         * 行首在文档中的偏移量, 随编辑重放更新
+         */
+        private int lineStart;
+        /**
+         * 重放编辑时发现行已被拆分或合并
+         */
+        private boolean broken;
+
+        private int[] blockLengths;
+        private int[] blockWidths;
+        private int blockCount;
+
+        private long lastUse;
+
+        LongLineLayout(DocumentProvider document, int lineStart, int length) {
+            super(new char[0], length, 0);
+            this.document = document;
+            this.lineStart = lineStart;
+            blockCount = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            blockLengths = new int[blockCount + 16];
+            blockWidths = new int[blockCount + 16];
+            for (int i = 0; i < blockCount; ++i) {
+                blockLengths[i] = Math.min(BLOCK_SIZE, length - i * BLOCK_SIZE);
+                blockWidths[i] = -1;
+            }
+        }
+
+        @Override
+        void measure(int start, int end, Paint paint, float tabAdvance) {
+            if (start >= measureStart && end <= measureEnd) {
+                return;
+            }
+            start = Math.max(start - MEASURE_MARGIN, 0);
+            end = Math.min(end + MEASURE_MARGIN, length);
+            int count = end - start;
+            if (text.length < count) {
+                text = new char[count];
+            }
+            document.getChars(lineStart + start, count, text, 0);
+            if (end == length && text[count - 1] == ParserDefinition.EOF) {
+                text[count - 1] = '\u0000';
+            }
+            textStart = start;
+            measureText(start, end, paint, tabAdvance);
+        }
+
+        @Override
+        int getExtent(int index) {
+            int x = 0;
+            int start = 0;
+            for (int b = 0; b < blockCount; ++b) {
+                int blockLength = blockLengths[b];
+                if (start + blockLength > index) {
+                    return x + measureChars(start, index - start);
+                }
+                x += getBlockWidth(b, start);
+                start += blockLength;
+            }
+            return x;
+        }
+
+        @Override
+        int findCharAt(int x) {
+            int left = 0;
+            int start = 0;
+            for (int b = 0; b < blockCount; ++b) {
+                int blockLength = blockLengths[b];
+                int width = getBlockWidth(b, start);
+                if (left + width >= x) {
+                    char[] chars = readChars(start, blockLength);
+                    for (int i = 0; i < blockLength; ++i) {
+                        left += advance.getAdvance(chars[i]);
+                        if (left >= x) {
+                            return start + i;
+                        }
+                    }
+                }
+                left += width;
+                start += blockLength;
+            }
+            return length;
+        }
+
+        /**
+         * 把从 revision 起的编辑重放到块上
+         *
+         * @return 布局是否仍然可用
+         */
+        boolean update(long revision) {
+            if (this.revision != revision) {
+                if (broken || !document.visitEdits(this.revision, this)) {
+                    return false;
+                }
+                this.revision = revision;
+            }
+            return !broken;
+        }
+
+        @Override
+        public void visit(int charOffset, int removedCount, int insertedCount) {
+            if (broken) {
+                return;
+            }
+            int lineEnd = lineStart + length;
+            if (charOffset + removedCount < lineStart
+                    || (charOffset + removedCount == lineStart && removedCount > 0)) {
+                //在行之前
+                lineStart += insertedCount - removedCount;
+                return;
+            }
+            if (charOffset >= lineEnd) {
+                return;
+            }
+            if (charOffset < lineStart || charOffset + removedCount > lineEnd) {
+                //跨越了行的边界
+                broken = true;
+                return;
+            }
+            int column = charOffset - lineStart;
+            if (removedCount > 0) {
+                removeChars(column, removedCount);
+            }
+            if (insertedCount > 0) {
+                insertChars(column, insertedCount);
+            }
+            length += insertedCount - removedCount;
+            //已测量的一段可能变了
+            measureEnd = -1;
+        }
+
+        private void removeChars(int column, int count) {
+            int b = 0;
+            int start = 0;
+            while (start + blockLengths[b] <= column) {
+                start += blockLengths[b++];
+            }
+            int position = column - start;
+            while (count > 0) {
+                int n = Math.min(blockLengths[b] - position, count);
+                blockLengths[b] -= n;
+                blockWidths[b] = -1;
+                count -= n;
+                if (blockLengths[b] == 0) {
+                    --blockCount;
+                    System.arraycopy(blockLengths, b + 1, blockLengths, b, blockCount - b);
+                    System.arraycopy(blockWidths, b + 1, blockWidths, b, blockCount - b);
+                } else {
+                    ++b;
+                }
+                position = 0;
+            }
+        }
+
+        private void insertChars(int column, int count) {
+            int b = 0;
+            int start = 0;
+            //插在块的边界时并入后一块, 插在行尾时并入最后一块
+            while (b < blockCount - 1 && start + blockLengths[b] <= column) {
+                start += blockLengths[b++];
+            }
+            if (blockCount == 0) {
+                blockCount = 1;
+                blockLengths[0] = 0;
+            }
+            int total = blockLengths[b] + count;
+            if (total <= 2 * BLOCK_SIZE) {
+                blockLengths[b] = total;
+                blockWidths[b] = -1;
+                return;
+            }
+            //太长的块拆开
+            int pieces = (total + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            if (blockCount + pieces - 1 > blockLengths.length) {
+                int capacity = Math.max(blockLengths.length * 2, blockCount + pieces);
+                blockLengths = Arrays.copyOf(blockLengths, capacity);
+                blockWidths = Arrays.copyOf(blockWidths, capacity);
+            }
+            System.arraycopy(blockLengths, b + 1, blockLengths, b + pieces, blockCount - b - 1);
+            System.arraycopy(blockWidths, b + 1, blockWidths, b + pieces, blockCount - b - 1);
+            blockCount += pieces - 1;
+            for (int i = 0; i < pieces; ++i) {
+                blockLengths[b + i] = Math.min(BLOCK_SIZE, total - i * BLOCK_SIZE);
+                blockWidths[b + i] = -1;
+            }
+        }
+
+        private int getBlockWidth(int b, int start) {
+            int width = blockWidths[b];
+            if (width < 0) {
+                width = measureChars(start, blockLengths[b]);
+                blockWidths[b] = width;
+            }
+            return width;
+        }
+
+        /**
+         * @return 行中 [start, start + count) 的整数宽度之和
+         */
+        private int measureChars(int start, int count) {
+            char[] chars = readChars(start, count);
+            int width = 0;
+            for (int i = 0; i < count; ++i) {
+                width += advance.getAdvance(chars[i]);
+            }
+            return width;
+        }
+
+        private char[] readChars(int start, int count) {
+            if (buffer.length < count) {
+                buffer = new char[Math.max(count, buffer.length * 2)];
+            }
+            document.getChars(lineStart + start, count, buffer, 0);
+            return buffer;
+        }
+    }
+
+    private final Document.CharAdvance advance;
+
+    private final LinkedHashMap<Long, LineLayout> layouts = new LinkedHashMap<>(64, 0.75f, true);
+    private final LineLayout[] recent = new LineLayout[RECENT_SIZE];
+    private int totalChars;
+
+    private final LongLineLayout[] longLayouts = new LongLineLayout[MAX_LONG_LINES];
+    private long useCount;
+
+    private char[] buffer = new char[256];
+
+    /**
+     * @param advance 点击测试和光标用的字符整数宽度
+     */
+    LineLayoutCache(Document.CharAdvance advance) {
+        this.advance = advance;
+    }
+
+    /**
+     * 取得一行的布局, 没有缓存时读取文本并测量
+     *
+     * @param document   文档
+     * @param lineNumber 行号
+     * @param paint      测量用的画笔
+     * @param tabAdvance Tab 的宽度
+     * @return 行的布局, 行不存在时为 null
+     */
+    LineLayout get(DocumentProvider document, int lineNumber, Paint paint, float tabAdvance) {
+        long revision = document.getRevision();
+        int slot = lineNumber & (RECENT_SIZE - 1);
+        LineLayout layout = recent[slot];
+        if (layout != null && layout.document == document
+                && layout.line == lineNumber && layout.revision == revision) {
+            return layout;
+        }
+
+        int lineOffset = document.getLineOffset(lineNumber);
+        if (lineOffset < 0) {
+            return null;
+        }
+        int lineSize = document.getLineSize(lineNumber);
+        if (lineSize > LONG_LINE_LENGTH) {
+            layout = getLongLine(document, lineOffset, lineSize, revision);
+        } else {
+            layout = getShortLine(document, lineOffset, lineSize, paint, tabAdvance);
+            if (layout == null) {
+                return null;
+            }
+        }
+        layout.document = document;
+        layout.line = lineNumber;
+        layout.revision = revision;
+        recent[slot] = layout;
+        return layout;
+    }
+
+    /**
+     * 丢弃所有布局, 字体或 Tab 宽度变化以及换了文档后调用
+     */
+    void clear() {
+        layouts.clear();
+        totalChars = 0;
+        for (int i = 0; i < RECENT_SIZE; ++i) {
+            recent[i] = null;
+        }
+        for (int i = 0; i < MAX_LONG_LINES; ++i) {
+            longLayouts[i] = null;
+        }
+    }
+
+    private LineLayout getShortLine(DocumentProvider document, int lineOffset, int lineSize,
+                                    Paint paint, float tabAdvance) {
+        if (buffer.length < lineSize) {
+            buffer = new char[Math.max(lineSize, buffer.length * 2)];
+        }
+        int length = document.getChars(lineOffset, lineSize, buffer, 0);
+        if (length <= 0) {
+            return null;
+        }
+        if (buffer[length - 1] == ParserDefinition.EOF) {
+            buffer[length - 1] = '\u0000';
+        }
+
+        long hash = hash(buffer, length);
+        LineLayout layout = layouts.get(hash);
+        if (layout == null || !sameText(layout, buffer, length)) {
+            char[] copy = new char[length];
+            System.arraycopy(buffer, 0, copy, 0, length);
+            layout = new LineLayout(copy, length, hash);
+            layout.measure(0, length, paint, tabAdvance);
+            put(layout);
+        }
+        return layout;
+    }
+
+    /**
+     * 找到行首在 lineOffset, 长为 lineSize 的长行的布局, 先把各个长行布局更新到 revision
+     */
+    private LineLayout getLongLine(DocumentProvider document, int lineOffset, int lineSize,
+                                   long revision) {
+        //空位, 没有时替换最久没用的
+        int victim = -1;
+        for (int i = 0; i < MAX_LONG_LINES; ++i) {
+            LongLineLayout layout = longLayouts[i];
+            if (layout != null && (layout.document != document || !layout.update(revision))) {
+                forget(layout);
+                longLayouts[i] = layout = null;
+            }
+            if (layout == null) {
+                if (victim < 0 || longLayouts[victim] != null) {
+                    victim = i;
+                }
+                continue;
+            }
+            if (layout.lineStart == lineOffset && layout.length == lineSize) {
+                layout.lastUse = ++useCount;
+                return layout;
+            }
+            if (victim < 0 || (longLayouts[victim] != null && layout.lastUse < longLayouts[victim].lastUse)) {
+                victim = i;
+            }
+        }
+        if (longLayouts[victim] != null) {
+            forget(longLayouts[victim]);
+        }
+        LongLineLayout layout = new LongLineLayout(document, lineOffset, lineSize);
+        layout.lastUse = ++useCount;
+        longLayouts[victim] = layout;
+        return layout;
+    }
+
+    private void put(LineLayout layout) {
+        LineLayout old = layouts.put(layout.hash, layout);
+        if (old != null) {
+            totalChars -= old.length;
+            forget(old);
+        }
+        totalChars += layout.length;
+        Iterator<Map.Entry<Long, LineLayout>> iterator = layouts.entrySet().iterator();
+        while ((layouts.size() > MAX_LINES || totalChars > MAX_CHARS) && layouts.size() > 1) {
+            LineLayout eldest = iterator.next().getValue();
+            iterator.remove();
+            totalChars -= eldest.length;
+            forget(eldest);
+        }
+    }
+
+    private void forget(LineLayout layout) {
+        int slot = layout.line & (RECENT_SIZE - 1);
+        if (recent[slot] == layout) {
+            recent[slot] = null;
+        }
+    }
+
+    private static boolean sameText(LineLayout layout, char[] text, int length) {
+        if (layout.length != length) {
+            return false;
+        }
+        char[] cached = layout.text;
+        for (int i = 0; i < length; ++i) {
+            if (cached[i] != text[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long hash(char[] text, int length) {
+        long hash = length;
+        for (int i = 0; i < length; ++i) {
+            hash = hash * 31 + text[i];
+        }
+        return hash;
+    }
+}
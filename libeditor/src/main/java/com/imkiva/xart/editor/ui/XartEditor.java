@@ -27,20 +27,27 @@ import com.imkiva.xart.event.InternalErrorEvent;
 import com.imkiva.xart.eventbus.api.IEventManager;
 import com.imkiva.xart.language.Language;
 import com.imkiva.xart.language.ParserDefinition;
-import com.imkiva.xart.editor.api.lexer.HighlightSpan;
+import com.imkiva.xart.editor.api.lexer.HighlightSpanList;
 import com.imkiva.xart.editor.api.lexer.HighlightTokenType;
 import com.imkiva.xart.editor.api.listener.OnAutoCompletionListener;
 import com.imkiva.xart.editor.api.listener.OnEditActionListener;
 import com.imkiva.xart.editor.api.skin.LightSkin;
 import com.imkiva.xart.editor.api.skin.Skin;
+import com.imkiva.xart.editor.common.DocumentLoader;
 import com.imkiva.xart.editor.common.DocumentProvider;
+import com.imkiva.xart.editor.common.EncodingScheme;
+import com.imkiva.xart.editor.common.MappedDocument;
+import com.imkiva.xart.editor.common.TextBuffer;
+import com.imkiva.xart.editor.highlight.HighlightCache;
 import com.imkiva.xart.editor.highlight.Lexer;
 import com.imkiva.xart.editor.model.Pair;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.ref.WeakReference;
 import java.util.Arrays;
-import java.util.List;
-import java.util.ListIterator;
 
 public class XartEditor extends View {
 
@@ -71,6 +78,11 @@ public class XartEditor extends View {
 
     protected static final int BASE_TEXT_SIZE_PIXELS = 16;
 
+    /**
+     * 很长的行在横向可见范围两侧多画的字符数
+     */
+    private static final int VISIBLE_COLUMN_MARGIN = 64;
+
     /**
      * 滚动控制器
      */
@@ -120,6 +132,10 @@ public class XartEditor extends View {
      * Tab所占空格对应的文本
      */
     protected String mTabSpaceContent = makeTabs();
+    /**
+     * 绘制用的行布局缓存
+     */
+    private final LineLayoutCache mLineLayouts = new LineLayoutCache(this::getAdvance);
 
     /**
      * 主题
@@ -168,8 +184,9 @@ public class XartEditor extends View {
 
     /**
      * 缓存advances,这样就不用每次都计算
+     * 按字符高 8 位分页, 用到时才分配, 覆盖整个 BMP
      */
-    private int[] mAdvances;
+    private final int[][] mAdvances = new int[256][];
 
     /**
      * 是否可以编辑
@@ -191,7 +208,12 @@ public class XartEditor extends View {
      */
     private OnEditActionListener mOnEditActionListener;
 
-    private Language mLanguage = new Language();
+    /**
+     * 默认语言, 所有编辑器共用, 以便共用词法分析器
+     */
+    private static final Language DEFAULT_LANGUAGE = new Language();
+
+    private Language mLanguage = DEFAULT_LANGUAGE;
 
     private boolean mCursorVisible = true;
 
@@ -222,6 +244,7 @@ public class XartEditor extends View {
 
     public void setTextSize(float textSize) {
         this.mTextPaint.setTextSize(textSize);
+        clearLayoutCaches();
         updateLeftPadding();
         mEditBehaviorController.updateCursorLine();
         if (!makeCharVisible(mCursorPosition)) {
@@ -249,8 +272,6 @@ public class XartEditor extends View {
         mTouchNavigationMethod = new TouchNavigationMethod(this);
     }
     protected void initView() {
-        this.mAdvances = new int[128];
-        Arrays.fill(this.mAdvances, -1);
         mEditBehaviorController = this.new EditBehaviorController();
 
         mTextPaint = new Paint();
@@ -331,6 +352,8 @@ public class XartEditor extends View {
     public void setDocumentProvider(DocumentProvider hDoc) {
         mDocument = hDoc;
         mDocument.setOnEditActionListener(mOnEditActionListener);
+        //新文档的版本号可能和旧文档的相同, 旧布局不能再按行号复用
+        mLineLayouts.clear();
         resetView();
         mEditBehaviorController.cancelSpanning(); //stop existing lex threads
         mEditBehaviorController.refreshSpans();
@@ -553,47 +576,40 @@ public class XartEditor extends View {
         if (currentOffset < 0) {
             return;
         }
+        int endPaintOffset = this.mDocument.getLineOffset(endPaintLine + 1);
+        if (endPaintOffset < 0) {
+            endPaintOffset = this.mDocument.docLength();
+        }
+        this.mEditBehaviorController.lexer.setVisibleRange(currentOffset, endPaintOffset);
         //如果开启了高亮当前所在行 并且光标在可见区域内, 画当前所在行的Rect
         if (this.isHighlightCurrentLine && beginPaintLine <= mCursorLine && endPaintLine >= mCursorLine) {
             this.mTextPaint.setColor(this.mSkin.getColor(Skin.Colorable.LINE_HIGHLIGHT));
             drawTextBackground(canvas, this.mLeftPadding, getPaintBaseline(mCursorLine), getWidth());
         }
 
-        //无论什么时候,List中至少有一个Span
-        List<HighlightSpan> highlightSpans = this.mDocument.getSpans();
-
-        HighlightSpan prevHighlightSpan;
-        HighlightSpan currHighlightSpan = highlightSpans.get(0);
-        int currIndex;
-        int nextIndex = 1;
-
-        do {
-            prevHighlightSpan = currHighlightSpan;
-            if (nextIndex < highlightSpans.size()) {
-                currIndex = nextIndex;
-                currHighlightSpan = highlightSpans.get(currIndex);
-                nextIndex++;
-            } else {
-                currHighlightSpan = null;
-            }
-            if (currHighlightSpan == null) {
-                break;
-            }
-        } while (currHighlightSpan.getOffset() <= currentOffset);
+        //无论什么时候,表中至少有一个Span
+        HighlightSpanList highlightSpans = this.mDocument.getSpans();
 
-        HighlightTokenType highlightTokenType = prevHighlightSpan.getHighlightTokenType();
-        int tokenColor = this.mSkin.getTokenColor(prevHighlightSpan);
-        this.mTextPaint.setColor(tokenColor);
-        int currentSpanOffset = currHighlightSpan != null ? currHighlightSpan.getOffset() : -1;
+        //当前Span的下标, -1 表示已经没有了
+        int currIndex = -1;
+        int nextIndex = 0;
+        int currentSpanOffset = -1;
+        HighlightTokenType highlightTokenType = HighlightTokenType.NORMAL;
+        int tokenColor = 0;
+        //需要二分查找 currentOffset 所在的Span, 第一行和跳过文本之后; 其余时候逐个向后走
+        boolean seekSpans = true;
 
         //当前所在行的行号
         int currentLineNumber = this.mDocument.findLineNumber(currentOffset);
+        float tabAdvance = this.mTextPaint.measureText(mTabSpaceContent);
 
         while (beginPaintLine <= endPaintLine) {
-            String replace = this.mDocument.getLine(beginPaintLine).replace(ParserDefinition.EOF, '\u0000');
-            if (replace.length() == 0) {
+            LineLayoutCache.LineLayout line = mLineLayouts.get(this.mDocument, beginPaintLine,
+                    this.mTextPaint, tabAdvance);
+            if (line == null) {
                 break;
             }
+            int lineLength = line.length;
             currentLineNumber++;
 
             //如果行号看不见,就不用画了
@@ -605,20 +621,49 @@ public class XartEditor extends View {
 
             int lineExtend = this.mLeftPadding;
 
-
+            //要画的字符范围 [cur, drawEnd), 很长的行只画横向可见的部分
             int cur = 0;
-            while (cur < replace.length()) {
-                if (currentOffset == currentSpanOffset) {
-                    highlightTokenType = currHighlightSpan != null ? currHighlightSpan.getHighlightTokenType() : HighlightTokenType.NORMAL;
-                    tokenColor = this.mSkin.getTokenColor(currHighlightSpan);
+            int drawEnd = lineLength;
+            if (lineLength > LineLayoutCache.LONG_LINE_LENGTH) {
+                int left = getScrollX() - this.mLeftPadding;
+                cur = Math.max(line.findCharAt(left) - VISIBLE_COLUMN_MARGIN, 0);
+                drawEnd = Math.min(line.findCharAt(left + getContentWidth())
+                        + 1 + VISIBLE_COLUMN_MARGIN, lineLength);
+                line.measure(cur, drawEnd, this.mTextPaint, tabAdvance);
+                lineExtend += line.getExtent(cur);
+                currentOffset += cur;
+                seekSpans |= cur > 0;
+            }
+
+            if (seekSpans) {
+                int spanIndex = Math.max(highlightSpans.find(currentOffset), 0);
+                highlightTokenType = highlightSpans.getType(spanIndex);
+                tokenColor = this.mSkin.getTokenColor(highlightTokenType, highlightSpans.getColor(spanIndex));
+                this.mTextPaint.setColor(tokenColor);
+                nextIndex = spanIndex + 1;
+                if (nextIndex < highlightSpans.size()) {
+                    currIndex = nextIndex;
+                    nextIndex++;
+                    currentSpanOffset = highlightSpans.getOffset(currIndex);
+                } else {
+                    currIndex = -1;
+                    currentSpanOffset = -1;
+                }
+                seekSpans = false;
+            }
+
+            while (cur < drawEnd) {
+                //编辑后被删掉的Span会缩成同一位置的空Span, 以最后一个为准
+                while (currentOffset == currentSpanOffset) {
+                    highlightTokenType = highlightSpans.getType(currIndex);
+                    tokenColor = this.mSkin.getTokenColor(highlightTokenType, highlightSpans.getColor(currIndex));
                     this.mTextPaint.setColor(tokenColor);
                     if (nextIndex < highlightSpans.size()) {
                         currIndex = nextIndex;
                         nextIndex++;
-                        currHighlightSpan = highlightSpans.get(currIndex);
-                        currentSpanOffset = currHighlightSpan.getOffset();
+                        currentSpanOffset = highlightSpans.getOffset(currIndex);
                     } else {
-                        currHighlightSpan = null;
+                        currIndex = -1;
                         currentSpanOffset = -1;
                     }
                 }
@@ -636,12 +681,11 @@ public class XartEditor extends View {
                 int min;
                 if (inSelectionRange(currentOffset)) {
 
-                    min = Math.min((getSelectionEnd() - currentOffset) + cur, replace.length());
+                    min = Math.min((getSelectionEnd() - currentOffset) + cur, drawEnd);
                     if (this.mCursorPosition > currentOffset) {
                         min = Math.min(min, (this.mCursorPosition - currentOffset) + cur);
                     }
-                    lineExtend += drawSelectedText(canvas,
-                            replace.substring(cur, min).replace("\t", mTabSpaceContent),
+                    lineExtend += drawSelectedText(canvas, line, cur, min,
                             lineExtend,
                             paintBaseline);
                     currentOffset += min - cur;
@@ -651,15 +695,14 @@ public class XartEditor extends View {
                         if (nextIndex < highlightSpans.size()) {
                             currIndex = nextIndex;
                             nextIndex++;
-                            currHighlightSpan = highlightSpans.get(currIndex);
-                            currentSpanOffset = currHighlightSpan.getOffset();
+                            currentSpanOffset = highlightSpans.getOffset(currIndex);
                         } else {
-                            currHighlightSpan = null;
+                            currIndex = -1;
                             currentSpanOffset = -1;
                         }
                     }
                 } else {
-                    min = replace.length();
+                    min = drawEnd;
                     if (currentSpanOffset > currentOffset) {
                         min = Math.min((currentSpanOffset - currentOffset) + cur, min);
                     }
@@ -670,15 +713,20 @@ public class XartEditor extends View {
                     } else if (this.mCursorPosition > currentOffset) {
                         min = Math.min(min, (this.mCursorPosition - currentOffset) + cur);
                     }
-                    String replaceIndent = replace.substring(cur, min).replace("\t", mTabSpaceContent);
-
-                    lineExtend += drawString(canvas, replaceIndent, lineExtend, paintBaseline, highlightTokenType == HighlightTokenType.KEYWORD);
+                    lineExtend += drawString(canvas, line, cur, min, lineExtend, paintBaseline, highlightTokenType == HighlightTokenType.KEYWORD);
                     currentOffset += min - cur;
                     cur = min - 1;
                 }
                 cur++;
             }
 
+            if (drawEnd < lineLength) {
+                //跳过行中看不见的部分
+                currentOffset += lineLength - drawEnd;
+                lineExtend = this.mLeftPadding + line.getExtent(lineLength);
+                seekSpans = true;
+            }
+
             //准备画下一行
             paintBaseline += lineHeight();
 
@@ -689,47 +737,6 @@ public class XartEditor extends View {
         }
     }
 
-    class SpanIndexer {
-        List<HighlightSpan> highlightSpans;
-        ListIterator<HighlightSpan> spanIterator;
-        HighlightSpan currentHighlightSpan;
-        int position;
-
-        public SpanIndexer(List<HighlightSpan> highlightSpans) {
-            this.highlightSpans = highlightSpans;
-        }
-
-        public void toPosition(int position) {
-            this.position = position;
-            spanIterator = highlightSpans.listIterator();
-            currentHighlightSpan = spanIterator.next();
-            while (spanIterator.hasNext() && currentHighlightSpan.getOffset() < position) {
-                currentHighlightSpan = spanIterator.next();
-            }
-            if (currentHighlightSpan.getOffset() < position) {
-                currentHighlightSpan = null;
-            }
-        }
-
-        public HighlightSpan next() {
-            if (spanIterator.hasNext()) {
-                currentHighlightSpan = spanIterator.next();
-            } else {
-                currentHighlightSpan = null;
-            }
-            return currentHighlightSpan;
-        }
-
-        public HighlightSpan prev() {
-            if (spanIterator.hasPrevious()) {
-                currentHighlightSpan = spanIterator.previous();
-            } else {
-                currentHighlightSpan = null;
-            }
-            return currentHighlightSpan;
-        }
-    }
-
     /**
      * 创建Tab所占空格的文本
      *
@@ -747,30 +754,46 @@ public class XartEditor extends View {
      * 绘制选择区域的文本
      *
      * @param canvas 画布
-     * @param text   选择范围内的文本
+     * @param line   文本所在行的布局
+     * @param start  选择范围的开始
+     * @param end    选择范围的结束(不包含)
      * @param x      开始X轴
      * @param y      开始Y轴
      * @return 绘制的长度
      */
-    private int drawSelectedText(final Canvas canvas, final String text, final int x, final int y) {
+    private int drawSelectedText(final Canvas canvas, final LineLayoutCache.LineLayout line,
+                                 final int start, final int end, final int x, final int y) {
         final int color = this.mTextPaint.getColor();
-        final int length = (int) this.mTextPaint.measureText(text);
+        final int length = (int) line.getAdvance(start, end);
         this.mTextPaint.setColor(this.mSkin.getColor(Skin.Colorable.SELECTION_BACKGROUND));
         this.drawTextBackground(canvas, x, y, length);
         this.mTextPaint.setColor(this.mSkin.getColor(Skin.Colorable.SELECTION_FOREGROUND));
-        this.drawString(canvas, text, x, y, false);
+        this.drawString(canvas, line, start, end, x, y, false);
         this.mTextPaint.setColor(color);
         return length;
     }
 
     /**
-     * 绘制字符串
+     * 绘制字符串, 位置取自行布局, 只需要发出绘制调用
      */
-    private float drawString(final Canvas canvas, final String s, final float x, final float y, boolean isBold) {
+    private float drawString(final Canvas canvas, final LineLayoutCache.LineLayout line,
+                             final int start, final int end, final float x, final float y, boolean isBold) {
         mTextPaint.setFakeBoldText(isBold);
-        canvas.drawText(s, x, y, this.mTextPaint);
+        final char[] text = line.text;
+        final int textStart = line.textStart;
+        final float origin = x - line.getX(start);
+        int runStart = start;
+        for (int i = start; i <= end; i++) {
+            if (i == end || text[i - textStart] == ParserDefinition.TAB) {
+                if (i > runStart) {
+                    canvas.drawText(text, runStart - textStart, i - runStart, origin + line.getX(runStart), y,
+                            this.mTextPaint);
+                }
+                runStart = i + 1;
+            }
+        }
         mTextPaint.setFakeBoldText(false);
-        return mTextPaint.measureText(s);
+        return line.getAdvance(start, end);
     }
 
     /**
@@ -918,33 +941,12 @@ public class XartEditor extends View {
      */
     protected Pair getCharExtent(int charOffset) {
         int line = mDocument.findLineNumber(charOffset);
-        int currOffset = mDocument.seekChar(mDocument.getLineOffset(line));
-        int left = 0;
-        int right = 0;
-
-        while (currOffset <= charOffset && mDocument.hasNext()) {
-            left = right;
-            char c = mDocument.next();
-            switch (c) {
-                case ' ':
-                    right += getSpaceAdvance();
-                    break;
-                case ParserDefinition.NEWLINE:
-                case ParserDefinition.EOF:
-                    right += getEOLAdvance();
-                    break;
-                case ParserDefinition.TAB:
-                    right += getTabAdvance();
-                    break;
-                default:
-                    char[] ca = {c};
-                    right += (int) mTextPaint.measureText(ca, 0, 1);
-                    break;
-            }
-            ++currOffset;
+        LineLayoutCache.LineLayout layout = getLineLayout(line);
+        if (layout == null) {
+            return new Pair(0, 0);
         }
-
-        return new Pair(left, right);
+        int index = Math.max(0, Math.min(charOffset - mDocument.getLineOffset(line), layout.length - 1));
+        return new Pair(layout.getExtent(index), layout.getExtent(index + 1));
     }
 
     /**
@@ -1008,31 +1010,13 @@ public class XartEditor extends View {
             return charIndex; // coordinate is outside, to the left of view
         }
 
-        String lineText = mDocument.getLine(line);
-
-        int extent = 0;
-        int i = 0;
-        while (i < lineText.length()) {
-            char c = lineText.charAt(i);
-            if (c == ParserDefinition.NEWLINE || c == ParserDefinition.EOF) {
-                extent += getEOLAdvance();
-            } else if (c == ' ') {
-                extent += getSpaceAdvance();
-            } else if (c == ParserDefinition.TAB) {
-                extent += getTabAdvance();
-            } else {
-                char[] ca = {c};
-                extent += (int) mTextPaint.measureText(ca, 0, 1);
-            }
-
-            if (extent >= x) {
-                break;
-            }
-
-            ++i;
+        LineLayoutCache.LineLayout layout = getLineLayout(line);
+        if (layout == null) {
+            return -1;
         }
+        int i = layout.findCharAt(x);
 
-        if (i < lineText.length()) {
+        if (i < layout.length) {
             return charIndex + i;
         }
 
@@ -1042,8 +1026,13 @@ public class XartEditor extends View {
 
     public int getAdvance(char c) {
         // Find in cache first
-        if (mAdvances[c] != -1) {
-            return mAdvances[c];
+        int[] page = mAdvances[c >>> 8];
+        if (page == null) {
+            page = new int[256];
+            Arrays.fill(page, -1);
+            mAdvances[c >>> 8] = page;
+        } else if (page[c & 0xff] != -1) {
+            return page[c & 0xff];
         }
 
         int advance;
@@ -1063,10 +1052,25 @@ public class XartEditor extends View {
                 advance = (int) mTextPaint.measureText(ca, 0, 1);
                 break;
         }
-        mAdvances[c] = advance;
+        page[c & 0xff] = advance;
         return advance;
     }
 
+    /**
+     * @return 行的布局, 行不存在时为 null
+     */
+    private LineLayoutCache.LineLayout getLineLayout(int line) {
+        return mLineLayouts.get(mDocument, line, mTextPaint, mTextPaint.measureText(mTabSpaceContent));
+    }
+
+    /**
+     * 字体, 字号或 Tab 宽度变化后丢弃测量结果
+     */
+    private void clearLayoutCaches() {
+        Arrays.fill(this.mAdvances, null);
+        mLineLayouts.clear();
+    }
+
     /**
      * @param x 横坐标
      * @param y 纵坐标
@@ -1081,31 +1085,13 @@ public class XartEditor extends View {
             return -1;
         }
 
-        String lineText = mDocument.getLine(line);
-
-        int extent = 0;
-        int i = 0;
-        while (i < lineText.length()) {
-            char c = lineText.charAt(i);
-            if (c == ParserDefinition.NEWLINE || c == ParserDefinition.EOF) {
-                extent += getEOLAdvance();
-            } else if (c == ' ') {
-                extent += getSpaceAdvance();
-            } else if (c == ParserDefinition.TAB) {
-                extent += getTabAdvance();
-            } else {
-                char[] ca = {c};
-                extent += (int) mTextPaint.measureText(ca, 0, 1);
-            }
-
-            if (extent >= x) {
-                break;
-            }
-
-            ++i;
+        LineLayoutCache.LineLayout layout = getLineLayout(line);
+        if (layout == null) {
+            return -1;
         }
+        int i = layout.findCharAt(x);
 
-        if (i < lineText.length()) {
+        if (i < layout.length) {
             return charIndex + i;
         }
 
@@ -1383,7 +1369,7 @@ public class XartEditor extends View {
      * 设置字体
      */
     public void setTypeface(Typeface typeface) {
-        Arrays.fill(this.mAdvances, -1);
+        clearLayoutCaches();
         mTextPaint.setTypeface(typeface);
         mEditBehaviorController.updateCursorLine();
         if (!makeCharVisible(mCursorPosition)) {
@@ -1422,7 +1408,7 @@ public class XartEditor extends View {
         if (factor <= 0) {
             return;
         }
-        Arrays.fill(this.mAdvances, -1);
+        clearLayoutCaches();
         this.mMaxTextWidth = 0;
         this.mTextPaint.setTextSize(factor * getContext().getResources().getDisplayMetrics().density);
 
@@ -1445,6 +1431,7 @@ public class XartEditor extends View {
         mTabLength = spaceCount;
         mEditBehaviorController.updateCursorLine();
         mTabSpaceContent = makeTabs();
+        clearLayoutCaches();
         if (!makeCharVisible(mCursorPosition)) {
             invalidate();
         }
@@ -1637,8 +1624,12 @@ public class XartEditor extends View {
      * @param text 文本内容
      */
     public void setText(String text) {
-        Document document = new Document();
-        document.insert(text.toCharArray(), 0, 0, false);
+        int textSize = text.length();
+        char[] buffer = new char[TextBuffer.memoryNeeded(textSize)];
+        text.getChars(0, textSize, buffer, 0);
+        Document document = Document.createForTextSize(textSize);
+        document.setBuffer(buffer, EncodingScheme.TEXT_ENCODING_UTF8, EncodingScheme.LINE_BREAK_LF,
+                textSize, 0);
         DocumentProvider documentProvider = new DocumentProvider(document);
         setDocumentProvider(documentProvider);
         moveCursor(0);
@@ -1646,10 +1637,65 @@ public class XartEditor extends View {
         updateLeftPadding();
     }
 
+    /**
+     * 从流中读入文本内容, 自动识别编码和换行符, 保存时用 {@link #save(OutputStream)} 按原样写回.
+     * 读入时不复制整个文本, 适合较大的文件; 超出内存的文件见 {@link #openReadOnly(File)}
+     *
+     * @param in       输入流, 读完后不关闭
+     * @param sizeHint 预计的字节数, 未知时为 -1
+     */
+    public void open(InputStream in, long sizeHint) throws IOException {
+        Document document = new DocumentLoader().load(in, sizeHint);
+        setDocumentProvider(new DocumentProvider(document));
+        moveCursor(0);
+        refreshSpans();
+        updateLeftPadding();
+    }
+
+    /**
+     * 以读入时的编码, 换行符和字节顺序标记写出文本内容. 写出的是调用时的文本, 写的过程中可以继续编辑
+     *
+     * @param out 输出流, 写完后不关闭
+     */
+    public void save(OutputStream out) throws IOException {
+        mDocument.write(out, EncodingScheme.TEXT_ENCODING_AUTO, EncodingScheme.LINE_BREAK_AUTO, null);
+    }
+
+    /**
+     * 以只读方式打开大文件
+     * 文件通过内存映射访问, 不会整个读入内存; 行索引在后台建立, 建立过程中逐步显示
+     *
+     * @param file 文件
+     * @return 打开的文档, 不再使用时需要调用 {@link MappedDocument#close()}
+     */
+    public MappedDocument openReadOnly(File file) throws IOException {
+        MappedDocument document = new MappedDocument(file, EncodingScheme.TEXT_ENCODING_AUTO);
+        setDocumentProvider(new DocumentProvider(document));
+        setToViewMode();
+        document.setOnIndexProgressListener((doc, done) -> post(() -> {
+            updateLeftPadding();
+            if (done) {
+                //分析期间文本还在变长, 建完索引后按完整的文本重新分析
+                refreshSpans();
+            }
+            invalidate();
+        }));
+        return document;
+    }
+
     public void append(String text) {
         paste(text);
     }
 
+    /**
+     * 设置词法分析结果的磁盘缓存, 所有编辑器可以共用一个
+     *
+     * @param highlightCache 缓存, null 表示不使用
+     */
+    public void setHighlightCache(HighlightCache highlightCache) {
+        mEditBehaviorController.lexer.setHighlightCache(highlightCache);
+    }
+
     /**
      * 设置语言
      *
@@ -1819,8 +1865,31 @@ public class XartEditor extends View {
         }
 
         @Override
-        public void lexDone(final List<HighlightSpan> results) {
+        public void lexDone(final HighlightSpanList results) {
+            lexDone(results, -1);
+        }
+
+        @Override
+        public void lexDone(final HighlightSpanList results, final long revision) {
+            post(() -> {
+                if (revision != -1 && revision != mDocument.getRevision()) {
+                    //文本在分析期间又被编辑过, 结果的偏移量已经过时;
+                    //保留已经平移过的旧结果, 重新分析
+                    refreshSpans();
+                    return;
+                }
+                mDocument.setSpans(results);
+                invalidate();
+            });
+        }
+
+        @Override
+        public void lexProgress(final HighlightSpanList results, final long revision) {
             post(() -> {
+                //过时的部分结果直接丢弃, 最终结果会触发重新分析
+                if (revision != mDocument.getRevision()) {
+                    return;
+                }
                 mDocument.setSpans(results);
                 invalidate();
             });
@@ -23,10 +23,33 @@ import java.io.Reader;
  */
 public abstract class JFlexLexer {
 
+    /**
+     * Returned by {@link #advance()} instead of a new Token while a
+     * {@link TokenSink} is set; the token went to the sink
+     */
+    public static final LanguageToken EMITTED = new LanguageToken(LanguageTokenType.DEFAULT, 0, 0);
+
     protected int tokenStart;
     protected int tokenLength;
     protected int offset;
 
+    /**
+     * Receives the tokens instead of new Token objects, may be null
+     */
+    private TokenSink tokenSink;
+
+    /**
+     * Sets a sink to receive the tokens as plain values. While it is set,
+     * the token helpers pass every token to it and return {@link #EMITTED},
+     * so advance() does not allocate for lexers built on them.
+     * Lexers creating Tokens on their own still return them.
+     *
+     * @param tokenSink the sink, or null to return Tokens again
+     */
+    public void setTokenSink(TokenSink tokenSink) {
+        this.tokenSink = tokenSink;
+    }
+
     /**
      * Helper method to create and return a new Token from of TokenType
      * tokenStart and tokenLength will be modified to the newStart and
@@ -43,7 +66,7 @@ public abstract class JFlexLexer {
                                   int newStart, int newLength) {
         tokenStart = newStart;
         tokenLength = newLength;
-        return new LanguageToken(type, tStart + offset, tLength);
+        return emit(type, tStart + offset, tLength, (byte) 0);
     }
 
     /**
@@ -56,7 +79,7 @@ public abstract class JFlexLexer {
      * @return
      */
     protected LanguageToken token(LanguageTokenType type, int start, int length) {
-        return new LanguageToken(type, start + offset, length);
+        return emit(type, start + offset, length, (byte) 0);
     }
 
     /**
@@ -68,7 +91,7 @@ public abstract class JFlexLexer {
      * @return
      */
     protected LanguageToken token(LanguageTokenType type) {
-        return new LanguageToken(type, yychar() + offset, yylength());
+        return emit(type, yychar() + offset, yylength(), (byte) 0);
     }
 
     /**
@@ -82,7 +105,20 @@ public abstract class JFlexLexer {
      * @return
      */
     protected LanguageToken token(LanguageTokenType type, int pairValue) {
-        return new LanguageToken(type, yychar() + offset, yylength(), (byte) pairValue);
+        return emit(type, yychar() + offset, yylength(), (byte) pairValue);
+    }
+
+    /**
+     * Passes the token to the sink if one is set, else creates it.
+     * start is absolute, offset is not added
+     */
+    private LanguageToken emit(LanguageTokenType type, int start, int length, byte pairValue) {
+        TokenSink sink = tokenSink;
+        if (sink != null) {
+            sink.token(type, start, length, pairValue);
+            return EMITTED;
+        }
+        return new LanguageToken(type, start, length, pairValue);
     }
 
 
@@ -95,7 +131,9 @@ public abstract class JFlexLexer {
     public abstract void yyreset(Reader reader);
 
     /**
-     * This is called to return the next Token from the Input Reader
+     * This is called to return the next Token from the Input Reader.
+     * While a {@link TokenSink} is set, the token may have gone to the sink
+     * instead and {@link #EMITTED} is returned
      *
      * @return next token, or null if no more tokens.
      * @throws IOException
@@ -141,4 +179,41 @@ public abstract class JFlexLexer {
 
     public void yyclose() throws IOException {
     }
+
+    /**
+     * Returns the current lexical state.
+     * Lexers generated by JFlex already have this method, so this default
+     * is only used by hand written lexers
+     *
+     * @return
+     */
+    public int yystate() {
+        return 0;
+    }
+
+    /**
+     * Enters the lexical state newState.
+     * Lexers generated by JFlex already have this method
+     *
+     * @param newState
+     */
+    public void yybegin(int newState) {
+    }
+
+    /**
+     * Resets the lexer to continue a previous run in the middle of the text:
+     * reader supplies the text from startOffset on, and lexing resumes in
+     * lexicalState, as returned by {@link #yystate()} at that point.
+     * Used for incremental lexing, see
+     * {@link ParserDefinition#isIncrementalLexingSupported()}
+     *
+     * @param reader
+     * @param startOffset
+     * @param lexicalState
+     */
+    public void yyreset(Reader reader, int startOffset, int lexicalState) {
+        yyreset(reader);
+        offset = startOffset;
+        yybegin(lexicalState);
+    }
 }
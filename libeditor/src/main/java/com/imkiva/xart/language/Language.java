@@ -9,7 +9,33 @@ public class Language {
         return "Unknown language.";
     }
 
-    public ParserDefinition getParserDefinition() {
+    private volatile ParserDefinition parserDefinition;
+
+    /**
+     * @return The parser definition of this language. It is created once by
+     * {@link #createParserDefinition()}, so every editor using this language
+     * shares it and its pooled lexers. Final so that subclasses can't
+     * bypass the cache; they override {@link #createParserDefinition()}
+     */
+    public final ParserDefinition getParserDefinition() {
+        ParserDefinition definition = parserDefinition;
+        if (definition == null) {
+            synchronized (this) {
+                definition = parserDefinition;
+                if (definition == null) {
+                    definition = createParserDefinition();
+                    parserDefinition = definition;
+                }
+            }
+        }
+        return definition;
+    }
+
+    /**
+     * Creates the parser definition of this language. Called once, by the
+     * first {@link #getParserDefinition()}
+     */
+    protected ParserDefinition createParserDefinition() {
         return new ParserDefinition(this);
     }
 }
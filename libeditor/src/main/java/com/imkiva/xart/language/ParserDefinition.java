@@ -3,6 +3,11 @@ package com.imkiva.xart.language;
 import com.imkiva.xart.language.helper.JFlexLexerAdapter;
 import com.imkiva.xart.language.helper.LanguageTokenizeAdapter;
 import com.imkiva.xart.editor.api.adapter.ITokenizeAdapter;
+import com.imkiva.xart.editor.api.lexer.HighlightTokenType;
+import com.imkiva.xart.editor.api.lexer.TokenConverter;
+
+import java.io.StringReader;
+import java.util.ArrayDeque;
 
 public class ParserDefinition {
     public final static char EOF = '\uFFFF';
@@ -13,6 +18,18 @@ public class ParserDefinition {
 
     private Language language;
 
+    /**
+     * Idle lexers, ready to be reset and used again
+     */
+    private final ArrayDeque<JFlexLexer> lexerPool = new ArrayDeque<>();
+
+    /**
+     * At most this many idle lexers are kept, enough for parallel lexing
+     */
+    private final int maxPooledLexers = Runtime.getRuntime().availableProcessors() + 1;
+
+    private HighlightTokenType[] highlightTypeMap;
+
     public ParserDefinition(Language language) {
         this.language = language;
     }
@@ -34,10 +51,92 @@ public class ParserDefinition {
         return isSentenceTerminatorForced() && (c == '.');
     }
 
+    /**
+     * Whether the lexer of this language can resume lexing in the middle of
+     * the text, so that only the edited part has to be lexed again. That is
+     * the case if everything it carries from one token to the next is its
+     * lexical state (yystate()), and it counts yychar().
+     */
+    public boolean isIncrementalLexingSupported() {
+        return false;
+    }
+
+    /**
+     * Whether large texts may be lexed in parallel chunks. The lexer needs
+     * the same support as for incremental lexing, see
+     * {@link #isIncrementalLexingSupported()}, and {@link #createLexer()}
+     * has to return a new lexer each time, as they run at the same time.
+     */
+    public boolean isParallelLexingSupported() {
+        return false;
+    }
+
+    /**
+     * Version of the lexer and the highlight type map. Increase it whenever
+     * they produce different highlights, so that cached highlights of the
+     * old version are not used any more.
+     */
+    public int getLexerVersion() {
+        return 1;
+    }
+
+    /**
+     * @return The highlight type of every token type, indexed by
+     * {@link LanguageTokenType#ordinal()}. Created once by
+     * {@link #createHighlightTypeMap()}
+     */
+    public HighlightTokenType[] getHighlightTypeMap() {
+        if (highlightTypeMap == null) {
+            highlightTypeMap = createHighlightTypeMap();
+        }
+        return highlightTypeMap;
+    }
+
+    /**
+     * Override to draw token types differently, e.g. by changing some
+     * entries of {@link TokenConverter#createDefaultTypeMap()}
+     */
+    protected HighlightTokenType[] createHighlightTypeMap() {
+        return TokenConverter.createDefaultTypeMap();
+    }
+
     public JFlexLexer createLexer() {
         return new JFlexLexerAdapter();
     }
 
+    /**
+     * Takes an idle lexer from the pool, or creates one if there is none.
+     * Generated lexers allocate large buffers, so reusing them is cheaper.
+     * The lexer belongs to the caller until it is handed back with
+     * {@link #recycleLexer(JFlexLexer)}, and has to be reset with yyreset
+     * before use.
+     */
+    public JFlexLexer obtainLexer() {
+        synchronized (lexerPool) {
+            JFlexLexer lexer = lexerPool.pollFirst();
+            if (lexer != null) {
+                return lexer;
+            }
+        }
+        return createLexer();
+    }
+
+    /**
+     * Hands a lexer from {@link #obtainLexer()} back to the pool.
+     * The lexer must not be used afterwards.
+     */
+    public void recycleLexer(JFlexLexer lexer) {
+        // drop the text, the pool must not keep documents alive
+        lexer.setTokenSink(null);
+        lexer.yyreset(new StringReader(""));
+        lexer.offset = 0;
+        synchronized (lexerPool) {
+            if (lexerPool.size() < maxPooledLexers) {
+                lexerPool.addFirst(lexer);
+            }
+        }
+    }
+
     public ITokenizeAdapter getTokenizeAdapter() {
         return new LanguageTokenizeAdapter(this);
     }
@@ -0,0 +1,20 @@
+package com.imkiva.xart.language;
+
+/**
+ * Receives tokens from a {@link JFlexLexer} as plain values, so that no
+ * {@link LanguageToken} has to be created for them.
+ *
+ * @see JFlexLexer#setTokenSink(TokenSink)
+ */
+public interface TokenSink {
+
+    /**
+     * Receives the next token
+     *
+     * @param type      type of the token
+     * @param start     absolute offset of the token, offset already added
+     * @param length    length of the token
+     * @param pairValue pair value, see {@link LanguageToken#pairValue}
+     */
+    void token(LanguageTokenType type, int start, int length, byte pairValue);
+}
@@ -1,14 +1,17 @@
 package com.imkiva.xart.language.helper;
 
 import com.imkiva.xart.language.JFlexLexer;
+import com.imkiva.xart.language.Language;
 import com.imkiva.xart.language.ParserDefinition;
 import com.imkiva.xart.editor.api.adapter.ITokenizeAdapter;
 import com.imkiva.xart.editor.api.lexer.Flag;
-import com.imkiva.xart.editor.api.lexer.HighlightSpan;
+import com.imkiva.xart.editor.api.lexer.HighlightSpanList;
 import com.imkiva.xart.editor.api.lexer.TokenConverter;
+import com.imkiva.xart.editor.api.listener.OnLexProgressListener;
+import com.imkiva.xart.editor.common.TextCharSequence;
 
+import java.io.Reader;
 import java.io.StringReader;
-import java.util.List;
 
 public class LanguageTokenizeAdapter implements ITokenizeAdapter {
     private ParserDefinition parserDefinition;
@@ -18,9 +21,100 @@ public class LanguageTokenizeAdapter implements ITokenizeAdapter {
     }
 
     @Override
-    public List<HighlightSpan> tokenize(Flag flag, String needToLex) {
-        JFlexLexer lexer = parserDefinition.createLexer();
-        lexer.yyreset(new StringReader(needToLex));
-        return TokenConverter.makeSpans(flag, lexer);
+    public HighlightSpanList tokenize(Flag flag, String needToLex) {
+        return tokenize(flag, new StringReader(needToLex), null);
+    }
+
+    @Override
+    public HighlightSpanList tokenize(Flag flag, CharSequence needToLex) {
+        if (needToLex instanceof TextCharSequence) {
+            // read the document in place
+            return tokenize(flag, ((TextCharSequence) needToLex).newReader(), null);
+        }
+        return tokenize(flag, needToLex.toString());
+    }
+
+    @Override
+    public boolean isIncrementalSupported() {
+        return parserDefinition.isIncrementalLexingSupported();
+    }
+
+    @Override
+    public HighlightSpanList tokenize(Flag flag, CharSequence needToLex, HighlightSpanList previous) {
+        return tokenize(flag, needToLex, previous, null);
+    }
+
+    @Override
+    public HighlightSpanList tokenize(Flag flag, CharSequence needToLex, HighlightSpanList previous,
+                                      OnLexProgressListener listener) {
+        int checkpoint = -1;
+        if (previous != null && isIncrementalSupported()) {
+            checkpoint = TokenConverter.findRestartCheckpoint(previous);
+        }
+        if (checkpoint < 0) {
+            int chunkCount = parserDefinition.isParallelLexingSupported()
+                    ? ParallelTokenizer.getChunkCount(needToLex.length()) : 1;
+            if (chunkCount > 1) {
+                HighlightSpanList spans = ParallelTokenizer.tokenize(parserDefinition, flag, needToLex, chunkCount);
+                if (spans != null) {
+                    return spans;
+                }
+            }
+            return tokenize(flag, newReader(needToLex, 0), listener);
+        }
+
+        int restart = previous.getCheckpointOffset(checkpoint);
+        JFlexLexer lexer = parserDefinition.obtainLexer();
+        try {
+            lexer.yyreset(newReader(needToLex, restart), restart, previous.getCheckpointState(checkpoint));
+            return TokenConverter.makeSpans(flag, lexer, parserDefinition.getHighlightTypeMap(),
+                    previous, checkpoint, -1, listener);
+        } finally {
+            parserDefinition.recycleLexer(lexer);
+        }
+    }
+
+    @Override
+    public HighlightSpanList tokenizeRange(Flag flag, CharSequence needToLex, int start, int end) {
+        // starting in the middle needs the same support as incremental lexing
+        if (!isIncrementalSupported()) {
+            return null;
+        }
+        JFlexLexer lexer = parserDefinition.obtainLexer();
+        try {
+            lexer.yyreset(newReader(needToLex, start), start, 0);
+            return TokenConverter.makeSpans(flag, lexer, parserDefinition.getHighlightTypeMap(),
+                    start, end, false);
+        } finally {
+            parserDefinition.recycleLexer(lexer);
+        }
+    }
+
+    @Override
+    public String getCacheKey() {
+        Language language = parserDefinition.getLanguage();
+        if (language == null) {
+            return null;
+        }
+        return language.getName() + "/" + parserDefinition.getLexerVersion();
+    }
+
+    private HighlightSpanList tokenize(Flag flag, Reader reader, OnLexProgressListener listener) {
+        JFlexLexer lexer = parserDefinition.obtainLexer();
+        try {
+            lexer.yyreset(reader);
+            return TokenConverter.makeSpans(flag, lexer, parserDefinition.getHighlightTypeMap(),
+                    isIncrementalSupported(), listener);
+        } finally {
+            parserDefinition.recycleLexer(lexer);
+        }
+    }
+
+    static Reader newReader(CharSequence needToLex, int start) {
+        if (needToLex instanceof TextCharSequence) {
+            // read the document in place
+            return ((TextCharSequence) needToLex).subSequence(start, needToLex.length()).newReader();
+        }
+        return new StringReader(needToLex.subSequence(start, needToLex.length()).toString());
     }
 }
@@ -0,0 +1,160 @@
+package com.imkiva.xart.language.helper;
+
+import com.imkiva.xart.editor.api.lexer.Flag;
+import com.imkiva.xart.editor.api.lexer.HighlightSpanList;
+import com.imkiva.xart.editor.api.lexer.HighlightTokenType;
+import com.imkiva.xart.editor.api.lexer.TokenConverter;
+import com.imkiva.xart.language.JFlexLexer;
+import com.imkiva.xart.language.ParserDefinition;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Lexes a large text in chunks on several threads.
+ * <p>
+ * The text is split at line starts and every chunk but the first is lexed
+ * from the initial lexical state, which is only a guess. The chunks are
+ * then joined in order like an incremental relex: the boundary is treated
+ * as edited, lexing resumes from the last checkpoint before it with the
+ * real state, and the chunk's own spans are spliced in as soon as the two
+ * runs reach a checkpoint at the same offset in the same state. If the
+ * guess was right that happens within a few hundred chars; if not, the
+ * join lexes on until they agree, up to the next boundary. Either way the
+ * spans are the same as those of a sequential lex.
+ */
+final class ParallelTokenizer {
+
+    /**
+     * Texts shorter than this are not worth splitting
+     */
+    static final int PARALLEL_THRESHOLD = 1024 * 1024;
+
+    /**
+     * Minimal number of chars in a chunk
+     */
+    private static final int MIN_CHUNK_SIZE = 256 * 1024;
+
+    /**
+     * How far to look for a line start after the ideal split point
+     */
+    private static final int MAX_LINE_SCAN = 64 * 1024;
+
+    private static ForkJoinPool pool;
+
+    private ParallelTokenizer() {
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return pool;
+    }
+
+    /**
+     * @return The number of chunks to split a text of length chars into,
+     * 1 if it should be lexed sequentially
+     */
+    static int getChunkCount(int length) {
+        if (length < PARALLEL_THRESHOLD) {
+            return 1;
+        }
+        int processors = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(processors, length / MIN_CHUNK_SIZE));
+    }
+
+    /**
+     * Lexes needToLex in chunkCount chunks, see {@link #getChunkCount(int)}.
+     * The lexers of parserDefinition have to support incremental lexing.
+     *
+     * @return The spans with checkpoints, or null if the text has to be
+     * lexed sequentially after all
+     */
+    static HighlightSpanList tokenize(ParserDefinition parserDefinition, Flag flag,
+                                      CharSequence needToLex, int chunkCount) {
+        final int[] bounds = split(needToLex, chunkCount);
+        final int count = bounds.length - 1;
+        final HighlightTokenType[] typeMap = parserDefinition.getHighlightTypeMap();
+
+        List<Future<HighlightSpanList>> chunks = new ArrayList<>(count);
+        ForkJoinPool pool = getPool();
+        for (int i = 0; i < count; ++i) {
+            final int start = bounds[i];
+            final int end = i + 1 < count ? bounds[i + 1] : -1;
+            chunks.add(pool.submit(() -> {
+                JFlexLexer lexer = parserDefinition.obtainLexer();
+                try {
+                    lexer.yyreset(LanguageTokenizeAdapter.newReader(needToLex, start), start, 0);
+                    return TokenConverter.makeSpans(flag, lexer, typeMap, start, end, true);
+                } finally {
+                    parserDefinition.recycleLexer(lexer);
+                }
+            }));
+        }
+
+        try {
+            HighlightSpanList result = chunks.get(0).get();
+            for (int i = 1; i < count && !flag.isCancelled(); ++i) {
+                HighlightSpanList chunk = chunks.get(i).get();
+                result.addAll(chunk, 0, chunk.size());
+                result.addDamage(bounds[i], bounds[i]);
+                int checkpoint = TokenConverter.findRestartCheckpoint(result);
+                if (checkpoint < 0) {
+                    return null;
+                }
+                int restart = result.getCheckpointOffset(checkpoint);
+                JFlexLexer lexer = parserDefinition.obtainLexer();
+                try {
+                    lexer.yyreset(LanguageTokenizeAdapter.newReader(needToLex, restart), restart,
+                            result.getCheckpointState(checkpoint));
+                    result = TokenConverter.makeSpans(flag, lexer, typeMap, result, checkpoint,
+                            i + 1 < count ? bounds[i + 1] : -1, null);
+                } finally {
+                    parserDefinition.recycleLexer(lexer);
+                }
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        } finally {
+            for (Future<HighlightSpanList> chunk : chunks) {
+                chunk.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * @return Chunk bounds: the start of every chunk, followed by the text length
+     */
+    private static int[] split(CharSequence text, int chunkCount) {
+        int length = text.length();
+        int[] bounds = new int[chunkCount + 1];
+        int count = 1;
+        for (int i = 1; i < chunkCount; ++i) {
+            int position = Math.max((int) ((long) length * i / chunkCount), bounds[count - 1] + 1);
+            int limit = Math.min(position + MAX_LINE_SCAN, length);
+            int lineStart = position;
+            while (lineStart < limit && text.charAt(lineStart - 1) != '\n') {
+                ++lineStart;
+            }
+            if (lineStart < limit) {
+                position = lineStart;
+            }
+            if (position >= length) {
+                break;
+            }
+            bounds[count++] = position;
+        }
+        bounds[count] = length;
+        int[] trimmed = new int[count + 1];
+        System.arraycopy(bounds, 0, trimmed, 0, count + 1);
+        return trimmed;
+    }
+}
@@ -0,0 +1,251 @@
+package com.imkiva.xart.editor.api.lexer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 区间表的存取, 扩容, 查找和跟随编辑的平移. 随机编辑与朴素模型对比:
+ * 区间起点保存在 List 里, 每次编辑逐个平移
+ */
+public class HighlightSpanListTest {
+    private static final HighlightTokenType[] TYPES = HighlightTokenType.values();
+
+    @Test
+    public void createDefault_hasOneNormalSpan() {
+        HighlightSpanList spans = HighlightSpanList.createDefault();
+        assertEquals(1, spans.size());
+        assertEquals(0, spans.getOffset(0));
+        assertEquals(HighlightTokenType.NORMAL, spans.getType(0));
+    }
+
+    @Test
+    public void add_growsAndKeepsTypesAndColors() {
+        // 从很小的容量开始, 并且在中途才出现第一个自定义颜色
+        HighlightSpanList spans = new HighlightSpanList(2);
+        for (int i = 0; i < 100; ++i) {
+            if (i >= 50 && i % 3 == 0) {
+                spans.add(i * 2, 0xFF000000 | i);
+            } else {
+                spans.add(i * 2, TYPES[i % TYPES.length]);
+            }
+        }
+        assertEquals(100, spans.size());
+        for (int i = 0; i < 100; ++i) {
+            assertEquals(i * 2, spans.getOffset(i));
+            HighlightSpan span = spans.get(i);
+            assertEquals(i * 2, span.getOffset());
+            if (i >= 50 && i % 3 == 0) {
+                assertEquals(HighlightTokenType.NOT_USE, spans.getType(i));
+                assertEquals(0xFF000000 | i, spans.getColor(i));
+                assertEquals(0xFF000000 | i, span.getColor());
+            } else {
+                assertEquals(TYPES[i % TYPES.length], spans.getType(i));
+            }
+            assertEquals(spans.getType(i), span.getHighlightTokenType());
+        }
+    }
+
+    @Test
+    public void insert_shiftsLaterSpansAndMarksDamage() {
+        HighlightSpanList spans = spans(0, 5, 10);
+        // 插入在区间起点时, 新字符属于前一个区间
+        spans.onInsert(5, 3);
+        assertOffsets(spans, 0, 8, 13);
+        assertEquals(5, spans.getDamageStart());
+        assertEquals(8, spans.getDamageEnd());
+        assertTrue(spans.isPending(6));
+        assertFalse(spans.isPending(9));
+
+        // 待分析范围随后面的编辑一起平移
+        spans.onInsert(0, 2);
+        assertOffsets(spans, 0, 10, 15);
+        assertEquals(0, spans.getDamageStart());
+        assertEquals(10, spans.getDamageEnd());
+    }
+
+    @Test
+    public void delete_collapsesSpansInsideRange() {
+        HighlightSpanList spans = spans(0, 5, 10, 15);
+        spans.onDelete(3, 9);
+        assertOffsets(spans, 0, 3, 3, 6);
+        assertEquals(3, spans.getDamageStart());
+        assertEquals(3, spans.getDamageEnd());
+        assertEquals(2, spans.find(3));
+
+        spans.clearDamage();
+        assertEquals(-1, spans.getDamageStart());
+        assertFalse(spans.isPending(3));
+    }
+
+    @Test
+    public void randomEdits_matchModel() {
+        Random random = new Random(3);
+        for (int round = 0; round < 300; ++round) {
+            Model model = Model.random(random);
+            HighlightSpanList spans = model.toSpans();
+            int length = model.last() + 1 + random.nextInt(20);
+            for (int step = 0; step < 40; ++step) {
+                int offset = random.nextInt(length + 1);
+                if (random.nextBoolean() || offset == length) {
+                    int count = random.nextInt(10) + (random.nextInt(10) == 0 ? 0 : 1);
+                    model.insert(offset, count);
+                    spans.onInsert(offset, count);
+                    length += count;
+                } else {
+                    int count = 1 + random.nextInt(Math.min(length - offset, 12));
+                    model.delete(offset, count);
+                    spans.onDelete(offset, count);
+                    length -= count;
+                }
+                assertMatches(model, spans);
+                if (random.nextInt(10) == 0) {
+                    spans.clearDamage();
+                    model.damageStart = model.damageEnd = -1;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void find_returnsLastSpanStartingAtOrBefore() {
+        HighlightSpanList spans = new HighlightSpanList();
+        // 下标 1 和 3 是空区间
+        int[] offsets = {0, 0, 3, 3, 7};
+        for (int offset : offsets) {
+            spans.add(offset, HighlightTokenType.NORMAL);
+        }
+        assertEquals(-1, spans.find(-1));
+        assertEquals(1, spans.find(0));
+        assertEquals(1, spans.find(2));
+        assertEquals(3, spans.find(3));
+        assertEquals(3, spans.find(6));
+        assertEquals(4, spans.find(7));
+        assertEquals(4, spans.find(Integer.MAX_VALUE));
+        assertEquals(-1, new HighlightSpanList().find(0));
+    }
+
+    private static HighlightSpanList spans(int... offsets) {
+        HighlightSpanList spans = new HighlightSpanList();
+        for (int offset : offsets) {
+            spans.add(offset, HighlightTokenType.NORMAL);
+        }
+        return spans;
+    }
+
+    private static void assertOffsets(HighlightSpanList spans, int... offsets) {
+        assertEquals(offsets.length, spans.size());
+        for (int i = 0; i < offsets.length; ++i) {
+            assertEquals("offset of span " + i, offsets[i], spans.getOffset(i));
+        }
+    }
+
+    private static void assertMatches(Model model, HighlightSpanList spans) {
+        int size = model.offsets.size();
+        assertEquals(size, spans.size());
+        for (int i = 0; i < size; ++i) {
+            assertEquals("offset of span " + i, (int) model.offsets.get(i), spans.getOffset(i));
+            assertEquals(model.types.get(i), spans.getType(i));
+            if (model.types.get(i) == HighlightTokenType.NOT_USE) {
+                assertEquals((int) model.colors.get(i), spans.getColor(i));
+            }
+        }
+        for (int offset = -1; offset <= model.last() + 2; ++offset) {
+            int expected = -1;
+            for (int i = 0; i < size && model.offsets.get(i) <= offset; ++i) {
+                expected = i;
+            }
+            assertEquals("find " + offset, expected, spans.find(offset));
+        }
+
+        assertEquals(model.damageStart, spans.getDamageStart());
+        assertEquals(model.damageEnd, spans.getDamageEnd());
+    }
+
+    private static final class Model {
+        final List<Integer> offsets = new ArrayList<>();
+        final List<HighlightTokenType> types = new ArrayList<>();
+        final List<Integer> colors = new ArrayList<>();
+        int damageStart = -1;
+        int damageEnd = -1;
+
+        static Model random(Random random) {
+            Model model = new Model();
+            int count = 1 + random.nextInt(30);
+            int offset = 0;
+            for (int i = 0; i < count; ++i) {
+                model.offsets.add(offset);
+                model.types.add(TYPES[random.nextInt(TYPES.length)]);
+                model.colors.add(random.nextInt());
+                // 有时是空区间
+                offset += random.nextInt(6);
+            }
+            return model;
+        }
+
+        HighlightSpanList toSpans() {
+            HighlightSpanList spans = new HighlightSpanList(2);
+            for (int i = 0; i < offsets.size(); ++i) {
+                if (types.get(i) == HighlightTokenType.NOT_USE) {
+                    spans.add(offsets.get(i), colors.get(i));
+                } else {
+                    spans.add(offsets.get(i), types.get(i));
+                }
+            }
+            return spans;
+        }
+
+        int last() {
+            return offsets.get(offsets.size() - 1);
+        }
+
+        void insert(int offset, int count) {
+            if (count <= 0) {
+                return;
+            }
+            for (int i = 1; i < offsets.size(); ++i) {
+                if (offsets.get(i) >= offset) {
+                    offsets.set(i, offsets.get(i) + count);
+                }
+            }
+            if (damageStart >= 0) {
+                if (damageStart > offset) {
+                    damageStart += count;
+                }
+                if (damageEnd >= offset) {
+                    damageEnd += count;
+                }
+            }
+            damage(offset, offset + count);
+        }
+
+        void delete(int offset, int count) {
+            for (int i = 1; i < offsets.size(); ++i) {
+                offsets.set(i, mapDeleted(offsets.get(i), offset, count));
+            }
+            if (damageStart >= 0) {
+                damageStart = mapDeleted(damageStart, offset, count);
+                damageEnd = mapDeleted(damageEnd, offset, count);
+            }
+            damage(offset, offset);
+        }
+
+        private void damage(int start, int end) {
+            damageStart = damageStart < 0 ? start : Math.min(damageStart, start);
+            damageEnd = Math.max(damageEnd, end);
+        }
+
+        private static int mapDeleted(int position, int offset, int count) {
+            if (position <= offset) {
+                return position;
+            }
+            return position >= offset + count ? position - count : offset;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.imkiva.xart.editor.api.lexer;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 比较两个区间表画出来的效果: 每个字符的高亮类型(和自定义颜色)相同即可,
+ * 区间怎样划分, 检查点在哪里都不影响
+ */
+public final class SpanAssert {
+
+    private SpanAssert() {
+    }
+
+    /**
+     * @param length 比较 [0, length) 内的字符
+     */
+    public static void assertSameHighlights(HighlightSpanList expected, HighlightSpanList actual, int length) {
+        int e = 0;
+        int a = 0;
+        for (int offset = 0; offset < length; ++offset) {
+            e = advance(expected, e, offset);
+            a = advance(actual, a, offset);
+            assertEquals("type at " + offset, expected.getType(e), actual.getType(a));
+            if (expected.getType(e) == HighlightTokenType.NOT_USE) {
+                assertEquals("color at " + offset, expected.getColor(e), actual.getColor(a));
+            }
+        }
+    }
+
+    /**
+     * @return 从 index 往后, 覆盖 offset 的区间下标
+     */
+    private static int advance(HighlightSpanList spans, int index, int offset) {
+        while (index + 1 < spans.size() && spans.getOffset(index + 1) <= offset) {
+            ++index;
+        }
+        return index;
+    }
+}
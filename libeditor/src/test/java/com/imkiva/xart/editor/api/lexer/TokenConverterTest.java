@@ -0,0 +1,80 @@
+package com.imkiva.xart.editor.api.lexer;
+
+import com.imkiva.xart.language.LanguageToken;
+import com.imkiva.xart.language.SimpleLexer;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 相邻的同类记号合并成一个区间后, 每个字符的颜色应该和每个记号一个区间时相同
+ */
+public class TokenConverterTest {
+    private static final String TEXT = "int a = 1;\n"
+            + "/* block\n   comment */ if (a) return \"str\"; // line\n"
+            + "while (a)   b = c + 22 ;\n";
+
+    @Test
+    public void mergedSpans_drawLikeOneSpanPerToken() throws IOException {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 5000) {
+            text.append(TEXT);
+        }
+        HighlightTokenType[] typeMap = TokenConverter.createDefaultTypeMap();
+        HighlightSpanList perToken = perToken(text.toString(), typeMap);
+
+        for (boolean checkpoints : new boolean[]{false, true}) {
+            SimpleLexer lexer = new SimpleLexer(null);
+            lexer.yyreset(new StringReader(text.toString()));
+            HighlightSpanList merged = TokenConverter.makeSpans(new Flag(), lexer, typeMap, checkpoints, null);
+            SpanAssert.assertSameHighlights(perToken, merged, text.length());
+            assertTrue(merged.size() < perToken.size());
+
+            // 只有检查点所在的区间可以和前一个区间同类
+            // 第一个记号处总有一个检查点
+            int checkpoint = checkpoints ? 1 : 0;
+            for (int i = 1; i < merged.size(); ++i) {
+                if (checkpoint < merged.getCheckpointCount() && merged.getCheckpointSpan(checkpoint) == i) {
+                    ++checkpoint;
+                    continue;
+                }
+                assertNotEquals("span " + i, merged.getType(i - 1), merged.getType(i));
+            }
+            assertEquals(checkpoint, merged.getCheckpointCount());
+            if (checkpoints) {
+                assertEquals(0, merged.getCheckpointSpan(0));
+                assertTrue(checkpoint > 1);
+            }
+        }
+    }
+
+    @Test
+    public void emptyText_hasOneNormalSpan() {
+        SimpleLexer lexer = new SimpleLexer(null);
+        lexer.yyreset(new StringReader(""));
+        HighlightSpanList spans = TokenConverter.makeSpans(new Flag(), lexer);
+        assertEquals(1, spans.size());
+        assertEquals(0, spans.getOffset(0));
+        assertEquals(HighlightTokenType.NORMAL, spans.getType(0));
+    }
+
+    /**
+     * 不经过 TokenConverter, 直接为每个记号建一个区间
+     */
+    private static HighlightSpanList perToken(String text, HighlightTokenType[] typeMap) throws IOException {
+        SimpleLexer lexer = new SimpleLexer(null);
+        lexer.yyreset(new StringReader(text));
+        HighlightSpanList spans = new HighlightSpanList();
+        LanguageToken token;
+        while ((token = lexer.advance()) != null) {
+            spans.add(token.start, typeMap[token.type.ordinal()]);
+        }
+        return spans;
+    }
+}
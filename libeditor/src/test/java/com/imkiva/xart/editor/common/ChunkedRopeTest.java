@@ -0,0 +1,120 @@
+package com.imkiva.xart.editor.common;
+
+import com.imkiva.xart.language.ParserDefinition;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks {@link ChunkedRope} against a StringBuilder, including edits of
+ * chunks still shared with a buffer adopted by setContents
+ */
+public class ChunkedRopeTest {
+
+    @Test
+    public void empty_holdsOnlyEof() {
+        ChunkedRope rope = new ChunkedRope();
+        assertEquals(1, rope.length());
+        assertEquals(ParserDefinition.EOF, rope.charAt(0));
+        rope.setContents(new char[0], 0);
+        assertText("", rope);
+    }
+
+    @Test
+    public void randomEdits_matchString() {
+        Random random = new Random(5);
+        for (int round = 0; round < 20; ++round) {
+            ChunkedRope rope = new ChunkedRope();
+            StringBuilder model = new StringBuilder();
+            if (random.nextBoolean()) {
+                // start from a big shared buffer, like a loaded file
+                String text = randomText(random, 3 * ChunkedRope.CHUNK_SIZE + random.nextInt(1000));
+                char[] buffer = new char[text.length() + random.nextInt(10)];
+                text.getChars(0, text.length(), buffer, 0);
+                rope.setContents(buffer, text.length());
+                model.append(text);
+            }
+            for (int step = 0; step < 300; ++step) {
+                edit(random, rope, model);
+                assertText(model.toString(), rope);
+            }
+        }
+    }
+
+    @Test
+    public void snapshots_areIndependent() {
+        Random random = new Random(6);
+        for (int round = 0; round < 10; ++round) {
+            ChunkedRope rope = new ChunkedRope();
+            StringBuilder model = new StringBuilder(randomText(random, 2 * ChunkedRope.CHUNK_SIZE));
+            rope.insert(0, model.toString().toCharArray(), 0, model.length());
+            List<ITextStorage> snapshots = new ArrayList<>();
+            List<StringBuilder> models = new ArrayList<>();
+            for (int step = 0; step < 200; ++step) {
+                if (random.nextInt(10) == 0) {
+                    snapshots.add(rope.snapshot());
+                    models.add(new StringBuilder(model));
+                }
+                edit(random, rope, model);
+                if (!snapshots.isEmpty() && random.nextInt(4) == 0) {
+                    // snapshots are storages of their own and can be edited too
+                    int i = random.nextInt(snapshots.size());
+                    edit(random, snapshots.get(i), models.get(i));
+                }
+                assertText(model.toString(), rope);
+                for (int i = 0; i < snapshots.size(); ++i) {
+                    assertText(models.get(i).toString(), snapshots.get(i));
+                }
+            }
+        }
+    }
+
+    static void edit(Random random, ITextStorage storage, StringBuilder model) {
+        if (random.nextBoolean() || model.length() == 0) {
+            int offset = random.nextInt(model.length() + 1);
+            int length = random.nextInt(10) == 0 ? random.nextInt(2 * ChunkedRope.CHUNK_SIZE) : 1 + random.nextInt(5);
+            String text = randomText(random, length);
+            storage.insert(offset, text.toCharArray(), 0, text.length());
+            model.insert(offset, text);
+        } else {
+            int offset = random.nextInt(model.length());
+            int max = random.nextInt(10) == 0 ? ChunkedRope.CHUNK_SIZE * 2 : 5;
+            int count = 1 + random.nextInt(Math.min(max, model.length() - offset));
+            storage.delete(offset, count);
+            model.delete(offset, offset + count);
+        }
+    }
+
+    static String randomText(Random random, int length) {
+        char[] text = new char[length];
+        for (int i = 0; i < length; ++i) {
+            text[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(text);
+    }
+
+    /**
+     * Compares the storage with text through every read method
+     */
+    static void assertText(String text, ITextStorage storage) {
+        String withEof = text + ParserDefinition.EOF;
+        assertEquals(withEof.length(), storage.length());
+        char[] chars = new char[withEof.length()];
+        storage.getChars(0, chars.length, chars, 0);
+        assertEquals(withEof, new String(chars));
+        for (int i = 0; i < withEof.length(); i += 97) {
+            assertEquals(withEof.charAt(i), storage.charAt(i));
+        }
+
+        int from = withEof.length() / 3;
+        int count = withEof.length() - from;
+        final StringBuilder visited = new StringBuilder();
+        storage.visitRegions(from, count, (array, start, end) -> visited.append(array, start, end - start));
+        assertEquals(withEof.substring(from), visited.toString());
+    }
+}
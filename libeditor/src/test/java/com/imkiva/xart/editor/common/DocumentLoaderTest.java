@@ -0,0 +1,217 @@
+package com.imkiva.xart.editor.common;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Loads bytes and writes them back, checking the text against String
+ * replacement of the line breaks
+ */
+public class DocumentLoaderTest {
+    private static final String[] BREAKS = {"\n", "\r\n", "\r"};
+    private static final String[] STYLES = {
+            EncodingScheme.LINE_BREAK_LF, EncodingScheme.LINE_BREAK_CRLF, EncodingScheme.LINE_BREAK_CR
+    };
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Test
+    public void empty_hasOneLine() throws IOException {
+        Document document = load(new byte[0], 0);
+        TextBufferTest.assertMatches("", document);
+        assertEquals(EncodingScheme.TEXT_ENCODING_UTF8, document.getEncodingScheme());
+        assertEquals(EncodingScheme.LINE_BREAK_LF, document.getEOLType());
+        assertArrayEquals(new byte[0], write(document, EncodingScheme.LINE_BREAK_AUTO));
+    }
+
+    @Test
+    public void lineBreaks_areNormalizedAndWrittenBack() throws IOException {
+        Random random = new Random(11);
+        for (int round = 0; round < 60; ++round) {
+            int style = round % BREAKS.length;
+            String text = randomText(random, random.nextInt(4) == 0 ? 200000 : 300, BREAKS[style]);
+            byte[] bytes = text.getBytes(UTF8);
+
+            Document document = load(bytes, random.nextBoolean() ? bytes.length : -1);
+            TextBufferTest.assertMatches(normalize(text), document);
+            if (text.contains(BREAKS[style])) {
+                assertEquals(STYLES[style], document.getEOLType());
+            }
+            assertArrayEquals(bytes, write(document, EncodingScheme.LINE_BREAK_AUTO));
+        }
+    }
+
+    @Test
+    public void lineBreaks_areConverted() throws IOException {
+        Random random = new Random(13);
+        String text = randomText(random, 5000, "\r\n");
+        Document document = load(text.getBytes(UTF8), -1);
+        for (int style = 0; style < BREAKS.length; ++style) {
+            String expected = normalize(text).replace("\n", BREAKS[style]);
+            assertArrayEquals(expected.getBytes(UTF8), write(document, STYLES[style]));
+            assertEquals(STYLES[style], document.getEOLType());
+        }
+        // AUTO keeps the style of the last save
+        assertArrayEquals(text.replace("\r\n", "\r").getBytes(UTF8),
+                write(document, EncodingScheme.LINE_BREAK_AUTO));
+    }
+
+    @Test
+    public void mixedLineBreaks_takeTheFirstStyle() throws IOException {
+        Document document = load("a\r\nb\nc\rd\r\r\n".getBytes(UTF8), -1);
+        TextBufferTest.assertMatches("a\nb\nc\nd\n\n", document);
+        assertEquals(EncodingScheme.LINE_BREAK_CRLF, document.getEOLType());
+
+        document = load("a\rb\r\n".getBytes(UTF8), -1);
+        TextBufferTest.assertMatches("a\nb\n", document);
+        assertEquals(EncodingScheme.LINE_BREAK_CR, document.getEOLType());
+    }
+
+    @Test
+    public void trailingCr_isALineBreak() throws IOException {
+        Document document = load("abc\r".getBytes(UTF8), -1);
+        TextBufferTest.assertMatches("abc\n", document);
+        assertEquals(EncodingScheme.LINE_BREAK_CR, document.getEOLType());
+    }
+
+    /**
+     * A CRLF whose halves arrive in different reads is still one line break
+     */
+    @Test
+    public void crlfAcrossReads_isOneLineBreak() throws IOException {
+        for (int split = 64 * 1024 - 2; split <= 64 * 1024 + 1; ++split) {
+            char[] chars = new char[100000];
+            Arrays.fill(chars, 'x');
+            chars[split] = '\r';
+            chars[split + 1] = '\n';
+            String text = new String(chars);
+            Document document = load(text.getBytes(UTF8), -1);
+            TextBufferTest.assertMatches(normalize(text), document);
+            assertEquals(EncodingScheme.LINE_BREAK_CRLF, document.getEOLType());
+        }
+    }
+
+    @Test
+    public void unicode_survivesReadBoundaries() throws IOException {
+        Random random = new Random(17);
+        for (int round = 0; round < 10; ++round) {
+            String text = randomText(random, 100000, "\r\n");
+            byte[] bytes = text.getBytes(UTF8);
+            Document document = new DocumentLoader().load(new TrickleChannel(bytes, random), -1);
+            TextBufferTest.assertMatches(normalize(text), document);
+            assertArrayEquals(bytes, write(document, EncodingScheme.LINE_BREAK_AUTO));
+        }
+    }
+
+    @Test
+    public void byteOrderMark_selectsEncodingAndIsWrittenBack() throws IOException {
+        String text = "a\r\n中文😀\r\nb";
+        String[] encodings = {
+                EncodingScheme.TEXT_ENCODING_UTF8, EncodingScheme.TEXT_ENCODING_UTF16BE,
+                EncodingScheme.TEXT_ENCODING_UTF16LE
+        };
+        for (String encoding : encodings) {
+            byte[] bytes = ("\uFEFF" + text).getBytes(Charset.forName(encoding));
+            Document document = load(bytes, bytes.length);
+            TextBufferTest.assertMatches(normalize(text), document);
+            assertEquals(encoding, document.getEncodingScheme());
+            assertEquals(EncodingScheme.LINE_BREAK_CRLF, document.getEOLType());
+            assertTrue(document.hasByteOrderMark());
+            assertArrayEquals(bytes, write(document, EncodingScheme.LINE_BREAK_AUTO));
+
+            // and the saved file opens the same way
+            Document reopened = load(write(document, EncodingScheme.LINE_BREAK_AUTO), -1);
+            assertEquals(encoding, reopened.getEncodingScheme());
+            TextBufferTest.assertMatches(normalize(text), reopened);
+        }
+    }
+
+    @Test
+    public void noByteOrderMark_isNotAdded() throws IOException {
+        byte[] bytes = "plain\n".getBytes(UTF8);
+        Document document = load(bytes, bytes.length);
+        assertFalse(document.hasByteOrderMark());
+        assertArrayEquals(bytes, write(document, EncodingScheme.LINE_BREAK_AUTO));
+    }
+
+    @Test
+    public void invalidUtf8_isReadAsLatin1() throws IOException {
+        byte[] bytes = {'c', 'a', 'f', (byte) 0xE9, '\n', (byte) 0xFF};
+        Document document = load(bytes, bytes.length);
+        TextBufferTest.assertMatches("café\nÿ", document);
+        assertEquals(EncodingScheme.TEXT_ENCODING_LATIN1, document.getEncodingScheme());
+        assertArrayEquals(bytes, write(document, EncodingScheme.LINE_BREAK_AUTO));
+    }
+
+    private static Document load(byte[] bytes, long sizeHint) throws IOException {
+        return new DocumentLoader().load(new ByteArrayInputStream(bytes), sizeHint);
+    }
+
+    private static byte[] write(Document document, String EOLstyle) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        document.write(out, EncodingScheme.TEXT_ENCODING_AUTO, EOLstyle, null);
+        return out.toByteArray();
+    }
+
+    private static String normalize(String text) {
+        return text.replace("\r\n", "\n").replace('\r', '\n');
+    }
+
+    /**
+     * Lines of ASCII, two and three byte UTF-8 chars and surrogate pairs
+     */
+    private static String randomText(Random random, int length, String lineBreak) {
+        String[] pieces = {"a", "z", " ", "\t", "é", "中", "😀", lineBreak};
+        StringBuilder text = new StringBuilder(length);
+        while (text.length() < length) {
+            text.append(pieces[random.nextInt(pieces.length)]);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Hands out the bytes a few at a time
+     */
+    private static final class TrickleChannel implements ReadableByteChannel {
+        private final byte[] _bytes;
+        private final Random _random;
+        private int _position;
+
+        TrickleChannel(byte[] bytes, Random random) {
+            _bytes = bytes;
+            _random = random;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (_position == _bytes.length) {
+                return -1;
+            }
+            int n = Math.min(Math.min(dst.remaining(), 1 + _random.nextInt(7)), _bytes.length - _position);
+            dst.put(_bytes, _position, n);
+            _position += n;
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
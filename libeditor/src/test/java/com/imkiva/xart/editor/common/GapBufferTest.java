@@ -0,0 +1,86 @@
+package com.imkiva.xart.editor.common;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks that {@link GapBuffer} snapshots, which share the buffer until an
+ * edit would overwrite it, keep their text
+ */
+public class GapBufferTest {
+
+    @Test
+    public void typingAtTheGap_keepsSharing() {
+        GapBuffer buffer = newBuffer("hello world");
+        buffer.insert(5, new char[]{','}, 0, 1);
+        GapBuffer snapshot = (GapBuffer) buffer.snapshot();
+
+        buffer.insert(6, new char[]{'!', '!'}, 0, 2);
+        buffer.delete(7, 1);
+        assertSame(snapshot.getArray(), buffer.getArray());
+        ChunkedRopeTest.assertText("hello,! world", buffer);
+        ChunkedRopeTest.assertText("hello, world", snapshot);
+    }
+
+    @Test
+    public void editBelowTheSnapshotGap_copies() {
+        GapBuffer buffer = newBuffer("hello world");
+        GapBuffer snapshot = (GapBuffer) buffer.snapshot();
+
+        buffer.delete(0, 6);
+        buffer.insert(0, new char[]{'a', ' '}, 0, 2);
+        assertNotSame(snapshot.getArray(), buffer.getArray());
+        ChunkedRopeTest.assertText("a world", buffer);
+        ChunkedRopeTest.assertText("hello world", snapshot);
+    }
+
+    @Test
+    public void snapshots_areIndependent() {
+        Random random = new Random(8);
+        for (int round = 0; round < 50; ++round) {
+            GapBuffer buffer = new GapBuffer();
+            StringBuilder model = new StringBuilder();
+            List<ITextStorage> snapshots = new ArrayList<>();
+            List<StringBuilder> models = new ArrayList<>();
+            for (int step = 0; step < 200; ++step) {
+                int op = random.nextInt(10);
+                if (op == 0) {
+                    snapshots.add(buffer.snapshot());
+                    models.add(new StringBuilder(model));
+                } else if (op < 4 && model.length() > 0) {
+                    // typing and backspacing at the gap, which may reuse the shared buffer
+                    int gapStart = buffer.getGapStart();
+                    if (random.nextBoolean() && gapStart > 0) {
+                        buffer.delete(gapStart - 1, 1);
+                        model.deleteCharAt(gapStart - 1);
+                    } else {
+                        buffer.insert(gapStart, new char[]{'x'}, 0, 1);
+                        model.insert(gapStart, 'x');
+                    }
+                } else {
+                    ChunkedRopeTest.edit(random, buffer, model);
+                }
+                if (!snapshots.isEmpty() && random.nextInt(5) == 0) {
+                    int i = random.nextInt(snapshots.size());
+                    ChunkedRopeTest.edit(random, snapshots.get(i), models.get(i));
+                }
+                ChunkedRopeTest.assertText(model.toString(), buffer);
+                for (int i = 0; i < snapshots.size(); ++i) {
+                    ChunkedRopeTest.assertText(models.get(i).toString(), snapshots.get(i));
+                }
+            }
+        }
+    }
+
+    private static GapBuffer newBuffer(String text) {
+        GapBuffer buffer = new GapBuffer();
+        buffer.insert(0, text.toCharArray(), 0, text.length());
+        return buffer;
+    }
+}
@@ -0,0 +1,168 @@
+package com.imkiva.xart.editor.common;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks {@link LengthTree} against a plain list of lengths
+ */
+public class LengthTreeTest {
+
+    @Test
+    public void empty_hasNoElements() {
+        LengthTree tree = new LengthTree();
+        assertEquals(0, tree.size());
+        assertEquals(0, tree.total());
+        assertEquals(0, tree.sumBefore(0));
+        assertEquals(-1, tree.indexOf(0));
+        assertEquals(-1, tree.locate(0));
+    }
+
+    @Test
+    public void randomEdits_matchList() {
+        Random random = new Random(1);
+        for (int round = 0; round < 50; ++round) {
+            LengthTree tree = new LengthTree();
+            List<Integer> model = new ArrayList<>();
+            List<Integer> slots = new ArrayList<>();
+            for (int step = 0; step < 300; ++step) {
+                int op = random.nextInt(6);
+                if (op < 2 || model.isEmpty()) {
+                    int index = random.nextInt(model.size() + 1);
+                    int value = random.nextInt(4) == 0 ? 0 : random.nextInt(10);
+                    slots.add(index, tree.insert(index, value));
+                    model.add(index, value);
+                } else if (op == 2) {
+                    int index = random.nextInt(model.size() + 1);
+                    int[] values = new int[random.nextInt(8)];
+                    for (int i = 0; i < values.length; ++i) {
+                        values[i] = random.nextInt(10);
+                    }
+                    tree.insertAll(index, values, 0, values.length);
+                    for (int i = 0; i < values.length; ++i) {
+                        model.add(index + i, values[i]);
+                        slots.add(index + i, tree.slotAt(index + i));
+                    }
+                } else if (op == 3) {
+                    int index = random.nextInt(model.size());
+                    int count = 1 + random.nextInt(Math.min(5, model.size() - index));
+                    tree.remove(index, count);
+                    for (int i = 0; i < count; ++i) {
+                        model.remove(index);
+                        slots.remove(index);
+                    }
+                } else if (op == 4) {
+                    int index = random.nextInt(model.size());
+                    int value = random.nextInt(10);
+                    tree.set(index, value);
+                    model.set(index, value);
+                } else {
+                    int index = random.nextInt(model.size());
+                    int delta = random.nextInt(5);
+                    tree.add(index, delta);
+                    model.set(index, model.get(index) + delta);
+                }
+                assertMatches(model, slots, tree);
+            }
+        }
+    }
+
+    @Test
+    public void build_matchesList() {
+        int[] values = {3, 0, 5, 1, 0, 0, 7, 2};
+        LengthTree tree = new LengthTree();
+        tree.insert(0, 42);
+        tree.build(values, 2, 5);
+        List<Integer> model = new ArrayList<>();
+        for (int i = 2; i < 7; ++i) {
+            model.add(values[i]);
+        }
+        List<Integer> slots = new ArrayList<>();
+        for (int i = 0; i < model.size(); ++i) {
+            slots.add(tree.slotAt(i));
+        }
+        assertMatches(model, slots, tree);
+
+        LengthTree copy = new LengthTree(tree);
+        tree.set(0, 9);
+        assertMatches(model, slots, copy);
+    }
+
+    /**
+     * A copy shares the arrays of its source; every kind of change, on
+     * either side, must leave the other one alone
+     */
+    @Test
+    public void copy_isIndependentOfSource() {
+        int[] values = {4, 1, 6, 2};
+        LengthTree source = new LengthTree();
+        source.build(values, 0, values.length);
+        List<Integer> model = new ArrayList<>();
+        List<Integer> slots = new ArrayList<>();
+        for (int i = 0; i < values.length; ++i) {
+            model.add(values[i]);
+            slots.add(source.slotAt(i));
+        }
+
+        LengthTree first = new LengthTree(source);
+        source.add(1, 5);
+        source.insert(0, 8);
+        assertMatches(model, slots, first);
+
+        LengthTree second = new LengthTree(source);
+        source.remove(1, 2);
+        source.clear();
+        source.insert(0, 3);
+        assertEquals(4 + 8 + 6 + 6 + 2, second.total());
+        assertMatches(model, slots, first);
+
+        // changing a copy doesn't reach the copies it was shared with either
+        LengthTree third = new LengthTree(first);
+        first.insertAll(2, new int[]{7, 7}, 0, 2);
+        assertMatches(model, slots, third);
+        assertEquals(5, second.size());
+        assertEquals(3, source.total());
+    }
+
+    private static void assertMatches(List<Integer> model, List<Integer> slots, LengthTree tree) {
+        assertEquals(model.size(), tree.size());
+        int sum = 0;
+        for (int i = 0; i < model.size(); ++i) {
+            assertEquals(sum, tree.sumBefore(i));
+            assertEquals((int) model.get(i), tree.get(i));
+            // slots don't move while the element stays in the tree
+            assertEquals((int) slots.get(i), tree.slotAt(i));
+            assertEquals((int) model.get(i), tree.getBySlot(slots.get(i)));
+            sum += model.get(i);
+        }
+        assertEquals(sum, tree.total());
+        assertEquals(sum, tree.sumBefore(model.size()));
+
+        for (int pos = -1; pos <= sum; ++pos) {
+            int index = -1;
+            int column = 0;
+            int start = 0;
+            for (int i = 0; i < model.size() && pos >= 0; ++i) {
+                if (pos < start + model.get(i)) {
+                    index = i;
+                    column = pos - start;
+                    break;
+                }
+                start += model.get(i);
+            }
+            assertEquals(index, tree.indexOf(pos));
+            long located = tree.locate(pos);
+            if (index < 0) {
+                assertEquals(-1, located);
+            } else {
+                assertEquals((int) slots.get(index), (int) (located >>> 32));
+                assertEquals(column, (int) located);
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.imkiva.xart.editor.common;
+
+import com.imkiva.xart.language.ParserDefinition;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Opens files of several pages and compares every lookup with the String
+ * the file was written from. Lines and multi-byte chars cross page
+ * boundaries.
+ */
+public class MappedDocumentTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void emptyFile_hasOneLine() throws Exception {
+        MappedDocument document = open(new byte[0], EncodingScheme.TEXT_ENCODING_AUTO);
+        assertEquals(1, document.getTextLength());
+        assertEquals(1, document.getLineCount());
+        assertEquals(0, document.getLineOffset(0));
+        assertEquals(ParserDefinition.EOF, document.charAt(0));
+        document.close();
+    }
+
+    @Test
+    public void pages_matchText() throws Exception {
+        // lines of varying length, one of them several pages long
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; builder.length() < 5 * MappedDocument.PAGE_SIZE; ++i) {
+            int length = i == 40 ? 3 * MappedDocument.PAGE_SIZE : i * 37 % 500;
+            for (int j = 0; j < length; ++j) {
+                builder.append(j % 7 == 0 ? "中" : j % 11 == 0 ? "😀" : "a");
+            }
+            builder.append('\n');
+        }
+        builder.append("no newline at the end");
+        String text = builder.toString();
+
+        MappedDocument document = open(text.getBytes(UTF8), EncodingScheme.TEXT_ENCODING_AUTO);
+        assertEquals(EncodingScheme.TEXT_ENCODING_UTF8, document.getEncodingScheme());
+        assertMatches(text, document);
+        document.close();
+        assertEquals(1, document.getTextLength());
+    }
+
+    @Test
+    public void byteOrderMark_isSkipped() throws Exception {
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < 2 * MappedDocument.PAGE_SIZE) {
+            builder.append("line 😀\n");
+        }
+        String text = builder.toString();
+        byte[] bytes = ("﻿" + text).getBytes(Charset.forName("UTF-16LE"));
+
+        MappedDocument document = open(bytes, EncodingScheme.TEXT_ENCODING_AUTO);
+        assertEquals(EncodingScheme.TEXT_ENCODING_UTF16LE, document.getEncodingScheme());
+        assertTrue(document.hasByteOrderMark());
+        assertMatches(text, document);
+        document.close();
+    }
+
+    /**
+     * Every published page moves the revision on and is replayed as an
+     * insertion at the old end of the text
+     */
+    @Test
+    public void indexing_isLoggedAsAppends() throws Exception {
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < 4 * MappedDocument.PAGE_SIZE) {
+            builder.append("0123456789\n");
+        }
+        MappedDocument document = open(builder.toString().getBytes(UTF8), EncodingScheme.TEXT_ENCODING_AUTO);
+        // the first page was published by the constructor
+        assertTrue(document.getRevision() >= 5);
+
+        final int[] length = {0};
+        assertTrue(document.visitEdits(0, (charOffset, removedCount, insertedCount) -> {
+            assertEquals(length[0], charOffset);
+            assertEquals(0, removedCount);
+            length[0] += insertedCount;
+        }));
+        assertEquals(builder.length(), length[0]);
+
+        long revision = document.getRevision();
+        document.close();
+        assertTrue(document.getRevision() > revision);
+    }
+
+    private MappedDocument open(byte[] bytes, String encoding) throws Exception {
+        File file = folder.newFile();
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(bytes);
+        }
+        MappedDocument document = new MappedDocument(file, encoding);
+        final CountDownLatch indexed = new CountDownLatch(1);
+        document.setOnIndexProgressListener((doc, done) -> {
+            if (done) {
+                indexed.countDown();
+            }
+        });
+        assertTrue("indexing did not finish", indexed.await(10, TimeUnit.SECONDS));
+        return document;
+    }
+
+    private static void assertMatches(String text, MappedDocument document) throws IOException {
+        assertTrue(document.isIndexComplete());
+        TextBufferTest.assertMatches(text, document);
+        assertEquals(text, document.getCharSequence().toString());
+
+        // reads that start and end around every page boundary
+        for (int page = MappedDocument.PAGE_SIZE / 2; page < text.length(); page += MappedDocument.PAGE_SIZE / 2) {
+            for (int offset = page - 3; offset <= page + 3; ++offset) {
+                assertEquals(text.charAt(offset), document.charAt(offset));
+                int count = Math.min(10, text.length() - offset);
+                assertEquals(text.substring(offset, offset + count),
+                        new String(document.subSequence(offset, count)));
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.imkiva.xart.editor.common;
+
+import com.imkiva.xart.language.ParserDefinition;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the rows of a word-wrapped Document with rows found by trying
+ * every row end in turn
+ */
+public class RowIndexTest {
+    /**
+     * Narrow 'i', wide 'm', a 'W' wider than any wrap width used here
+     */
+    private static final Document.CharAdvance ADVANCE = new Document.CharAdvance() {
+        @Override
+        public int getAdvance(char c) {
+            switch (c) {
+                case 'i':
+                    return 1;
+                case 'm':
+                    return 3;
+                case ParserDefinition.TAB:
+                    return 4;
+                case 'W':
+                    return 40;
+                default:
+                    return 2;
+            }
+        }
+    };
+
+    @Test
+    public void empty_hasOneRow() {
+        Document document = new Document();
+        document.setWordWrap(10, ADVANCE);
+        assertEquals(1, document.getRowCount());
+        assertEquals(0, document.getRowOffset(0));
+        assertEquals(-1, document.getRowOffset(1));
+        assertEquals(0, document.findRowNumber(0));
+        assertEquals(-1, document.findRowNumber(1));
+    }
+
+    @Test
+    public void wrapOff_rowsAreLines() {
+        Document document = new Document();
+        document.insert("one two three\nfour".toCharArray(), 0, 0, false);
+        document.setWordWrap(6, ADVANCE);
+        document.setWordWrap(0, ADVANCE);
+        assertEquals(2, document.getRowCount());
+        assertEquals(14, document.getRowOffset(1));
+        assertEquals(1, document.findRowNumber(15));
+    }
+
+    @Test
+    public void rows_breakAfterTheLastSpaceThatFits() {
+        Document document = new Document();
+        document.insert("aaa aaa aaa".toCharArray(), 0, 0, false);
+        document.setWordWrap(10, ADVANCE);
+        assertRows(document, 0, 4, 8);
+    }
+
+    @Test
+    public void wordLongerThanARow_isBrokenAnywhere() {
+        Document document = new Document();
+        document.insert("aaaaaaaaaaaa".toCharArray(), 0, 0, false);
+        document.setWordWrap(10, ADVANCE);
+        assertRows(document, 0, 5, 10);
+    }
+
+    @Test
+    public void charWiderThanARow_getsARowOfItsOwn() {
+        Document document = new Document();
+        document.insert("aWa".toCharArray(), 0, 0, false);
+        document.setWordWrap(10, ADVANCE);
+        assertRows(document, 0, 1, 2);
+    }
+
+    @Test
+    public void joiningLines_rewrapsTheJoinedLine() {
+        Document document = new Document();
+        document.insert("aaa aaa\naaa aaa".toCharArray(), 0, 0, false);
+        document.setWordWrap(10, ADVANCE);
+        assertRows(document, 0, 4, 8, 12);
+        document.delete(7, 1, 0, false);
+        assertRows(document, 0, 4, 9);
+    }
+
+    @Test
+    public void randomEdits_matchModel() {
+        Random random = new Random(23);
+        for (int round = 0; round < 100; ++round) {
+            Document document = random.nextBoolean() ? new Document() : new Document(new ChunkedRope());
+            StringBuilder model = new StringBuilder();
+            TextBufferTest.insert(document, model, 0, randomText(random, random.nextInt(200)));
+            int width = 5 + random.nextInt(20);
+            document.setWordWrap(width, ADVANCE);
+            assertMatches(model.toString(), width, document);
+
+            for (int step = 0; step < 20; ++step) {
+                int offset = random.nextInt(model.length() + 1);
+                if (random.nextBoolean() || offset == model.length()) {
+                    TextBufferTest.insert(document, model, offset, randomText(random, 1 + random.nextInt(30)));
+                } else {
+                    int count = 1 + random.nextInt(Math.min(model.length() - offset, 30));
+                    TextBufferTest.delete(document, model, offset, count);
+                }
+                if (random.nextInt(3) == 0) {
+                    // lookups in between measure some lines and leave others estimated
+                    int lines = document.getLineCount();
+                    document.ensureRowsMeasured(random.nextInt(lines), random.nextInt(lines));
+                    document.findRowNumber(random.nextInt(model.length() + 1));
+                } else {
+                    assertMatches(model.toString(), width, document);
+                }
+            }
+            assertMatches(model.toString(), width, document);
+        }
+    }
+
+    private static void assertRows(Document document, int... offsets) {
+        document.ensureRowsMeasured(0, Integer.MAX_VALUE);
+        assertEquals(offsets.length, document.getRowCount());
+        for (int row = 0; row < offsets.length; ++row) {
+            assertEquals("offset of row " + row, offsets[row], document.getRowOffset(row));
+        }
+    }
+
+    private static void assertMatches(String text, int width, Document document) {
+        List<Integer> rows = wrap(text + ParserDefinition.EOF, width);
+        document.ensureRowsMeasured(0, Integer.MAX_VALUE);
+        assertEquals(rows.size(), document.getRowCount());
+        for (int row = 0; row < rows.size(); ++row) {
+            assertEquals("offset of row " + row, (int) rows.get(row), document.getRowOffset(row));
+        }
+        assertEquals(-1, document.getRowOffset(rows.size()));
+
+        int row = 0;
+        for (int offset = 0; offset <= text.length(); ++offset) {
+            while (row + 1 < rows.size() && rows.get(row + 1) <= offset) {
+                ++row;
+            }
+            assertEquals("row of " + offset, row, document.findRowNumber(offset));
+        }
+        assertEquals(-1, document.findRowNumber(text.length() + 1));
+    }
+
+    /**
+     * @return The offset of every row
+     */
+    private static List<Integer> wrap(String text, int width) {
+        List<Integer> rows = new ArrayList<>();
+        int lineStart = 0;
+        while (lineStart < text.length()) {
+            int lineEnd = lineStart;
+            while (text.charAt(lineEnd) != ParserDefinition.NEWLINE && text.charAt(lineEnd) != ParserDefinition.EOF) {
+                ++lineEnd;
+            }
+            int rowStart = lineStart;
+            while (true) {
+                rows.add(rowStart);
+                // the longest row that fits, but at least one char
+                int rowEnd = rowStart + 1;
+                while (rowEnd < lineEnd && measure(text, rowStart, rowEnd + 1) <= width) {
+                    ++rowEnd;
+                }
+                if (rowEnd >= lineEnd) {
+                    break;
+                }
+                int rowBreak = rowEnd;
+                for (int i = rowEnd - 1; i >= rowStart; --i) {
+                    char c = text.charAt(i);
+                    if (c == ' ' || c == ParserDefinition.TAB) {
+                        rowBreak = i + 1;
+                        break;
+                    }
+                }
+                rowStart = rowBreak;
+            }
+            lineStart = lineEnd + 1;
+        }
+        return rows;
+    }
+
+    private static int measure(String text, int start, int end) {
+        int width = 0;
+        for (int i = start; i < end; ++i) {
+            width += ADVANCE.getAdvance(text.charAt(i));
+        }
+        return width;
+    }
+
+    private static String randomText(Random random, int length) {
+        String chars = "aaaiiimm  \t\nW";
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; ++i) {
+            text.append(chars.charAt(random.nextInt(chars.length())));
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,184 @@
+package com.imkiva.xart.editor.common;
+
+import com.imkiva.xart.language.ParserDefinition;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Plain JVM micro benchmark of the bulk paths of {@link TextBuffer}: pasting
+ * a whole text, deleting a large range, copying it out again, and the
+ * newline scan of {@link LineIndex} next to the per-char loop it replaced.
+ * <p>
+ * Not a test; run it by hand on a desktop JVM, with the sizes in chars as
+ * arguments (default 1K 1M 100M, the last one needs about 2 GB of heap):
+ * <pre>
+ * java -Xmx3g -cp ... com.imkiva.xart.editor.common.TextBufferBenchmark 1024 1048576
+ * </pre>
+ * Every case is warmed up first, then the median of several runs is printed.
+ */
+public class TextBufferBenchmark {
+    private static final int RUNS = 7;
+    /**
+     * Lines of the generated text are this long, newline included
+     */
+    private static final int LINE_LENGTH = 80;
+
+    private static volatile long sink;
+
+    public static void main(String[] args) {
+        int[] sizes = {1024, 1024 * 1024, 100 * 1024 * 1024};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; ++i) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+        for (int size : sizes) {
+            run(size);
+        }
+    }
+
+    private static void run(int size) {
+        final char[] text = makeText(size);
+        final char[] noNewlines = text.clone();
+        Arrays.fill(noNewlines, 'x');
+        // small inputs are timed in batches so that the clock can see them
+        final int repeat = Math.max(1, (1 << 20) / size);
+        System.out.println("size " + size + " chars, " + repeat + " op(s) per run");
+
+        report("paste into empty buffer", size, repeat, () -> {
+            long total = 0;
+            for (int i = 0; i < repeat; ++i) {
+                TextBuffer buffer = new TextBuffer();
+                buffer.insert(text, 0, 0, false);
+                total += buffer.getLineCount();
+            }
+            return total;
+        });
+        report("paste into middle of text", size, repeat, () -> {
+            long total = 0;
+            for (int i = 0; i < repeat; ++i) {
+                TextBuffer buffer = new TextBuffer();
+                buffer.insert(noNewlines, 0, 0, false);
+                buffer.insert(text, size / 2, 0, false);
+                total += buffer.getLineCount();
+            }
+            return total;
+        });
+        report("delete middle half", size, repeat, () -> {
+            long total = 0;
+            for (int i = 0; i < repeat; ++i) {
+                TextBuffer buffer = new TextBuffer();
+                buffer.insert(text, 0, 0, false);
+                buffer.delete(size / 4, size / 2, 0, false);
+                total += buffer.getLineCount();
+            }
+            return total;
+        });
+
+        final TextBuffer edited = new TextBuffer();
+        edited.insert(text, 0, 0, false);
+        // leave the gap in the middle so that the copy crosses it
+        edited.insert(new char[]{'x'}, size / 2, 0, false);
+        report("subSequence across the gap", size, repeat, () -> {
+            long total = 0;
+            for (int i = 0; i < repeat; ++i) {
+                total += edited.subSequence(0, size).length;
+            }
+            return total;
+        });
+
+        report("newline scan, per char (before)", size, repeat, () -> {
+            long total = 0;
+            for (int i = 0; i < repeat; ++i) {
+                total += scanPerChar(text, 0, size);
+            }
+            return total;
+        });
+        report("newline scan, indexOf (after)", size, repeat, () -> {
+            long total = 0;
+            for (int i = 0; i < repeat; ++i) {
+                total += scanWithIndexOf(text, 0, size);
+            }
+            return total;
+        });
+        report("no newlines, per char (before)", size, repeat, () -> {
+            long total = 0;
+            for (int i = 0; i < repeat; ++i) {
+                total += scanPerChar(noNewlines, 0, size);
+            }
+            return total;
+        });
+        report("no newlines, indexOf (after)", size, repeat, () -> {
+            long total = 0;
+            for (int i = 0; i < repeat; ++i) {
+                total += scanWithIndexOf(noNewlines, 0, size);
+            }
+            return total;
+        });
+        System.out.println();
+    }
+
+    /**
+     * The scan LineIndex.onInsert used to do: test every char and keep the
+     * segment state in the same loop
+     */
+    private static long scanPerChar(char[] src, int from, int end) {
+        long segments = 0;
+        int segmentStart = from;
+        for (int i = from; i < end; ++i) {
+            if (src[i] == ParserDefinition.NEWLINE) {
+                segments += i + 1 - segmentStart;
+                segmentStart = i + 1;
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * The scan it does now: jump from newline to newline with a loop that
+     * does nothing but compare
+     */
+    private static long scanWithIndexOf(char[] src, int from, int end) {
+        long segments = 0;
+        int segmentStart = from;
+        int i;
+        while ((i = LineIndex.indexOfNewline(src, segmentStart, end)) >= 0) {
+            segments += i + 1 - segmentStart;
+            segmentStart = i + 1;
+        }
+        return segments;
+    }
+
+    private static char[] makeText(int size) {
+        char[] text = new char[size];
+        for (int i = 0; i < size; ++i) {
+            text[i] = (i % LINE_LENGTH == LINE_LENGTH - 1) ? ParserDefinition.NEWLINE : (char) ('a' + i % 26);
+        }
+        return text;
+    }
+
+    private static void report(String name, int size, int repeat, Case benchmark) {
+        // warm up until the JIT has compiled the case
+        long deadline = System.nanoTime() + 500000000L;
+        do {
+            sink += benchmark.run();
+        } while (System.nanoTime() < deadline && size < 16 * 1024 * 1024);
+
+        long[] times = new long[RUNS];
+        for (int i = 0; i < RUNS; ++i) {
+            long start = System.nanoTime();
+            sink += benchmark.run();
+            times[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        double perOp = times[RUNS / 2] / (double) repeat;
+        System.out.println(String.format(Locale.ROOT, "  %-34s %12.1f us/op %8.2f chars/ns",
+                name, perOp / 1000, size / perOp));
+    }
+
+    private interface Case {
+        long run();
+    }
+}
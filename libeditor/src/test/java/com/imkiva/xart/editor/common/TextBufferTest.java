@@ -0,0 +1,269 @@
+package com.imkiva.xart.editor.common;
+
+import com.imkiva.xart.editor.api.lexer.HighlightSpanList;
+import com.imkiva.xart.editor.api.lexer.HighlightTokenType;
+import com.imkiva.xart.language.ParserDefinition;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the text, the line index and the span offsets of {@link TextBuffer}
+ * against a String, with both storage engines
+ */
+public class TextBufferTest {
+
+    @Test
+    public void empty_hasOneLine() {
+        for (TextBuffer buffer : newBuffers()) {
+            assertMatches("", buffer);
+            assertEquals(1, buffer.getTextLength());
+            assertEquals(ParserDefinition.EOF, buffer.charAt(0));
+            assertEquals(-1, buffer.findLineNumber(1));
+            assertEquals(-1, buffer.getLineOffset(1));
+        }
+    }
+
+    @Test
+    public void editsAtEof_matchString() {
+        for (TextBuffer buffer : newBuffers()) {
+            StringBuilder model = new StringBuilder();
+            insert(buffer, model, 0, "ab");
+            insert(buffer, model, model.length(), "\n");
+            insert(buffer, model, model.length(), "c\n\n");
+            assertMatches(model.toString(), buffer);
+            delete(buffer, model, model.length() - 1, 1);
+            assertMatches(model.toString(), buffer);
+            delete(buffer, model, model.length() - 2, 2);
+            assertMatches(model.toString(), buffer);
+            delete(buffer, model, 0, model.length());
+            assertMatches("", buffer);
+            insert(buffer, model, 0, "\n");
+            assertMatches("\n", buffer);
+        }
+    }
+
+    @Test
+    public void randomEdits_matchString() {
+        Random random = new Random(2);
+        for (int round = 0; round < 20; ++round) {
+            for (TextBuffer buffer : newBuffers()) {
+                StringBuilder model = new StringBuilder();
+                for (int step = 0; step < 200; ++step) {
+                    if (random.nextInt(3) > 0 || model.length() == 0) {
+                        insert(buffer, model, random.nextInt(model.length() + 1), randomText(random));
+                    } else {
+                        int offset = random.nextInt(model.length());
+                        delete(buffer, model, offset, 1 + random.nextInt(Math.min(20, model.length() - offset)));
+                    }
+                    assertMatches(model.toString(), buffer);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void setBuffer_replacesText() {
+        for (TextBuffer buffer : newBuffers()) {
+            buffer.insert("old\ntext".toCharArray(), 0, 0, false);
+            String text = "a\n\nbc\n";
+            char[] contents = new char[TextBuffer.memoryNeeded(text.length())];
+            text.getChars(0, text.length(), contents, 0);
+            buffer.setBuffer(contents, EncodingScheme.TEXT_ENCODING_UTF8,
+                    EncodingScheme.LINE_BREAK_LF, text.length(), 0);
+            assertMatches(text, buffer);
+        }
+    }
+
+    /**
+     * The copy shares the line index of its source, which must not leak the
+     * edits made to either of them afterwards
+     */
+    @Test
+    public void snapshot_keepsItsLineOffsets() {
+        for (TextBuffer buffer : newBuffers()) {
+            StringBuilder model = new StringBuilder();
+            insert(buffer, model, 0, "first\nsecond\nthird line\n\nlast");
+            String text = model.toString();
+            TextBuffer snapshot = new TextBuffer(buffer, false);
+            assertEquals(buffer.getRevision(), snapshot.getRevision());
+
+            insert(buffer, model, 3, "\n\n");
+            delete(buffer, model, 10, 8);
+            insert(buffer, model, model.length(), " line\nmore");
+            assertMatches(model.toString(), buffer);
+            assertMatches(text, snapshot);
+
+            // and the other way round, for a snapshot that is edited itself
+            String edited = model.toString();
+            TextBuffer copy = new TextBuffer(buffer, false);
+            StringBuilder copyModel = new StringBuilder(edited);
+            insert(copy, copyModel, 0, "new\n");
+            delete(copy, copyModel, copyModel.length() - 4, 4);
+            assertMatches(copyModel.toString(), copy);
+            assertMatches(edited, buffer);
+            assertMatches(text, snapshot);
+        }
+    }
+
+    /**
+     * Spans move with the text on edits and on undo/redo, which go through
+     * the gap of the storage instead of insert/delete
+     */
+    @Test
+    public void spans_followEditsAndUndo() {
+        for (TextBuffer buffer : newBuffers()) {
+            buffer.insert("int a = 10;".toCharArray(), 0, 0, false);
+            HighlightSpanList spans = new HighlightSpanList();
+            spans.add(0, HighlightTokenType.KEYWORD);
+            spans.add(3, HighlightTokenType.NORMAL);
+            spans.add(8, HighlightTokenType.VAR_NAME);
+            buffer.setSpans(spans);
+
+            buffer.insert("bc".toCharArray(), 5, 0, true);
+            assertSpanOffsets(buffer, 0, 3, 10);
+            buffer.delete(0, 4, 2000000000L, true);
+            assertSpanOffsets(buffer, 0, 0, 6);
+
+            buffer.undo();
+            assertSpanOffsets(buffer, 0, 4, 10);
+            buffer.undo();
+            assertSpanOffsets(buffer, 0, 4, 8);
+            buffer.redo();
+            assertSpanOffsets(buffer, 0, 4, 10);
+            assertEquals(0, buffer.getSpans().getDamageStart());
+        }
+    }
+
+    @Test
+    public void visitEdits_replaysEditsInOrder() {
+        for (TextBuffer buffer : newBuffers()) {
+            buffer.insert("hello world".toCharArray(), 0, 0, false);
+            long revision = buffer.getRevision();
+            buffer.insert("big ".toCharArray(), 6, 0, false);
+            buffer.delete(0, 6, 0, false);
+
+            final StringBuilder edits = new StringBuilder();
+            assertTrue(buffer.visitEdits(revision, (charOffset, removedCount, insertedCount) ->
+                    edits.append(charOffset).append('-').append(removedCount)
+                            .append('+').append(insertedCount).append(' ')));
+            assertEquals("6-0+4 0-6+0 ", edits.toString());
+        }
+    }
+
+    @Test
+    public void visitEdits_failsWhenTheLogHasMovedOn() {
+        for (TextBuffer buffer : newBuffers()) {
+            long stale = buffer.getRevision();
+            for (int i = 0; i < 100; ++i) {
+                buffer.insert(new char[]{'x'}, 0, 0, false);
+            }
+            assertFalse(buffer.visitEdits(stale, (charOffset, removedCount, insertedCount) -> {
+            }));
+            assertFalse(buffer.visitEdits(buffer.getRevision() + 1, (charOffset, removedCount, insertedCount) -> {
+            }));
+            // nothing to replay
+            assertTrue(buffer.visitEdits(buffer.getRevision(), (charOffset, removedCount, insertedCount) -> {
+                throw new AssertionError();
+            }));
+        }
+    }
+
+    @Test
+    public void visitEdits_keepsOldCharsInPlace() {
+        Random random = new Random(4);
+        TextBuffer buffer = new TextBuffer();
+        StringBuilder model = new StringBuilder();
+        String old = model.toString();
+        long revision = buffer.getRevision();
+        for (int step = 0; step < 500; ++step) {
+            if (random.nextBoolean() || model.length() == 0) {
+                insert(buffer, model, random.nextInt(model.length() + 1), randomText(random));
+            } else {
+                int offset = random.nextInt(model.length());
+                delete(buffer, model, offset, 1 + random.nextInt(Math.min(5, model.length() - offset)));
+            }
+            if (random.nextInt(8) == 0) {
+                final StringBuilder replayed = new StringBuilder(old);
+                final String current = model.toString();
+                assertTrue(buffer.visitEdits(revision, (charOffset, removedCount, insertedCount) -> {
+                    replayed.delete(charOffset, charOffset + removedCount);
+                    // the inserted text is not logged, only where it went
+                    replayed.insert(charOffset, new char[insertedCount]);
+                }));
+                assertEquals(current.length(), replayed.length());
+                for (int i = 0; i < current.length(); ++i) {
+                    if (replayed.charAt(i) != 0) {
+                        // a char older than revision ends up where it is now
+                        assertEquals(current.charAt(i), replayed.charAt(i));
+                    }
+                }
+                old = current;
+                revision = buffer.getRevision();
+            }
+        }
+    }
+
+    private static void assertSpanOffsets(TextBuffer buffer, int... offsets) {
+        HighlightSpanList spans = buffer.getSpans();
+        assertEquals(offsets.length, spans.size());
+        for (int i = 0; i < offsets.length; ++i) {
+            assertEquals("offset of span " + i, offsets[i], spans.getOffset(i));
+        }
+    }
+
+    static TextBuffer[] newBuffers() {
+        return new TextBuffer[]{new TextBuffer(new GapBuffer()), new TextBuffer(new ChunkedRope())};
+    }
+
+    static String randomText(Random random) {
+        int length = random.nextInt(8) == 0 ? random.nextInt(300) : 1 + random.nextInt(6);
+        char[] text = new char[length];
+        for (int i = 0; i < length; ++i) {
+            text[i] = random.nextInt(6) == 0 ? ParserDefinition.NEWLINE : (char) ('a' + random.nextInt(26));
+        }
+        return new String(text);
+    }
+
+    static void insert(TextBuffer buffer, StringBuilder model, int offset, String text) {
+        buffer.insert(text.toCharArray(), offset, 0, false);
+        model.insert(offset, text);
+    }
+
+    static void delete(TextBuffer buffer, StringBuilder model, int offset, int count) {
+        buffer.delete(offset, count, 0, false);
+        model.delete(offset, offset + count);
+    }
+
+    /**
+     * Compares text, line offsets and sizes, and the line of every offset
+     * with a linear scan of text
+     */
+    static void assertMatches(String text, TextBuffer buffer) {
+        String withEof = text + ParserDefinition.EOF;
+        assertEquals(withEof.length(), buffer.getTextLength());
+        char[] chars = new char[withEof.length()];
+        assertEquals(chars.length, buffer.getChars(0, chars.length, chars, 0));
+        assertEquals(withEof, new String(chars));
+
+        int line = 0;
+        int lineStart = 0;
+        for (int i = 0; i < withEof.length(); ++i) {
+            assertEquals(line, buffer.findLineNumber(i));
+            char c = withEof.charAt(i);
+            if (c == ParserDefinition.NEWLINE || c == ParserDefinition.EOF) {
+                assertEquals(lineStart, buffer.getLineOffset(line));
+                assertEquals(i + 1 - lineStart, buffer.getLineSize(line));
+                ++line;
+                lineStart = i + 1;
+            }
+        }
+        assertEquals(line, buffer.getLineCount());
+        assertEquals(-1, buffer.findLineNumber(withEof.length()));
+    }
+}
@@ -0,0 +1,110 @@
+package com.imkiva.xart.editor.common;
+
+import com.imkiva.xart.editor.api.lexer.Flag;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Saves through {@link TextBuffer#write} and compares with String.getBytes
+ */
+public class TextBufferWriteTest {
+
+    @Test
+    public void empty_writesNothing() throws IOException {
+        for (TextBuffer buffer : TextBufferTest.newBuffers()) {
+            assertArrayEquals(new byte[0], write(buffer, EncodingScheme.TEXT_ENCODING_UTF16BE,
+                    EncodingScheme.LINE_BREAK_CRLF, null));
+        }
+    }
+
+    /**
+     * The text is several write slices long, with line breaks and surrogate
+     * pairs on the slice boundaries
+     */
+    @Test
+    public void slices_areEncodedAsOneText() throws IOException {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 200000) {
+            text.append("ab\n😀中é\t");
+        }
+        String[] encodings = {
+                EncodingScheme.TEXT_ENCODING_UTF8, EncodingScheme.TEXT_ENCODING_UTF16LE,
+                EncodingScheme.TEXT_ENCODING_UTF16BE
+        };
+        String[] styles = {
+                EncodingScheme.LINE_BREAK_LF, EncodingScheme.LINE_BREAK_CRLF, EncodingScheme.LINE_BREAK_CR
+        };
+        String[] breaks = {"\n", "\r\n", "\r"};
+        for (TextBuffer buffer : TextBufferTest.newBuffers()) {
+            buffer.insert(text.toString().toCharArray(), 0, 0, false);
+            for (String encoding : encodings) {
+                for (int i = 0; i < styles.length; ++i) {
+                    byte[] expected = text.toString().replace("\n", breaks[i]).getBytes(Charset.forName(encoding));
+                    assertArrayEquals(expected, write(buffer, encoding, styles[i], null));
+                    assertEquals(encoding, buffer.getEncodingScheme());
+                    assertEquals(styles[i], buffer.getEOLType());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void abort_keepsOriginalFormat() throws IOException {
+        TextBuffer buffer = new TextBuffer();
+        buffer.insert(new char[300000], 0, 0, false);
+        Flag abort = new Flag();
+        abort.set();
+        assertEquals(0, write(buffer, EncodingScheme.TEXT_ENCODING_UTF16LE,
+                EncodingScheme.LINE_BREAK_CRLF, abort).length);
+        assertEquals(EncodingScheme.TEXT_ENCODING_UTF8, buffer.getEncodingScheme());
+        assertEquals(EncodingScheme.LINE_BREAK_LF, buffer.getEOLType());
+    }
+
+    /**
+     * An edit made while the text is being written neither waits for the
+     * save nor shows up in it
+     */
+    @Test
+    public void editDuringWrite_doesNotWait() throws Exception {
+        for (TextBuffer buffer : TextBufferTest.newBuffers()) {
+            final TextBuffer target = buffer;
+            target.insert("saved text".toCharArray(), 0, 0, false);
+            final boolean[] edited = new boolean[1];
+            ByteArrayOutputStream out = new ByteArrayOutputStream() {
+                @Override
+                public synchronized void write(byte[] b, int off, int len) {
+                    if (!edited[0]) {
+                        Thread editor = new Thread(() -> target.insert("new ".toCharArray(), 0, 0, false));
+                        editor.start();
+                        try {
+                            editor.join(5000);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        edited[0] = !editor.isAlive();
+                    }
+                    super.write(b, off, len);
+                }
+            };
+            target.write(out, EncodingScheme.TEXT_ENCODING_AUTO, EncodingScheme.LINE_BREAK_AUTO, null);
+            assertTrue("the edit waited for the save", edited[0]);
+            assertEquals("saved text", out.toString("UTF-8"));
+            assertEquals("new saved text", new String(target.subSequence(0, 14)));
+        }
+    }
+
+    private static byte[] write(TextBuffer buffer, String encoding, String EOLstyle, Flag abort)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        buffer.write(out, encoding, EOLstyle, abort);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,151 @@
+package com.imkiva.xart.editor.common;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link TextCharSequence} and {@link TextReader} read the storage in place,
+ * so the text is edited in the middle first to put a gap or chunk boundary
+ * inside the ranges being read
+ */
+public class TextCharSequenceTest {
+
+    @Test
+    public void charSequence_readsAcrossTheGap() {
+        for (TextBuffer buffer : TextBufferTest.newBuffers()) {
+            String text = editedText(buffer);
+            TextCharSequence sequence = buffer.getCharSequence();
+            assertEquals(text.length(), sequence.length());
+            assertEquals(text, sequence.toString());
+            for (int i = 0; i < text.length(); i += 97) {
+                assertEquals(text.charAt(i), sequence.charAt(i));
+            }
+
+            TextCharSequence sub = sequence.subSequence(1000, 9000).subSequence(500, 7000);
+            assertEquals(text.substring(1500, 8000), sub.toString());
+            char[] chars = new char[100];
+            sub.getChars(10, 110, chars, 0);
+            assertEquals(text.substring(1510, 1610), new String(chars));
+        }
+    }
+
+    @Test
+    public void charSequence_worksWithRegex() {
+        for (TextBuffer buffer : TextBufferTest.newBuffers()) {
+            String text = editedText(buffer);
+            Pattern pattern = Pattern.compile("line (\\d+)\n");
+            Matcher expected = pattern.matcher(text);
+            Matcher actual = pattern.matcher(buffer.getCharSequence());
+            int count = 0;
+            while (expected.find()) {
+                assertTrue(actual.find());
+                assertEquals(expected.start(), actual.start());
+                assertEquals(expected.group(1), actual.group(1));
+                ++count;
+            }
+            assertFalse(actual.find());
+            assertTrue(count > 1000);
+        }
+    }
+
+    @Test
+    public void lineSequence_matchesGetLine() {
+        for (TextBuffer buffer : TextBufferTest.newBuffers()) {
+            editedText(buffer);
+            for (int line = 0; line < buffer.getLineCount(); line += 13) {
+                assertEquals(buffer.getLine(line), buffer.getLineSequence(line).toString());
+            }
+            assertEquals(0, buffer.getLineSequence(buffer.getLineCount()).length());
+        }
+    }
+
+    @Test
+    public void charSequence_checksBounds() {
+        TextCharSequence sequence = new TextCharSequence(new TextBuffer(), 0, 0);
+        try {
+            sequence.charAt(0);
+            fail();
+        } catch (IndexOutOfBoundsException expected) {
+        }
+        try {
+            sequence.subSequence(0, 1);
+            fail();
+        } catch (IndexOutOfBoundsException expected) {
+        }
+        try {
+            new TextCharSequence(new TextBuffer(), 2, 1);
+            fail();
+        } catch (IndexOutOfBoundsException expected) {
+        }
+    }
+
+    @Test
+    public void reader_readsTheWholeText() throws IOException {
+        for (TextBuffer buffer : TextBufferTest.newBuffers()) {
+            String text = editedText(buffer);
+            Reader reader = buffer.getReader();
+            StringBuilder read = new StringBuilder();
+            char[] block = new char[333];
+            int count;
+            while ((count = reader.read(block, 0, block.length)) != -1) {
+                read.append(block, 0, count);
+            }
+            assertEquals(text, read.toString());
+            assertEquals(-1, reader.read());
+        }
+    }
+
+    @Test
+    public void reader_marksAndSkips() throws IOException {
+        TextBuffer buffer = new TextBuffer();
+        buffer.insert("0123456789".toCharArray(), 0, 0, false);
+        Reader reader = buffer.getCharSequence().subSequence(2, 8).newReader();
+        assertEquals('2', reader.read());
+        reader.mark(0);
+        assertEquals(3, reader.skip(3));
+        assertEquals('6', reader.read());
+        reader.reset();
+        assertEquals('3', reader.read());
+        assertEquals(4, reader.skip(100));
+        assertEquals(-1, reader.read());
+    }
+
+    /**
+     * The reader stops at the end of the text when the text shrinks under it
+     */
+    @Test
+    public void reader_stopsAtShrunkText() throws IOException {
+        for (TextBuffer buffer : TextBufferTest.newBuffers()) {
+            buffer.insert("abcdefgh".toCharArray(), 0, 0, false);
+            Reader reader = buffer.getReader();
+            assertEquals('a', reader.read());
+            buffer.delete(3, 5, 0, false);
+            char[] block = new char[10];
+            assertEquals(2, reader.read(block, 0, block.length));
+            assertEquals("bc", new String(block, 0, 2));
+            assertEquals(-1, reader.read(block, 0, block.length));
+        }
+    }
+
+    private static String editedText(TextBuffer buffer) {
+        StringBuilder model = new StringBuilder();
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < 2000; ++i) {
+            lines.append("line ").append(i).append('\n');
+        }
+        TextBufferTest.insert(buffer, model, 0, lines.toString());
+        TextBufferTest.insert(buffer, model, model.length() / 3, "中文 inserted\n");
+        TextBufferTest.delete(buffer, model, model.length() / 2, 17);
+        TextBufferTest.insert(buffer, model, model.length() / 2, "line 99999\n");
+        return model.toString();
+    }
+}
@@ -0,0 +1,197 @@
+package com.imkiva.xart.editor.common;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks undo and redo of merged and batched edits against the texts the
+ * edits went through. GapBuffer undoes from the gap, ChunkedRope from
+ * copied data, so both are tested.
+ */
+public class UndoStackTest {
+    private static final long MS = 1000000L;
+
+    @Test
+    public void typing_isUndoneAsOneEdit() {
+        for (Document document : newDocuments()) {
+            long time = 1;
+            for (int i = 0; i < 3; ++i) {
+                document.insert(new char[]{(char) ('a' + i)}, i, time += 10 * MS, true);
+            }
+            assertEquals("abc", text(document));
+            assertEquals(0, document.undo());
+            assertEquals("", text(document));
+            assertFalse(document.canUndo());
+            assertEquals(3, document.redo());
+            assertEquals("abc", text(document));
+        }
+    }
+
+    @Test
+    public void backspaces_areUndoneAsOneEdit() {
+        for (Document document : newDocuments()) {
+            document.insert("hello".toCharArray(), 0, 0, false);
+            long time = 1;
+            for (int i = 4; i >= 2; --i) {
+                document.delete(i, 1, time += 10 * MS, true);
+            }
+            assertEquals("he", text(document));
+            document.undo();
+            assertEquals("hello", text(document));
+            assertFalse(document.canUndo());
+            document.redo();
+            assertEquals("he", text(document));
+            document.undo();
+            assertEquals("hello", text(document));
+        }
+    }
+
+    @Test
+    public void pause_splitsEdits() {
+        for (Document document : newDocuments()) {
+            document.insert(new char[]{'a'}, 0, 1, true);
+            document.insert(new char[]{'b'}, 1, 1 + 2000 * MS, true);
+            document.undo();
+            assertEquals("a", text(document));
+            document.undo();
+            assertEquals("", text(document));
+        }
+    }
+
+    @Test
+    public void editAfterUndo_dropsRedo() {
+        for (Document document : newDocuments()) {
+            long time = 1;
+            document.insert(new char[]{'a'}, 0, time += MS, true);
+            document.insert(new char[]{'b'}, 1, time += MS, true);
+            document.undo();
+            assertTrue(document.canRedo());
+            document.insert(new char[]{'c'}, 0, time += MS, true);
+            assertFalse(document.canRedo());
+            assertEquals("c", text(document));
+            document.undo();
+            assertEquals("", text(document));
+            document.redo();
+            assertEquals("c", text(document));
+        }
+    }
+
+    @Test
+    public void batch_isUndoneAsOneEdit() {
+        for (Document document : newDocuments()) {
+            document.insert("0123456789".toCharArray(), 0, 0, false);
+            document.beginBatchEdit();
+            document.delete(7, 2, 1, true);
+            document.insert("xy".toCharArray(), 0, 5000 * MS, true);
+            document.delete(3, 1, 9000 * MS, true);
+            document.endBatchEdit();
+            assertEquals("xy023456" + "9", text(document));
+            document.undo();
+            assertEquals("0123456789", text(document));
+            assertFalse(document.canUndo());
+            document.redo();
+            assertEquals("xy0234569", text(document));
+        }
+    }
+
+    /**
+     * Random typing, backspacing and jumping, with pauses that split merges.
+     * Every undo has to go back to an earlier text of the history, in order,
+     * and redo has to come forward through the same texts.
+     */
+    @Test
+    public void randomEdits_undoAndRedoThroughHistory() {
+        Random random = new Random(9);
+        for (int round = 0; round < 100; ++round) {
+            for (Document document : newDocuments()) {
+                List<String> history = new ArrayList<>();
+                history.add(text(document));
+                int cursor = 0;
+                long time = 1;
+                for (int step = 0; step < 60; ++step) {
+                    if (random.nextInt(15) == 0) {
+                        // undo some steps, then redo all of them or edit on from there
+                        int undos = 1 + random.nextInt(3);
+                        int position = undoThroughHistory(document, history, undos);
+                        if (random.nextBoolean()) {
+                            redoThroughHistory(document, history, position);
+                        } else {
+                            history.subList(position + 1, history.size()).clear();
+                            cursor = 0;
+                        }
+                    }
+                    time += random.nextInt(5) == 0 ? 1000 * MS : 10 * MS;
+                    int length = document.getTextLength() - 1;
+                    if (random.nextInt(6) == 0) {
+                        cursor = random.nextInt(length + 1);
+                    }
+                    cursor = Math.min(cursor, length);
+                    if (random.nextInt(3) > 0 || cursor == 0) {
+                        char[] c = {(char) ('a' + random.nextInt(26))};
+                        if (random.nextInt(8) == 0) {
+                            c = "\npasted".toCharArray();
+                        }
+                        document.insert(c, cursor, time, true);
+                        cursor += c.length;
+                    } else {
+                        document.delete(cursor - 1, 1, time, true);
+                        --cursor;
+                    }
+                    history.add(text(document));
+                }
+                int position = undoThroughHistory(document, history, Integer.MAX_VALUE);
+                assertEquals(0, position);
+                redoThroughHistory(document, history, 0);
+            }
+        }
+    }
+
+    /**
+     * @return The index in history of the text after the undos
+     */
+    private static int undoThroughHistory(Document document, List<String> history, int undos) {
+        int position = history.size() - 1;
+        for (int i = 0; i < undos && document.canUndo(); ++i) {
+            document.undo();
+            String text = text(document);
+            do {
+                --position;
+                assertTrue("undo reached a text that is not in the history", position >= 0);
+            } while (!history.get(position).equals(text));
+        }
+        if (!document.canUndo()) {
+            assertEquals(history.get(0), text(document));
+        }
+        return position;
+    }
+
+    private static void redoThroughHistory(Document document, List<String> history, int position) {
+        while (document.canRedo()) {
+            document.redo();
+            String text = text(document);
+            do {
+                ++position;
+                assertTrue("redo reached a text that is not in the history", position < history.size());
+            } while (!history.get(position).equals(text));
+        }
+        assertEquals(history.size() - 1, position);
+        TextBufferTest.assertMatches(history.get(position), document);
+    }
+
+    private static Document[] newDocuments() {
+        return new Document[]{new Document(new GapBuffer()), new Document(new ChunkedRope())};
+    }
+
+    private static String text(TextBuffer buffer) {
+        char[] chars = new char[buffer.getTextLength() - 1];
+        buffer.getChars(0, chars.length, chars, 0);
+        return new String(chars);
+    }
+}
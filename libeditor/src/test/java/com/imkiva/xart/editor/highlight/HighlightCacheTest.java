@@ -0,0 +1,151 @@
+package com.imkiva.xart.editor.highlight;
+
+import com.imkiva.xart.editor.api.adapter.ITokenizeAdapter;
+import com.imkiva.xart.editor.api.lexer.Flag;
+import com.imkiva.xart.editor.api.lexer.HighlightSpanList;
+import com.imkiva.xart.editor.api.lexer.HighlightTokenType;
+import com.imkiva.xart.editor.common.DocumentProvider;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+/**
+ * 只有刚打开的文档查缓存, 编辑之后的分析不计算哈希也不读文件
+ */
+public class HighlightCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicInteger loads = new AtomicInteger();
+    private final AtomicInteger lexed = new AtomicInteger();
+    private final BlockingQueue<HighlightSpanList> results = new LinkedBlockingQueue<>();
+
+    @Test
+    public void sameTextInNewDocument_isLoadedFromCache() throws Exception {
+        File directory = folder.newFolder();
+        Lexer lexer = newLexer(directory);
+        String text = text(HighlightCache.MIN_TEXT_LENGTH + 100);
+
+        lex(lexer, document(text));
+        assertEquals(1, loads.get());
+        assertEquals(1, lexed.get());
+        waitForFile(directory);
+
+        HighlightSpanList cached = lex(lexer, document(text));
+        assertEquals(2, loads.get());
+        assertEquals("the text was lexed again", 1, lexed.get());
+        assertEquals(HighlightTokenType.KEYWORD, cached.getType(0));
+    }
+
+    @Test
+    public void edits_doNotLookUpTheCache() throws Exception {
+        Lexer lexer = newLexer(folder.newFolder());
+        DocumentProvider document = document(text(HighlightCache.MIN_TEXT_LENGTH + 100));
+
+        lex(lexer, document);
+        for (int i = 0; i < 3; ++i) {
+            document.insertBefore("x".toCharArray(), 0, 0);
+            lex(lexer, document);
+        }
+        assertEquals(1, loads.get());
+        assertEquals(4, lexed.get());
+    }
+
+    /**
+     * 换了语言的文档也算刚打开, 先查新语言的缓存
+     */
+    @Test
+    public void newAdapter_looksUpTheCacheAgain() throws Exception {
+        Lexer lexer = newLexer(folder.newFolder());
+        DocumentProvider document = document(text(HighlightCache.MIN_TEXT_LENGTH + 100));
+
+        lex(lexer, document);
+        lexer.setTokenizeAdapter(adapter("other"));
+        lex(lexer, document);
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void shortText_isNotCached() throws Exception {
+        Lexer lexer = newLexer(folder.newFolder());
+        lex(lexer, document(text(1000)));
+        assertEquals(0, loads.get());
+    }
+
+    private Lexer newLexer(File directory) {
+        Lexer lexer = new Lexer(results::add);
+        lexer.setDebounceDelay(0);
+        lexer.setTokenizeAdapter(adapter("test-1"));
+        lexer.setHighlightCache(new HighlightCache(directory, 1 << 20) {
+            @Override
+            public synchronized HighlightSpanList load(String key, long contentHash, int textLength) {
+                loads.incrementAndGet();
+                return super.load(key, contentHash, textLength);
+            }
+        });
+        return lexer;
+    }
+
+    private ITokenizeAdapter adapter(String cacheKey) {
+        return new ITokenizeAdapter() {
+            @Override
+            public HighlightSpanList tokenize(Flag flag, String needToLex) {
+                lexed.incrementAndGet();
+                HighlightSpanList spans = new HighlightSpanList();
+                //只有一个区间, 和没分析过的文档一样
+                spans.add(0, HighlightTokenType.KEYWORD);
+                return spans;
+            }
+
+            @Override
+            public String getCacheKey() {
+                return cacheKey;
+            }
+        };
+    }
+
+    private HighlightSpanList lex(Lexer lexer, DocumentProvider document) throws InterruptedException {
+        lexer.tokenize(document);
+        HighlightSpanList result = results.poll(5, TimeUnit.SECONDS);
+        assertNotNull("no result", result);
+        return result;
+    }
+
+    private static void waitForFile(File directory) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            File[] files = directory.listFiles((dir, name) -> name.endsWith(".xhc"));
+            if (files != null && files.length > 0) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        fail("nothing was stored");
+    }
+
+    private static DocumentProvider document(String text) {
+        DocumentProvider document = new DocumentProvider();
+        document.insertBefore(text.toCharArray(), 0, 0);
+        return document;
+    }
+
+    private static String text(int length) {
+        StringBuilder text = new StringBuilder(length);
+        while (text.length() < length) {
+            text.append("int a = 1;\n");
+        }
+        return text.substring(0, length);
+    }
+}
@@ -0,0 +1,47 @@
+package com.imkiva.xart.editor.highlight;
+
+import com.imkiva.xart.editor.api.lexer.HighlightSpanList;
+import com.imkiva.xart.editor.common.DocumentProvider;
+
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * 所有 Lexer 共用一个分析线程, 一个 Lexer 出错不能让其他 Lexer 再也得不到结果
+ */
+public class LexSchedulerTest {
+
+    @Test
+    public void failingTask_isDroppedAndOthersStillRun() throws Exception {
+        BlockingQueue<HighlightSpanList> failingResults = new LinkedBlockingQueue<>();
+        Lexer failing = new Lexer(failingResults::add);
+        failing.setDebounceDelay(0);
+        failing.setTokenizeAdapter((flag, text) -> {
+            throw new IllegalStateException("broken lexer");
+        });
+        BlockingQueue<HighlightSpanList> results = new LinkedBlockingQueue<>();
+        Lexer working = new Lexer(results::add);
+        working.setDebounceDelay(0);
+
+        DocumentProvider document = new DocumentProvider();
+        document.insertBefore("int a;".toCharArray(), 0, 0);
+        failing.tokenize(document);
+        working.tokenize(document);
+        assertNotNull("the other lexer got no result", results.poll(5, TimeUnit.SECONDS));
+        assertEquals(1, failing.getFailedCount());
+        assertNull(failingResults.poll());
+
+        // the lexer that failed is not stuck either
+        failing.setTokenizeAdapter((flag, text) -> HighlightSpanList.createDefault());
+        failing.tokenize(document);
+        assertNotNull(failingResults.poll(5, TimeUnit.SECONDS));
+        assertEquals(1, failing.getCompletedCount());
+    }
+}
@@ -0,0 +1,53 @@
+package com.imkiva.xart.language;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class LanguageTest {
+
+    /**
+     * Editors opened at the same time share one definition, and so one pool
+     * of lexers
+     */
+    @Test
+    public void parserDefinition_isCreatedOnce() throws Exception {
+        final AtomicInteger created = new AtomicInteger();
+        final Language language = new Language() {
+            @Override
+            protected ParserDefinition createParserDefinition() {
+                created.incrementAndGet();
+                return new SimpleParserDefinition(true, false);
+            }
+        };
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final ParserDefinition[] definitions = new ParserDefinition[8];
+        Thread[] threads = new Thread[definitions.length];
+        for (int i = 0; i < threads.length; ++i) {
+            final int index = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                definitions[index] = language.getParserDefinition();
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1, created.get());
+        for (ParserDefinition definition : definitions) {
+            assertSame(language.getParserDefinition(), definition);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.imkiva.xart.language;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A hand written lexer for a small C like language, in the form
+ * {@link ParserDefinition#isIncrementalLexingSupported()} asks for: the only
+ * thing carried from one token to the next is the lexical state, which is
+ * {@link #COMMENT} inside a block comment. Block comments are split into one
+ * token per line, so that lexing can resume in the middle of one.
+ */
+public class SimpleLexer extends JFlexLexer {
+    public static final int YYINITIAL = 0;
+    public static final int COMMENT = 1;
+
+    private static final Set<String> KEYWORDS = new HashSet<>(Arrays.asList(
+            "if", "else", "int", "return", "while"));
+
+    /**
+     * Number of chars lexed, summed over all lexers of a definition; may be null
+     */
+    private final AtomicInteger lexedChars;
+
+    private char[] text = new char[0];
+    private int length;
+    private int position;
+    private int matchStart;
+    private int state;
+
+    public SimpleLexer(AtomicInteger lexedChars) {
+        this.lexedChars = lexedChars;
+    }
+
+    @Override
+    public void yyreset(Reader reader) {
+        length = 0;
+        try {
+            int count;
+            while ((count = reader.read(text, length, text.length - length)) >= 0) {
+                length += count;
+                if (length == text.length) {
+                    text = Arrays.copyOf(text, Math.max(64, text.length * 2));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        position = 0;
+        matchStart = 0;
+        state = YYINITIAL;
+    }
+
+    @Override
+    public LanguageToken advance() {
+        if (position >= length) {
+            return null;
+        }
+        matchStart = position;
+        LanguageTokenType type;
+        char c = text[position];
+        if (state == COMMENT) {
+            scanComment();
+            type = LanguageTokenType.COMMENT;
+        } else if (Character.isWhitespace(c)) {
+            while (position < length && Character.isWhitespace(text[position])) {
+                ++position;
+            }
+            type = LanguageTokenType.DEFAULT;
+        } else if (Character.isLetter(c)) {
+            while (position < length && Character.isLetterOrDigit(text[position])) {
+                ++position;
+            }
+            type = KEYWORDS.contains(yytext()) ? LanguageTokenType.KEYWORD : LanguageTokenType.IDENTIFIER;
+        } else if (Character.isDigit(c)) {
+            while (position < length && Character.isDigit(text[position])) {
+                ++position;
+            }
+            type = LanguageTokenType.NUMBER;
+        } else if (c == '/' && next() == '*') {
+            position += 2;
+            state = COMMENT;
+            scanComment();
+            type = LanguageTokenType.COMMENT;
+        } else if (c == '/' && next() == '/') {
+            while (position < length && text[position] != '\n') {
+                ++position;
+            }
+            type = LanguageTokenType.COMMENT;
+        } else if (c == '"') {
+            ++position;
+            while (position < length && text[position] != '\n') {
+                if (text[position++] == '"') {
+                    break;
+                }
+            }
+            type = LanguageTokenType.STRING;
+        } else {
+            ++position;
+            type = LanguageTokenType.OPERATOR;
+        }
+        if (lexedChars != null) {
+            lexedChars.addAndGet(yylength());
+        }
+        return token(type);
+    }
+
+    /**
+     * Reads the rest of the comment on this line, and leaves the comment
+     * state if it ends here
+     */
+    private void scanComment() {
+        while (position < length) {
+            char c = text[position++];
+            if (c == '\n') {
+                return;
+            }
+            if (c == '*' && position < length && text[position] == '/') {
+                ++position;
+                state = YYINITIAL;
+                return;
+            }
+        }
+    }
+
+    private char next() {
+        return position + 1 < length ? text[position + 1] : 0;
+    }
+
+    @Override
+    public char yycharat(int pos) {
+        return text[matchStart + pos];
+    }
+
+    @Override
+    public int yylength() {
+        return position - matchStart;
+    }
+
+    @Override
+    public String yytext() {
+        return new String(text, matchStart, position - matchStart);
+    }
+
+    @Override
+    public int yychar() {
+        return matchStart;
+    }
+
+    @Override
+    public int yystate() {
+        return state;
+    }
+
+    @Override
+    public void yybegin(int newState) {
+        state = newState;
+    }
+}
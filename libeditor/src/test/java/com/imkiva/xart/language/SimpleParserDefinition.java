@@ -0,0 +1,41 @@
+package com.imkiva.xart.language;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lexes with {@link SimpleLexer}, and opts in to incremental and parallel
+ * lexing as asked, which no bundled language does yet
+ */
+public class SimpleParserDefinition extends ParserDefinition {
+    private final boolean incremental;
+    private final boolean parallel;
+    private final AtomicInteger lexedChars = new AtomicInteger();
+
+    public SimpleParserDefinition(boolean incremental, boolean parallel) {
+        super(null);
+        this.incremental = incremental;
+        this.parallel = parallel;
+    }
+
+    @Override
+    public boolean isIncrementalLexingSupported() {
+        return incremental;
+    }
+
+    @Override
+    public boolean isParallelLexingSupported() {
+        return parallel;
+    }
+
+    @Override
+    public JFlexLexer createLexer() {
+        return new SimpleLexer(lexedChars);
+    }
+
+    /**
+     * @return The number of chars lexed since the last call
+     */
+    public int takeLexedChars() {
+        return lexedChars.getAndSet(0);
+    }
+}
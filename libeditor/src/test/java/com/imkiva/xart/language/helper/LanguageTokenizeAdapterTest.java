@@ -0,0 +1,98 @@
+package com.imkiva.xart.language.helper;
+
+import com.imkiva.xart.editor.api.lexer.Flag;
+import com.imkiva.xart.editor.api.lexer.HighlightSpanList;
+import com.imkiva.xart.editor.api.lexer.HighlightTokenType;
+import com.imkiva.xart.editor.api.lexer.SpanAssert;
+import com.imkiva.xart.language.SimpleParserDefinition;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Incremental lexing has to give the same highlights as lexing the whole
+ * edited text again. The spans of the previous run are shifted along with
+ * every edit, as TextBuffer does it, before they are passed back in.
+ */
+public class LanguageTokenizeAdapterTest {
+    private static final String[] PIECES = {
+            "int", " ", "x", "42", "\n", "/*", "*/", "//", "\"", "if", "(", ")", ";", "  ", "\n\n", "*", "/"
+    };
+
+    private final SimpleParserDefinition definition = new SimpleParserDefinition(true, false);
+    private final LanguageTokenizeAdapter adapter = new LanguageTokenizeAdapter(definition);
+
+    @Test
+    public void randomEdits_matchFullRelex() {
+        Random random = new Random(12);
+        for (int round = 0; round < 10; ++round) {
+            StringBuilder text = new StringBuilder(randomText(random, 6000));
+            HighlightSpanList spans = adapter.tokenize(new Flag(), text, null);
+            for (int step = 0; step < 100; ++step) {
+                int offset = random.nextInt(text.length() + 1);
+                if (random.nextBoolean() || offset == text.length()) {
+                    String inserted = randomText(random, 1 + random.nextInt(random.nextInt(8) == 0 ? 600 : 6));
+                    text.insert(offset, inserted);
+                    spans.onInsert(offset, inserted.length());
+                } else {
+                    int count = 1 + random.nextInt(Math.min(text.length() - offset, 40));
+                    text.delete(offset, offset + count);
+                    spans.onDelete(offset, count);
+                }
+                spans = adapter.tokenize(new Flag(), text, spans);
+                HighlightSpanList full = adapter.tokenize(new Flag(), text, null);
+                SpanAssert.assertSameHighlights(full, spans, text.length());
+            }
+        }
+    }
+
+    /**
+     * Typing in the middle of a large text only lexes around the edit
+     */
+    @Test
+    public void smallEdit_relexesNearby() {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 50000) {
+            text.append("int x = 42; /* a\ncomment */ if (x) return \"s\";\n");
+        }
+        HighlightSpanList spans = adapter.tokenize(new Flag(), text, null);
+        assertEquals(text.length(), definition.takeLexedChars());
+
+        text.insert(25000, 'y');
+        spans.onInsert(25000, 1);
+        spans = adapter.tokenize(new Flag(), text, spans);
+        // a few checkpoint intervals around the edit
+        assertTrue(definition.takeLexedChars() < 2000);
+        SpanAssert.assertSameHighlights(adapter.tokenize(new Flag(), text, null), spans, text.length());
+    }
+
+    /**
+     * Opening a block comment changes everything after it, so the run must
+     * not stop at an old checkpoint
+     */
+    @Test
+    public void openedComment_relexesToTheEnd() {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 20000) {
+            text.append("x = 1;\n");
+        }
+        HighlightSpanList spans = adapter.tokenize(new Flag(), text, null);
+        text.insert(3000, "/*");
+        spans.onInsert(3000, 2);
+        spans = adapter.tokenize(new Flag(), text, spans);
+        assertEquals(HighlightTokenType.COMMENT, spans.getType(spans.find(text.length() - 1)));
+        SpanAssert.assertSameHighlights(adapter.tokenize(new Flag(), text, null), spans, text.length());
+    }
+
+    private static String randomText(Random random, int length) {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < length) {
+            text.append(PIECES[random.nextInt(PIECES.length)]);
+        }
+        return text.substring(0, length);
+    }
+}
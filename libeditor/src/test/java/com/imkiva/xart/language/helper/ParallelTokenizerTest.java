@@ -0,0 +1,91 @@
+package com.imkiva.xart.language.helper;
+
+import com.imkiva.xart.editor.api.lexer.Flag;
+import com.imkiva.xart.editor.api.lexer.HighlightSpanList;
+import com.imkiva.xart.editor.api.lexer.SpanAssert;
+import com.imkiva.xart.language.SimpleParserDefinition;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Lexing in chunks has to give the same highlights as lexing the text in
+ * one run, also when the lexer is in a block comment at a chunk boundary,
+ * where every chunk but the first starts from a wrong guess.
+ * <p>
+ * The chunk count is passed in, so the chunks are lexed in parallel only
+ * on a machine with several cores, but they are always split and joined.
+ */
+public class ParallelTokenizerTest {
+    private static final int CHUNKS = 4;
+    private static final String LINE = "int x = 42; if (x) return \"s\"; // note\n";
+
+    private final SimpleParserDefinition definition = new SimpleParserDefinition(true, true);
+    private final LanguageTokenizeAdapter sequential =
+            new LanguageTokenizeAdapter(new SimpleParserDefinition(true, false));
+
+    @Test
+    public void plainText_matchesSequential() {
+        assertMatchesSequential(code(400000));
+    }
+
+    /**
+     * A comment is open across every boundary, from a few lines before it
+     * to a few lines after it
+     */
+    @Test
+    public void commentAcrossBoundaries_matchesSequential() {
+        StringBuilder text = code(400000);
+        for (int i = CHUNKS - 1; i > 0; --i) {
+            int boundary = text.length() * i / CHUNKS;
+            text.insert(boundary + 5000, "*/");
+            text.insert(boundary - 5000, "/*");
+        }
+        assertMatchesSequential(text);
+    }
+
+    /**
+     * A comment spans a whole chunk, so the join has to lex up to the next
+     * boundary before the two runs agree
+     */
+    @Test
+    public void commentOverAWholeChunk_matchesSequential() {
+        StringBuilder text = code(400000);
+        text.insert(text.length() * 7 / 8, "*/");
+        text.insert(text.length() / 8, "/*");
+        assertMatchesSequential(text);
+    }
+
+    /**
+     * The checkpoints of the joined spans are good for incremental lexing
+     */
+    @Test
+    public void joinedSpans_relexIncrementally() {
+        StringBuilder text = code(400000);
+        text.insert(text.length() / 2 - 300, "/*");
+        HighlightSpanList spans = ParallelTokenizer.tokenize(definition, new Flag(), text, CHUNKS);
+        assertNotNull(spans);
+
+        int offset = text.length() / 2 + 100;
+        text.insert(offset, "*/");
+        spans.onInsert(offset, 2);
+        LanguageTokenizeAdapter adapter = new LanguageTokenizeAdapter(definition);
+        spans = adapter.tokenize(new Flag(), text, spans);
+        SpanAssert.assertSameHighlights(sequential.tokenize(new Flag(), text, null), spans, text.length());
+    }
+
+    private void assertMatchesSequential(CharSequence text) {
+        HighlightSpanList spans = ParallelTokenizer.tokenize(definition, new Flag(), text, CHUNKS);
+        assertNotNull(spans);
+        SpanAssert.assertSameHighlights(sequential.tokenize(new Flag(), text, null), spans, text.length());
+    }
+
+    private static StringBuilder code(int length) {
+        StringBuilder text = new StringBuilder(length + LINE.length());
+        while (text.length() < length) {
+            text.append(LINE);
+        }
+        return text;
+    }
+}